@@ -34,7 +34,17 @@ interface MessageDataProvider {
     fun getSignalAttachmentPointer(attachmentId: Long): SignalServiceAttachmentPointer?
     fun setAttachmentState(attachmentState: AttachmentState, attachmentId: AttachmentId, messageID: Long)
     fun insertAttachment(messageId: Long, attachmentId: AttachmentId, stream : InputStream)
-    fun updateAudioAttachmentDuration(attachmentId: AttachmentId, durationMs: Long, threadId: Long)
+    /**
+     * Gives the attachment the data of another attachment that was downloaded from the same url.
+     *
+     * @return Whether there was such data to reuse.
+     */
+    fun reuseDownloadedAttachment(attachmentId: AttachmentId, url: String): Boolean
+    /**
+     * Decodes the stored audio of the attachment to persist its duration. This does nothing when
+     * the duration is already known, such as for voice notes and reused downloads.
+     */
+    fun processAudioAttachment(attachmentId: AttachmentId)
     fun isOutgoingMessage(id: MessageId): Boolean
     fun isDeletedMessage(id: MessageId): Boolean
     fun handleSuccessfulAttachmentUpload(attachmentId: Long, attachmentStream: SignalServiceAttachmentStream, attachmentKey: ByteArray, uploadResult: UploadResult)
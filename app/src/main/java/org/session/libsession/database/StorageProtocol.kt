@@ -38,6 +38,26 @@ interface StorageProtocol {
     fun getUserX25519KeyPair(): KeyPair
     fun getUserBlindedAccountId(serverPublicKey: String): AccountId?
 
+    /**
+     * Runs [block] in a database transaction, which is committed if the block returns normally.
+     *
+     * Note that a nested transaction that fails (e.g. a message insert that throws) rolls back
+     * the whole outer transaction, even if the exception is caught inside [block].
+     *
+     * Change notifications emitted by the block are held back until the transaction commits,
+     * and dropped if it rolls back. This needs the outermost transaction to be one of these:
+     * inside a transaction begun directly on the database, they are emitted right away.
+     */
+    fun <T> runInTransaction(block: () -> T): T
+
+    /**
+     * Runs [action] once the transaction being written on this thread through [runInTransaction]
+     * has committed, or right away if there is none. It is dropped if the transaction rolls back.
+     *
+     * For side effects, like jobs, that read back what is being written.
+     */
+    fun runAfterCommit(action: () -> Unit)
+
     // Jobs
     fun persistJob(job: Job)
     fun markJobAsSucceeded(jobId: String)
@@ -18,8 +18,6 @@ import org.session.libsession.messaging.sending_receiving.attachments.Attachment
 import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAttachment
 import org.session.libsession.messaging.utilities.Data
 import org.session.libsession.utilities.Address
-import org.session.libsession.utilities.DecodedAudio
-import org.session.libsession.utilities.InputStreamMediaDataSource
 import org.session.libsignal.exceptions.NonRetryableException
 import org.session.libsignal.utilities.Base64
 import org.session.libsignal.utilities.Log
@@ -30,6 +28,7 @@ import org.thoughtcrime.securesms.api.server.execute
 import org.thoughtcrime.securesms.attachments.AttachmentProcessor
 import org.thoughtcrime.securesms.database.model.MessageId
 import org.thoughtcrime.securesms.util.findCause
+import java.io.InputStream
 
 class AttachmentDownloadJob @AssistedInject constructor(
     @Assisted("attachmentID") val attachmentID: Long,
@@ -163,9 +162,16 @@ class AttachmentDownloadJob @AssistedInject constructor(
                 handleFailure(Error.DuplicateData, attachment.attachmentId)
                 return
             }
+            if (messageDataProvider.reuseDownloadedAttachment(attachment.attachmentId, attachment.url)) {
+                Log.d("AttachmentDownloadJob", "skipped download, the same file was downloaded before")
+                handleSuccess(dispatcherName)
+                return
+            }
             messageDataProvider.setAttachmentState(AttachmentState.DOWNLOADING, attachment.attachmentId, this.mmsMessageId)
 
-            val decrypted = if (threadRecipient?.address !is Address.Community) {
+            // The plaintext is produced as a stream and written straight into the encrypted
+            // part storage, so at most the ciphertext is held in memory for the download.
+            val decrypted: InputStream = if (threadRecipient?.address !is Address.Community) {
                 Log.d("AttachmentDownloadJob", "downloading normal attachment")
                 val r = runCatching { FileServerApis.parseAttachmentUrl(attachment.url.toHttpUrl()) }
                     .recover { throw NonRetryableException("Invalid file server URL", it) }
@@ -182,12 +188,14 @@ class AttachmentDownloadJob @AssistedInject constructor(
                     )
                 ).data.toByteArraySlice()
 
+                Log.d("AttachmentDownloadJob", "downloaded ${cipherText.len} bytes of ciphertext")
+
                 runCatching {
                     if (r.usesDeterministicEncryption) {
                         attachmentProcessor.decryptDeterministically(
                             ciphertext = cipherText,
                             key = key
-                        )
+                        ).inputStream()
                     } else {
                         attachmentProcessor.decryptAttachmentLegacy(
                             ciphertext = cipherText,
@@ -211,34 +219,27 @@ class AttachmentDownloadJob @AssistedInject constructor(
                             requiresSigning = true,
                         )
                     )
-                ).toByteArraySlice()
+                ).toByteArraySlice().inputStream()
             }
 
-            Log.d("AttachmentDownloadJob", "getting input stream")
-
             Log.d("AttachmentDownloadJob", "inserting attachment")
-            messageDataProvider.insertAttachment(
-                messageId = mmsMessageId,
-                attachmentId = attachment.attachmentId,
-                stream = decrypted.inputStream()
-            )
+            decrypted.use { stream ->
+                messageDataProvider.insertAttachment(
+                    messageId = mmsMessageId,
+                    attachmentId = attachment.attachmentId,
+                    stream = stream
+                )
+            }
 
             if (attachment.contentType.startsWith("audio/")) {
-                // process the duration
-                    try {
-                        InputStreamMediaDataSource(decrypted.inputStream()).use { mediaDataSource ->
-                            val durationMs = (DecodedAudio.create(mediaDataSource).totalDurationMicroseconds / 1000.0).toLong()
-                            messageDataProvider.updateAudioAttachmentDuration(
-                                attachment.attachmentId,
-                                durationMs,
-                                threadID
-                            )
-                        }
-                    } catch (e: Exception) {
-                        Log.e("Loki", "Couldn't process audio attachment", e)
-                    }
+                // process the duration, reading the audio back from storage rather than
+                // keeping a plaintext copy around for it
+                try {
+                    messageDataProvider.processAudioAttachment(attachment.attachmentId)
+                } catch (e: Exception) {
+                    Log.e("Loki", "Couldn't process audio attachment", e)
+                }
             }
-            Log.d("AttachmentDownloadJob", "deleting tempfile")
             Log.d("AttachmentDownloadJob", "succeeding job")
             handleSuccess(dispatcherName)
         } catch (e: Exception) {
@@ -0,0 +1,94 @@
+package org.session.libsession.messaging.jobs
+
+import android.os.SystemClock
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withContext
+import org.session.libsignal.utilities.Log
+import java.util.concurrent.ConcurrentHashMap
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Coordinates the [AttachmentUploadJob]s, which otherwise all run at once when an album is sent.
+ *
+ * The CPU heavy part of an upload (scaling, compressing and encrypting) runs on a small bounded
+ * pool, while the network part runs under its own concurrency limit. This way the uploads are
+ * pipelined: the first attachments go out on the network while the next ones are still being
+ * processed, instead of every attachment competing for the CPU first and the network afterwards.
+ *
+ * It also keeps track of the uploads of each message, so that how long a message waits on its
+ * attachments can be seen in the logs.
+ */
+@Singleton
+class AttachmentUploadCoordinator @Inject constructor() {
+    private val processingDispatcher = Dispatchers.Default.limitedParallelism(
+        (Runtime.getRuntime().availableProcessors() / 2).coerceIn(1, MAX_PROCESSING_PARALLELISM)
+    )
+
+    private val uploadSemaphore = Semaphore(MAX_CONCURRENT_UPLOADS)
+
+    private class MessageUploads(val total: Int) {
+        val queuedAt = SystemClock.elapsedRealtime()
+        var uploaded = 0
+        var completedAt = 0L
+    }
+
+    // Keyed by the id of the MessageSendJob that's waiting on the uploads
+    private val messageUploads = ConcurrentHashMap<String, MessageUploads>()
+
+    suspend fun <T> process(block: suspend () -> T): T = withContext(processingDispatcher) { block() }
+
+    suspend fun <T> upload(block: suspend () -> T): T = uploadSemaphore.withPermit { block() }
+
+    /**
+     * Called when a message starts waiting on [count] attachments to be uploaded.
+     */
+    fun onUploadsQueued(messageSendJobId: String, count: Int) {
+        messageUploads.putIfAbsent(messageSendJobId, MessageUploads(count))
+    }
+
+    fun onAttachmentUploaded(messageSendJobId: String) {
+        val uploads = messageUploads[messageSendJobId] ?: return
+
+        synchronized(uploads) {
+            uploads.uploaded++
+            val elapsed = SystemClock.elapsedRealtime() - uploads.queuedAt
+
+            if (uploads.uploaded >= uploads.total) {
+                uploads.completedAt = SystemClock.elapsedRealtime()
+                Log.d(TAG, "All ${uploads.total} attachments of $messageSendJobId uploaded in ${elapsed}ms")
+            } else {
+                Log.d(TAG, "Uploaded ${uploads.uploaded}/${uploads.total} attachments of $messageSendJobId in ${elapsed}ms")
+            }
+        }
+    }
+
+    /**
+     * Called once an attempt to send a message that waited on attachment uploads is over, whether
+     * it was sent, failed or got cancelled. A retry after a failure isn't tracked anymore.
+     */
+    fun onSendAttemptFinished(messageSendJobId: String, sent: Boolean) {
+        val uploads = messageUploads.remove(messageSendJobId) ?: return
+        val completedAt = synchronized(uploads) { uploads.completedAt }
+
+        if (sent && completedAt > 0) {
+            Log.d(TAG, "Message $messageSendJobId sent ${SystemClock.elapsedRealtime() - completedAt}ms after its attachments were uploaded")
+        }
+    }
+
+    /**
+     * Called when a message won't be sent anymore because one of its uploads failed for good.
+     */
+    fun onUploadsAbandoned(messageSendJobId: String) {
+        messageUploads.remove(messageSendJobId)
+    }
+
+    companion object {
+        private const val TAG = "AttachmentUploadCoordinator"
+
+        private const val MAX_PROCESSING_PARALLELISM = 4
+        private const val MAX_CONCURRENT_UPLOADS = 3
+    }
+}
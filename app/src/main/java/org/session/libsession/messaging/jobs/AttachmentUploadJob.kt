@@ -20,8 +20,6 @@ import org.session.libsession.messaging.open_groups.api.execute
 import org.session.libsession.messaging.sending_receiving.MessageSender
 import org.session.libsession.messaging.utilities.Data
 import org.session.libsession.utilities.Address
-import org.session.libsession.utilities.DecodedAudio
-import org.session.libsession.utilities.InputStreamMediaDataSource
 import org.session.libsession.utilities.TextSecurePreferences
 import org.session.libsession.utilities.UploadResult
 import org.session.libsignal.messages.SignalServiceAttachmentStream
@@ -50,6 +48,7 @@ class AttachmentUploadJob @AssistedInject constructor(
     private val fileUploadApiFactory: FileUploadApi.Factory,
     private val communityApiExecutor: CommunityApiExecutor,
     private val communityFileUploadApiFactory: CommunityFileUploadApi.Factory,
+    private val attachmentUploadCoordinator: AttachmentUploadCoordinator,
 ) : Job {
     override var delegate: JobDelegate? = null
     override var id: String? = null
@@ -76,8 +75,9 @@ class AttachmentUploadJob @AssistedInject constructor(
 
     override suspend fun execute(dispatcherName: String) {
         try {
-            val attachment = messageDataProvider.getScaledSignalAttachmentStream(attachmentID)
-                ?: return handleFailure(dispatcherName, Error.NoAttachment)
+            val attachment = attachmentUploadCoordinator.process {
+                messageDataProvider.getScaledSignalAttachmentStream(attachmentID)
+            } ?: return handleFailure(dispatcherName, Error.NoAttachment)
 
             val threadAddress = threadDatabase.getRecipientAddress(threadID.toLong()) ?: return handlePermanentFailure(dispatcherName,
                 RuntimeException("Thread doesn't exist"))
@@ -138,68 +138,76 @@ class AttachmentUploadJob @AssistedInject constructor(
                                    isDeterministicallyEncrypted: Boolean,
                                ) -> Pair<String, String>
     ): Pair<ByteArray, UploadResult> {
-        val input = attachment.inputStream.use {
-            it.readBytes()
-        }
-
-        val key: ByteArray
-        val dataToUpload: ByteArray
-        val digest: ByteArray?
-        val deterministicallyEncrypted: Boolean
-
-        when {
-            encrypt && preferences.forcesDeterministicAttachmentEncryption -> {
-                deterministicallyEncrypted = true
-                val result = attachmentProcessor.encryptDeterministically(
-                    plaintext = input,
-                    domain = Attachments.Domain.Attachment
-                )
-                key = result.key
-                dataToUpload = result.ciphertext
-                digest = null
+        // Reading and encrypting is CPU bound, whereas the upload itself is network bound, so
+        // they are throttled separately to let the uploads of an album overlap.
+        val encrypted = attachmentUploadCoordinator.process {
+            val input = attachment.inputStream.use {
+                it.readBytes()
             }
 
-            encrypt -> {
-                deterministicallyEncrypted = false
-                val result = attachmentProcessor.encryptAttachmentLegacy(plaintext = input)
-                key = result.first.key
-                dataToUpload = result.first.ciphertext
-                digest = result.second
-            }
+            when {
+                encrypt && preferences.forcesDeterministicAttachmentEncryption -> {
+                    val result = attachmentProcessor.encryptDeterministically(
+                        plaintext = input,
+                        domain = Attachments.Domain.Attachment
+                    )
+                    EncryptedUpload(
+                        key = result.key,
+                        data = result.ciphertext,
+                        digest = null,
+                        deterministicallyEncrypted = true
+                    )
+                }
+
+                encrypt -> {
+                    val result = attachmentProcessor.encryptAttachmentLegacy(plaintext = input)
+                    EncryptedUpload(
+                        key = result.first.key,
+                        data = result.first.ciphertext,
+                        digest = result.second,
+                        deterministicallyEncrypted = false
+                    )
+                }
 
-            else -> {
-                deterministicallyEncrypted = false
-                key = byteArrayOf()
-                dataToUpload = input
-                digest = attachmentProcessor.digest(dataToUpload)
+                else -> EncryptedUpload(
+                    key = byteArrayOf(),
+                    data = input,
+                    digest = attachmentProcessor.digest(input),
+                    deterministicallyEncrypted = false
+                )
             }
         }
 
-        val (id, url) = upload(dataToUpload, deterministicallyEncrypted)
+        val (id, url) = attachmentUploadCoordinator.upload {
+            upload(encrypted.data, encrypted.deterministicallyEncrypted)
+        }
 
         // Return
-        return Pair(key, UploadResult(
+        return Pair(encrypted.key, UploadResult(
             id = id,
             url = url,
-            digest = digest,
+            digest = encrypted.digest,
         ))
     }
 
+    private class EncryptedUpload(
+        val key: ByteArray,
+        val data: ByteArray,
+        val digest: ByteArray?,
+        val deterministicallyEncrypted: Boolean,
+    )
+
     private fun handleSuccess(dispatcherName: String, attachment: SignalServiceAttachmentStream, attachmentKey: ByteArray, uploadResult: UploadResult) {
         Log.d(TAG, "Attachment uploaded successfully.")
+        attachmentUploadCoordinator.onAttachmentUploaded(messageSendJobID)
         delegate?.handleJobSucceeded(this, dispatcherName)
         messageDataProvider.handleSuccessfulAttachmentUpload(attachmentID, attachment, attachmentKey, uploadResult)
 
         // We don't need to calculate the duration for voice notes, as they will have it set already.
         if (attachment.contentType.startsWith("audio/") && !attachment.voiceNote) {
             try {
-                val inputStream = messageDataProvider.getAttachmentStream(attachmentID)!!.inputStream!!
-                InputStreamMediaDataSource(inputStream).use { mediaDataSource ->
-                    val durationMS = (DecodedAudio.create(mediaDataSource).totalDurationMicroseconds / 1000.0).toLong()
-                    Log.d(TAG, "Audio attachment duration calculated as: $durationMS ms")
-                    messageDataProvider.getDatabaseAttachment(attachmentID)?.attachmentId?.let { attachmentId ->
-                        messageDataProvider.updateAudioAttachmentDuration(attachmentId, durationMS, threadID.toLong())
-                    }
+                messageDataProvider.getDatabaseAttachment(attachmentID)?.attachmentId?.let { attachmentId ->
+                    messageDataProvider.processAudioAttachment(attachmentId)
                 }
             } catch (e: Exception) {
                 Log.e("Loki", "Couldn't process audio attachment", e)
@@ -243,6 +251,7 @@ class AttachmentUploadJob @AssistedInject constructor(
     }
 
     private fun failAssociatedMessageSendJob(e: Exception) {
+        attachmentUploadCoordinator.onUploadsAbandoned(messageSendJobID)
         val messageSendJob = storage.getMessageSendJob(messageSendJobID)
         messageSender.handleFailedMessageSend(this.message, e)
         if (messageSendJob != null) {
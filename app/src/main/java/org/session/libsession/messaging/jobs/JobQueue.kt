@@ -50,7 +50,7 @@ class JobQueue @Inject constructor(
                 handleJobFailedPermanently(job, name, NullPointerException("Open Group ID was null"))
             } else {
                 val groupChannel = if (!openGroupChannels.containsKey(communityAddress)) {
-                    Log.d("OpenGroupDispatcher", "Creating ${communityAddress.hashCode()} channel")
+                    Log.d("OpenGroupDispatcher") { "Creating ${communityAddress.hashCode()} channel" }
                     val newGroupChannel = Channel<Job>(UNLIMITED)
                     launch {
                         for (groupJob in newGroupChannel) {
@@ -64,7 +64,7 @@ class JobQueue @Inject constructor(
                     Log.d("OpenGroupDispatcher", "Re-using channel")
                     openGroupChannels[communityAddress]!!
                 }
-                Log.d("OpenGroupDispatcher", "Sending to channel $groupChannel")
+                Log.d("OpenGroupDispatcher") { "Sending to channel $groupChannel" }
                 groupChannel.send(job)
             }
         }
@@ -88,7 +88,7 @@ class JobQueue @Inject constructor(
     }
 
     private suspend fun Job.process(dispatcherName: String) {
-        Log.d(dispatcherName,"processJob: ${javaClass.simpleName} (id: $id)")
+        Log.d(dispatcherName) { "processJob: ${javaClass.simpleName} (id: $id)" }
         delegate = this@JobQueue
 
         val runResult = runCatching {
@@ -102,7 +102,7 @@ class JobQueue @Inject constructor(
         }
 
         runResult.onFailure { e ->
-            Log.d(dispatcherName, "unhandledJobException: ${javaClass.simpleName} (id: $id)", e)
+            Log.d(dispatcherName, e) { "unhandledJobException: ${javaClass.simpleName} (id: $id)" }
             this@JobQueue.handleJobFailed(this, dispatcherName, e as? Exception ?: RuntimeException(e))
         }
     }
@@ -183,7 +183,7 @@ class JobQueue @Inject constructor(
             return
         }
         queue.trySend(job)
-        Log.d("Loki", "resumed pending send message $id")
+        Log.d("Loki") { "resumed pending send message $id" }
     }
 
     fun resumePendingJobs(typeKey: String) {
@@ -198,7 +198,7 @@ class JobQueue @Inject constructor(
             }
         }
         pendingJobs.sortedBy { it.id }.forEach { job ->
-            Log.i("Loki", "Resuming pending job of type: ${job::class.simpleName} (id: ${job.id}).")
+            Log.i("Loki") { "Resuming pending job of type: ${job::class.simpleName} (id: ${job.id})." }
             queue.trySend(job) // Offer always called on unlimited capacity
         }
     }
@@ -228,11 +228,11 @@ class JobQueue @Inject constructor(
     override fun handleJobFailed(job: Job, dispatcherName: String, error: Exception) {
         // Canceled
         if (storage.isJobCanceled(job)) {
-            return Log.i("Loki", "${job::class.simpleName} canceled (id: ${job.id}).")
+            return Log.i("Loki") { "${job::class.simpleName} canceled (id: ${job.id})." }
         }
         // Message send jobs waiting for the attachment to upload
         if (job is MessageSendJob && error is MessageSendJob.AwaitingAttachmentUploadException) {
-            Log.i("Loki", "Message send job waiting for attachment upload to finish (id: ${job.id}).")
+            Log.i("Loki") { "Message send job waiting for attachment upload to finish (id: ${job.id})." }
             return
         }
 
@@ -244,10 +244,10 @@ class JobQueue @Inject constructor(
         } else {
             storage.persistJob(job)
             val retryInterval = getRetryInterval(job)
-            Log.i("Loki", "${job::class.simpleName} failed (id: ${job.id}); scheduling retry (failure count is ${job.failureCount}).")
+            Log.i("Loki") { "${job::class.simpleName} failed (id: ${job.id}); scheduling retry (failure count is ${job.failureCount})." }
             scope.launch {
                 delay(retryInterval)
-                Log.i("Loki", "Retrying ${job::class.simpleName} (id: ${job.id}).")
+                Log.i("Loki") { "Retrying ${job::class.simpleName} (id: ${job.id})." }
                 queue.trySend(job)
             }
         }
@@ -256,7 +256,7 @@ class JobQueue @Inject constructor(
     override fun handleJobFailedPermanently(job: Job, dispatcherName: String, error: Exception) {
         val jobId = job.id ?: return
         handleJobFailedPermanently(jobId)
-        Log.d(dispatcherName, "permanentlyFailedJob: ${javaClass.simpleName} (id: ${job.id})")
+        Log.d(dispatcherName) { "permanentlyFailedJob: ${javaClass.simpleName} (id: ${job.id})" }
     }
 
     private fun handleJobFailedPermanently(jobId: String) {
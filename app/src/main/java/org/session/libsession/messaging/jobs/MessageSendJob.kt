@@ -39,6 +39,7 @@ class MessageSendJob @AssistedInject constructor(
     private val configFactory: ConfigFactoryProtocol,
     private val messageSender: MessageSender,
     private val jobQueue: Provider<JobQueue>,
+    private val attachmentUploadCoordinator: AttachmentUploadCoordinator,
 ) : Job {
 
     object AwaitingAttachmentUploadException : Exception("Awaiting attachment upload.")
@@ -64,6 +65,7 @@ class MessageSendJob @AssistedInject constructor(
 
         // do not attempt to send if the message is marked as deleted
         if (messageId != null && messageDataProvider.isDeletedMessage(messageId)) {
+            id?.let { attachmentUploadCoordinator.onSendAttemptFinished(it, sent = false) }
             return
         }
 
@@ -71,7 +73,10 @@ class MessageSendJob @AssistedInject constructor(
 
         if (message != null) {
             val isOutgoing = messageId != null && messageDataProvider.isOutgoingMessage(messageId)
-            if (!isOutgoing && message.reaction == null) return // The message has been deleted
+            if (!isOutgoing && message.reaction == null) { // The message has been deleted
+                id?.let { attachmentUploadCoordinator.onSendAttemptFinished(it, sent = false) }
+                return
+            }
             val attachmentIDs = mutableListOf<Long>()
             attachmentIDs.addAll(message.attachmentIDs)
             message.quote?.let { it.attachmentID?.let { attachmentID -> attachmentIDs.add(attachmentID) } }
@@ -87,11 +92,13 @@ class MessageSendJob @AssistedInject constructor(
                 }
             }
             if (attachmentsToUpload.isNotEmpty()) {
+                attachmentUploadCoordinator.onUploadsQueued(id!!, attachmentsToUpload.size)
                 this.handleFailure(dispatcherName, AwaitingAttachmentUploadException)
                 return
             } // Wait for all attachments to upload before continuing
         }
         val isSync = destination is Destination.Contact && destination.publicKey == storage.getUserPublicKey()
+        var sent = false
 
         try {
             // Shouldn't send message to group when the group has no keys available
@@ -105,6 +112,7 @@ class MessageSendJob @AssistedInject constructor(
             }
 
             messageSender.sendNonDurably(this@MessageSendJob.message, destination, isSync)
+            sent = true
 
             this.handleSuccess(dispatcherName)
             statusCallback?.trySend(Result.success(Unit))
@@ -122,6 +130,9 @@ class MessageSendJob @AssistedInject constructor(
             this.handleFailure(dispatcherName, e)
 
             statusCallback?.trySend(Result.failure(e))
+        } finally {
+            // Failed and cancelled attempts must not keep their entry around either
+            id?.let { attachmentUploadCoordinator.onSendAttemptFinished(it, sent) }
         }
     }
 
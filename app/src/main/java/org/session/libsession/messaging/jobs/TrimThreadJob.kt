@@ -1,21 +1,21 @@
 package org.session.libsession.messaging.jobs
 
-import android.content.Context
 import dagger.assisted.Assisted
 import dagger.assisted.AssistedFactory
 import dagger.assisted.AssistedInject
-import dagger.hilt.android.qualifiers.ApplicationContext
-import org.session.libsession.database.StorageProtocol
+import org.session.libsession.messaging.sending_receiving.pollers.CommunityThreadTrimmer
 import org.session.libsession.messaging.utilities.Data
 import org.session.libsession.utilities.Address
-import org.session.libsession.utilities.TextSecurePreferences
 import org.thoughtcrime.securesms.database.ThreadDatabase
 import org.thoughtcrime.securesms.database.getRecipientAddress
 
+/**
+ * Trimming is now done in memory by [CommunityThreadTrimmer], this job is only kept around
+ * so that the jobs persisted by older versions can still be run.
+ */
 class TrimThreadJob @AssistedInject constructor(
     @Assisted val threadId: Long,
-    private val storage: StorageProtocol,
-    @param:ApplicationContext private val context: Context,
+    private val threadTrimmer: CommunityThreadTrimmer,
     threadDatabase: ThreadDatabase,
 ) : Job {
     override var delegate: JobDelegate? = null
@@ -27,20 +27,12 @@ class TrimThreadJob @AssistedInject constructor(
     companion object {
         const val KEY: String = "TrimThreadJob"
         const val THREAD_ID = "thread_id"
-
-        const val TRIM_TIME_LIMIT = 15552000000L // trim messages older than this
-        const val THREAD_LENGTH_TRIGGER_SIZE = 2000
     }
 
     val communityAddress: Address.Community? = threadDatabase.getRecipientAddress(threadId) as? Address.Community
 
     override suspend fun execute(dispatcherName: String) {
-        val trimmingEnabled = TextSecurePreferences.isThreadLengthTrimmingEnabled(context)
-        val messageCount = storage.getMessageCount(threadId)
-        if (trimmingEnabled && messageCount >= THREAD_LENGTH_TRIGGER_SIZE) {
-            val oldestMessageTime = System.currentTimeMillis() - TRIM_TIME_LIMIT
-            storage.trimThreadBefore(threadId, oldestMessageTime)
-        }
+        threadTrimmer.trimIfNeeded(threadId)
         delegate?.handleJobSucceeded(this, dispatcherName)
     }
 
@@ -119,6 +119,74 @@ object OpenGroupApi {
         )
     }
 
+    /**
+     * The result of polling a room's info, where the fields left out by the server are null
+     * and mean the stored value is still current. In particular, the [details] are only sent
+     * when they have changed since the `info_updates` we polled with.
+     */
+    @Serializable
+    data class RoomPollInfo(
+        val token: String? = null,
+        @SerialName("active_users")
+        val activeUsers: Int? = null,
+        val admin: Boolean? = null,
+        @SerialName("global_admin")
+        val globalAdmin: Boolean? = null,
+        val moderator: Boolean? = null,
+        @SerialName("global_moderator")
+        val globalModerator: Boolean? = null,
+        val read: Boolean? = null,
+        @SerialName("default_read")
+        val defaultRead: Boolean? = null,
+        @SerialName("default_accessible")
+        val defaultAccessible: Boolean? = null,
+        val write: Boolean? = null,
+        @SerialName("default_write")
+        val defaultWrite: Boolean? = null,
+        val upload: Boolean? = null,
+        @SerialName("default_upload")
+        val defaultUpload: Boolean? = null,
+        val details: RoomInfoDetails? = null
+    ) {
+        constructor(info: RoomInfo): this(
+            token = info.token,
+            activeUsers = info.activeUsers,
+            admin = info.admin,
+            globalAdmin = info.globalAdmin,
+            moderator = info.moderator,
+            globalModerator = info.globalModerator,
+            read = info.read,
+            defaultRead = info.defaultRead,
+            defaultAccessible = info.defaultAccessible,
+            write = info.write,
+            defaultWrite = info.defaultWrite,
+            upload = info.upload,
+            defaultUpload = info.defaultUpload,
+            details = info.details
+        )
+
+        fun applyTo(info: RoomInfo?): RoomInfo {
+            val current = info ?: RoomInfo()
+
+            return current.copy(
+                token = token ?: current.token,
+                activeUsers = activeUsers ?: current.activeUsers,
+                admin = admin ?: current.admin,
+                globalAdmin = globalAdmin ?: current.globalAdmin,
+                moderator = moderator ?: current.moderator,
+                globalModerator = globalModerator ?: current.globalModerator,
+                read = read ?: current.read,
+                defaultRead = defaultRead ?: current.defaultRead,
+                defaultAccessible = defaultAccessible ?: current.defaultAccessible,
+                write = write ?: current.write,
+                defaultWrite = defaultWrite ?: current.defaultWrite,
+                upload = upload ?: current.upload,
+                defaultUpload = defaultUpload ?: current.defaultUpload,
+                details = details ?: current.details
+            )
+        }
+    }
+
     @Serializable
     data class DirectMessage(
         val id: Long = 0,
@@ -3,8 +3,8 @@ package org.session.libsession.messaging.open_groups.api
 import dagger.assisted.Assisted
 import dagger.assisted.AssistedFactory
 import dagger.assisted.AssistedInject
-import kotlinx.serialization.json.JsonObject
 import kotlinx.serialization.json.decodeFromStream
+import org.session.libsession.messaging.open_groups.OpenGroupApi
 import org.thoughtcrime.securesms.api.ApiExecutorContext
 import org.thoughtcrime.securesms.api.http.HttpResponse
 
@@ -12,7 +12,7 @@ class PollRoomApi @AssistedInject constructor(
     @Assisted override val room: String,
     @Assisted infoUpdates: Int,
     deps: CommunityApiDependencies,
-) : CommunityApi<JsonObject>(deps) {
+) : CommunityApi<OpenGroupApi.RoomPollInfo>(deps) {
     override val httpMethod: String get() = "GET"
     override val httpEndpoint: String = "room/$room/pollInfo/$infoUpdates"
     override val requiresSigning: Boolean get() = true
@@ -22,7 +22,7 @@ class PollRoomApi @AssistedInject constructor(
         executorContext: ApiExecutorContext,
         baseUrl: String,
         response: HttpResponse
-    ): JsonObject = response.body.asInputStream().use(json::decodeFromStream)
+    ): OpenGroupApi.RoomPollInfo = response.body.asInputStream().use(json::decodeFromStream)
 
     @AssistedFactory
     interface Factory {
@@ -235,11 +235,14 @@ class VisibleMessageHandler @Inject constructor(
             if (messageID.mms && (threadRecipient.autoDownloadAttachments == true || senderAddress.address == ctx.currentUserPublicKey)) {
                 storage.getAttachmentsForMessage(messageID.id).iterator().forEach { attachment ->
                     attachment.attachmentId?.let { id ->
-                        jobQueue.get().add(
-                            attachmentDownloadJobFactory.create(
-                            attachmentID = id.rowId,
-                            mmsMessageId = messageID.id
-                        ))
+                        // The job reads the attachment back, which only works once committed
+                        storage.runAfterCommit {
+                            jobQueue.get().add(
+                                attachmentDownloadJobFactory.create(
+                                attachmentID = id.rowId,
+                                mmsMessageId = messageID.id
+                            ))
+                        }
                     }
                 }
             }
@@ -0,0 +1,65 @@
+package org.session.libsession.messaging.sending_receiving.pollers
+
+import android.content.Context
+import dagger.hilt.android.qualifiers.ApplicationContext
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import org.session.libsession.database.StorageProtocol
+import org.session.libsession.utilities.TextSecurePreferences
+import org.session.libsignal.utilities.Log
+import org.thoughtcrime.securesms.dependencies.ManagerScope
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Trims old messages from community threads as new messages come in.
+ *
+ * The thread length is counted in the database after each poll that added messages, so nothing
+ * needs to be remembered across app restarts. The check is debounced so a burst of polls results
+ * in one count.
+ */
+@Singleton
+class CommunityThreadTrimmer @Inject constructor(
+    @param:ApplicationContext private val context: Context,
+    private val storage: StorageProtocol,
+    @param:ManagerScope private val scope: CoroutineScope,
+) {
+    // Guarded by itself
+    private val scheduledTrims = hashSetOf<Long>()
+
+    fun onMessagesAdded(threadId: Long) {
+        if (!synchronized(scheduledTrims) { scheduledTrims.add(threadId) }) return
+
+        scope.launch(Dispatchers.IO) {
+            delay(TRIM_DEBOUNCE_MILLS)
+            synchronized(scheduledTrims) { scheduledTrims.remove(threadId) }
+
+            try {
+                trimIfNeeded(threadId)
+            } catch (e: Exception) {
+                Log.e(TAG, "Error trimming thread $threadId", e)
+            }
+        }
+    }
+
+    fun trimIfNeeded(threadId: Long) {
+        if (!TextSecurePreferences.isThreadLengthTrimmingEnabled(context)) return
+
+        val messageCount = storage.getMessageCount(threadId)
+        if (messageCount >= THREAD_LENGTH_TRIGGER_SIZE) {
+            storage.trimThreadBefore(threadId, System.currentTimeMillis() - TRIM_TIME_LIMIT)
+            Log.d(TAG, "Trimmed thread $threadId which had $messageCount messages")
+        }
+    }
+
+    companion object {
+        private const val TAG = "CommunityThreadTrimmer"
+
+        const val TRIM_TIME_LIMIT = 15552000000L // trim messages older than this
+        const val THREAD_LENGTH_TRIGGER_SIZE = 2000
+
+        private const val TRIM_DEBOUNCE_MILLS = 30_000L
+    }
+}
@@ -5,19 +5,18 @@ import dagger.assisted.AssistedFactory
 import dagger.assisted.AssistedInject
 import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.Deferred
-import kotlinx.coroutines.async
-import kotlinx.coroutines.supervisorScope
 import kotlinx.coroutines.sync.Semaphore
 import kotlinx.coroutines.sync.withPermit
+import kotlinx.serialization.DeserializationStrategy
+import kotlinx.serialization.builtins.ListSerializer
 import kotlinx.serialization.json.Json
 import org.session.libsession.database.MessageDataProvider
 import org.session.libsession.database.StorageProtocol
-import org.session.libsession.messaging.jobs.JobQueue
-import org.session.libsession.messaging.jobs.TrimThreadJob
 import org.session.libsession.messaging.open_groups.OpenGroupApi
 import org.session.libsession.messaging.open_groups.OpenGroupApi.Capability
 import org.session.libsession.messaging.open_groups.OpenGroupApi.DirectMessage
+import org.session.libsession.messaging.open_groups.api.BatchApi
+import org.session.libsession.messaging.open_groups.api.CommunityApi
 import org.session.libsession.messaging.open_groups.api.CommunityApiExecutor
 import org.session.libsession.messaging.open_groups.api.CommunityApiRequest
 import org.session.libsession.messaging.open_groups.api.GetCapsApi
@@ -29,10 +28,15 @@ import org.session.libsession.messaging.sending_receiving.ReceivedMessageProcess
 import org.session.libsession.utilities.Address
 import org.session.libsession.utilities.ConfigFactoryProtocol
 import org.session.libsession.utilities.withUserConfigs
+import org.thoughtcrime.securesms.api.ApiExecutorContext
 import org.thoughtcrime.securesms.database.CommunityDatabase
 import org.thoughtcrime.securesms.util.AppVisibilityManager
 import org.thoughtcrime.securesms.util.NetworkConnectivity
+import java.util.concurrent.ConcurrentHashMap
 import javax.inject.Provider
+import kotlin.time.Duration.Companion.minutes
+import kotlin.time.TimeMark
+import kotlin.time.TimeSource
 
 /**
  * A [OpenGroupPoller] is responsible for polling all communities on a particular server.
@@ -45,11 +49,12 @@ import javax.inject.Provider
 class OpenGroupPoller @AssistedInject constructor(
     private val storage: StorageProtocol,
     private val configFactory: ConfigFactoryProtocol,
-    private val trimThreadJobFactory: TrimThreadJob.Factory,
+    private val threadTrimmer: CommunityThreadTrimmer,
     private val communityDatabase: CommunityDatabase,
     private val receivedMessageProcessor: ReceivedMessageProcessor,
     private val communityApiExecutor: CommunityApiExecutor,
     private val getRoomMessagesFactory: GetRoomMessagesApi.Factory,
+    private val batchApiFactory: BatchApi.Factory,
     private val getDirectMessageFactory: GetDirectMessagesApi.Factory,
     private val pollRoomInfoFactory: PollRoomApi.Factory,
     private val messageDataProvider: MessageDataProvider,
@@ -57,7 +62,6 @@ class OpenGroupPoller @AssistedInject constructor(
     networkConnectivity: NetworkConnectivity,
     appVisibilityManager: AppVisibilityManager,
     private val json: Json,
-    private val jobQueue: Provider<JobQueue>,
     @Assisted private val server: String,
     @Assisted private val pollerSemaphore: Semaphore,
 ): BasePoller<Unit>(
@@ -71,18 +75,30 @@ class OpenGroupPoller @AssistedInject constructor(
     override val maxRetryIntervalSeconds: Int
         get() = 30
 
-    private fun handleRoomPollInfo(
-        address: Address.Community,
-        pollInfoJsonText: String,
-    ) {
-        communityDatabase.patchRoomInfo(address, pollInfoJsonText)
-    }
-
+    /**
+     * One of the requests that go in the batch of a poll, along with what to do with its response.
+     */
+    private class PollTask<T : Any>(
+        val name: String,
+        val api: CommunityApi<T>,
+        val deserializer: DeserializationStrategy<T>,
+        val handleResponse: (T) -> Unit,
+    )
+
+    private class RoomInfoPollState(
+        val infoUpdates: Int,
+        val unchangedSince: TimeMark,
+        val lastPolled: TimeMark,
+    )
+
+    // Keyed by room token
+    private val roomInfoPollStates = ConcurrentHashMap<String, RoomInfoPollState>()
 
     /**
      * Polls the open groups on the server once.
      *
-     * @return A list of rooms that were polled.
+     * All the requests of a poll go to the server as a single batch, so the cost of a poll
+     * is one round trip no matter how many rooms we are in.
      */
     override suspend fun doPollOnce(isFirstPollSinceAppStarted: Boolean): Unit = pollerSemaphore.withPermit {
         val allCommunities = configFactory.withUserConfigs { it.userGroups.allCommunityInfo() }
@@ -98,179 +114,256 @@ class OpenGroupPoller @AssistedInject constructor(
             return
         }
 
-        supervisorScope {
-            var caps = storage.getServerCapabilities(server)
-            if (caps == null) {
-                val fetched = communityApiExecutor.execute(
-                    CommunityApiRequest(
-                        serverBaseUrl = server,
-                        serverPubKey = serverKey,
-                        api = getCapsApi.get(),
-                    )
+        var caps = storage.getServerCapabilities(server)
+        if (caps == null) {
+            val fetched = communityApiExecutor.execute(
+                CommunityApiRequest(
+                    serverBaseUrl = server,
+                    serverPubKey = serverKey,
+                    api = getCapsApi.get(),
                 )
-                storage.setServerCapabilities(server, fetched.capabilities)
-                caps = fetched.capabilities
-            }
+            )
+            storage.setServerCapabilities(server, fetched.capabilities)
+            caps = fetched.capabilities
+        }
 
-            val allTasks = mutableListOf<Pair<String, Deferred<Unit>>>()
-
-            for (room in rooms) {
-                val address = Address.Community(serverUrl = server, room = room)
-                val latestRoomPollInfo = communityDatabase.getRoomInfo(address)
-                val infoUpdates = latestRoomPollInfo?.details?.infoUpdates ?: 0
-                val lastMessageServerId = storage.getLastMessageServerID(room, server)
-
-                // Poll room info
-                allTasks += "polling room info" to async {
-                    val roomInfo = communityApiExecutor.execute(
-                        CommunityApiRequest(
-                            serverBaseUrl = server,
-                            serverPubKey = serverKey,
-                            api = pollRoomInfoFactory.create(
-                                room = room,
-                                infoUpdates = infoUpdates
-                            )
-                        )
-                    )
+        val tasks = mutableListOf<PollTask<*>>()
 
-                    handleRoomPollInfo(
-                        address = address,
-                        pollInfoJsonText = json.encodeToString(roomInfo)
-                    )
-                }
+        // The room infos are saved together once all the responses are handled
+        val roomPollInfos = hashMapOf<Address.Community, OpenGroupApi.RoomPollInfo>()
 
-                // Poll room messages
-                allTasks += "polling room messages" to async {
-                    val messages = communityApiExecutor.execute(
-                        CommunityApiRequest(
-                            serverBaseUrl = server,
-                            serverPubKey = serverKey,
-                            api = getRoomMessagesFactory.create(
-                                room = room,
-                                sinceSeqNo = lastMessageServerId,
-                            )
-                        )
-                    )
+        for (room in rooms) {
+            val address = Address.Community(serverUrl = server, room = room)
+            val infoUpdates = communityDatabase.getRoomInfo(address)?.details?.infoUpdates ?: 0
 
-                    handleMessages(roomToken = room, messages = messages)
+            if (isFirstPollSinceAppStarted || shouldPollRoomInfo(room, infoUpdates)) {
+                tasks += PollTask(
+                    name = "polling room info",
+                    api = pollRoomInfoFactory.create(room = room, infoUpdates = infoUpdates),
+                    deserializer = OpenGroupApi.RoomPollInfo.serializer(),
+                ) { pollInfo ->
+                    roomPollInfos[address] = pollInfo
+                    onRoomInfoPolled(room, pollInfo.details?.infoUpdates ?: infoUpdates)
                 }
             }
 
-            // Handling direct messages only if blinded capability is supported
-            if (caps.contains(Capability.BLIND.name.lowercase())) {
-                // We'll only poll our index if we are accepting community requests
-                if (storage.isCheckingCommunityRequests()) {
-                    // Poll inbox messages
-                    allTasks += "polling inbox messages" to async {
-                        val inboxMessages = communityApiExecutor.execute(
-                            CommunityApiRequest(
-                                serverBaseUrl = server,
-                                serverPubKey = serverKey,
-                                api = getDirectMessageFactory.create(
-                                    inboxOrOutbox = true,
-                                    sinceLastId = storage.getLastInboxMessageId(server),
-                                )
-                            )
-                        )
-
-                        handleInboxMessages(messages = inboxMessages)
-                    }
-                }
+            tasks += PollTask(
+                name = "polling room messages",
+                api = getRoomMessagesFactory.create(
+                    room = room,
+                    sinceSeqNo = storage.getLastMessageServerID(room, server),
+                ),
+                deserializer = ListSerializer(OpenGroupApi.Message.serializer()),
+            ) { messages ->
+                handleMessages(roomToken = room, messages = messages)
+            }
+        }
 
-                // Poll outbox messages regardless because these are messages we sent
-                allTasks += "polling outbox messages" to async {
-                    val outboxMessages = communityApiExecutor.execute(
-                        CommunityApiRequest(
-                            serverBaseUrl = server,
-                            serverPubKey = serverKey,
-                            api = getDirectMessageFactory.create(
-                                inboxOrOutbox = false,
-                                sinceLastId = storage.getLastOutboxMessageId(server),
-                            )
-                        )
+        // Handling direct messages only if blinded capability is supported
+        if (caps.contains(Capability.BLIND.name.lowercase())) {
+            // We'll only poll our index if we are accepting community requests
+            if (storage.isCheckingCommunityRequests()) {
+                tasks += PollTask(
+                    name = "polling inbox messages",
+                    api = getDirectMessageFactory.create(
+                        inboxOrOutbox = true,
+                        sinceLastId = storage.getLastInboxMessageId(server),
+                    ),
+                    deserializer = ListSerializer(DirectMessage.serializer()),
+                    handleResponse = ::handleInboxMessages,
+                )
+            }
+
+            // Poll outbox messages regardless because these are messages we sent
+            tasks += PollTask(
+                name = "polling outbox messages",
+                api = getDirectMessageFactory.create(
+                    inboxOrOutbox = false,
+                    sinceLastId = storage.getLastOutboxMessageId(server),
+                ),
+                deserializer = ListSerializer(DirectMessage.serializer()),
+                handleResponse = ::handleOutboxMessages,
+            )
+        }
+
+        val responses = communityApiExecutor.execute(
+            CommunityApiRequest(
+                serverBaseUrl = server,
+                serverPubKey = serverKey,
+                api = batchApiFactory.create(tasks.map { task ->
+                    BatchApi.BatchRequestItem(
+                        httpRequest = task.api.buildRequest(baseUrl = server, x25519PubKeyHex = serverKey),
+                        json = json
                     )
+                })
+            )
+        )
+
+        check(responses.size == tasks.size) {
+            "Mismatched batch response size: expected=${tasks.size}, actual=${responses.size}"
+        }
 
-                    handleOutboxMessages(messages = outboxMessages)
+        /**
+         * Handle all responses and gather the first exception with the rest errors suppressed.
+         */
+        val accumulatedError = tasks.indices
+            .fold(null) { acc: Throwable?, index ->
+                val task = tasks[index]
+                val err = runCatching { task.handle(responses[index]) }
+                    .onFailure { if (it is CancellationException) throw it }
+                    .exceptionOrNull()
+                    ?.let { RuntimeException("Error ${task.name}", it) }
+
+                if (err != null) {
+                    acc?.apply { addSuppressed(err) } ?: err
+                } else {
+                    acc
                 }
             }
 
-            /**
-             * Await on all tasks and gather the first exception with the rest errors suppressed.
-             */
-            val accumulatedError = allTasks
-                .fold(null) { acc: Throwable?, (taskName, deferred) ->
-                    val err = runCatching { deferred.await() }
-                        .onFailure { if (it is CancellationException) throw it }
-                        .exceptionOrNull()
-                        ?.let { RuntimeException("Error $taskName", it) }
-
-                    if (err != null) {
-                        acc?.apply { addSuppressed(err) } ?: err
-                    } else {
-                        acc
-                    }
-                }
+        if (roomPollInfos.isNotEmpty()) {
+            communityDatabase.updateRoomInfo(roomPollInfos)
+        }
 
-            if (accumulatedError != null) {
-                throw accumulatedError
-            }
+        if (accumulatedError != null) {
+            throw accumulatedError
         }
     }
 
+    private suspend fun <T : Any> PollTask<T>.handle(response: BatchApi.BatchResponseItem) {
+        val body = response.body
+
+        val decoded = if (response.code in 200..299 && body != null) {
+            // Decode the successful responses straight from the batch, rather than going
+            // through the text of each one again
+            json.decodeFromJsonElement(deserializer, body)
+        } else {
+            // Let the API deal with the errors and its special status codes
+            api.processResponse(
+                executorContext = ApiExecutorContext(),
+                baseUrl = server,
+                response = response.toHttpResponse(json),
+            )
+        }
+
+        handleResponse(decoded)
+    }
+
+    /**
+     * The info of a room rarely changes, so once it has stayed the same for a while, we only
+     * poll it every [ROOM_INFO_IDLE_POLL_INTERVAL] instead of on every poll.
+     */
+    private fun shouldPollRoomInfo(room: String, infoUpdates: Int): Boolean {
+        val state = roomInfoPollStates[room] ?: return true
+
+        return state.infoUpdates != infoUpdates ||
+                state.unchangedSince.elapsedNow() < ROOM_INFO_IDLE_AFTER ||
+                state.lastPolled.elapsedNow() >= ROOM_INFO_IDLE_POLL_INTERVAL
+    }
+
+    private fun onRoomInfoPolled(room: String, infoUpdates: Int) {
+        val now = TimeSource.Monotonic.markNow()
+        val previous = roomInfoPollStates[room]
+
+        roomInfoPollStates[room] = RoomInfoPollState(
+            infoUpdates = infoUpdates,
+            unchangedSince = previous?.takeIf { it.infoUpdates == infoUpdates }?.unchangedSince ?: now,
+            lastPolled = now,
+        )
+    }
 
     private fun handleMessages(
         roomToken: String,
         messages: List<OpenGroupApi.Message>
     ) {
-        val (deletions, additions) = messages.partition { it.deleted }
+        if (messages.isEmpty()) return
 
         val threadAddress = Address.Community(serverUrl = server, room = roomToken)
         // check thread still exists
         val threadId = storage.getThreadId(threadAddress) ?: return
 
-        if (additions.isNotEmpty()) {
-            receivedMessageProcessor.startProcessing("CommunityPoller(${threadAddress.debugString})") { ctx ->
-                for (msg in additions.sortedBy { it.seqno }) {
-                    try {
-                        // Set the last message server ID to each message as we process them, so that if processing fails halfway through,
-                        // we don't re-process messages we've already handled.
-                        storage.setLastMessageServerID(roomToken, server, msg.seqno)
+        val (deletions, additions) = messages.partition { it.deleted }
+        val sortedAdditions = additions.sortedBy { it.seqno }
+        val lastSeqNo = messages.maxOf { it.seqno }
+
+        receivedMessageProcessor.startProcessing("CommunityPoller(${threadAddress.debugString})") { ctx ->
+            // Deleting again is harmless, so these don't need to commit with the cursor
+            deleteMessages(threadId, deletions)
+
+            // Each chunk is committed together with the cursor, so that if the app dies halfway
+            // through, the chunk is fetched again as a whole. Committing in chunks rather than the
+            // whole poll keeps a busy community from holding the write lock for long, which would
+            // stall sending, marking as read and the like.
+            for (chunk in sortedAdditions.chunked(MESSAGES_PER_TRANSACTION)) {
+                val chunkSeqNo = chunk.last().seqno
+                val reactionsBefore = ctx.pendingCommunityReactions?.let(::HashMap)
+
+                storage.runInTransaction {
+                    for (msg in chunk) {
+                        processMessage(ctx, threadAddress, msg)
+                    }
 
-                        receivedMessageProcessor.processCommunityMessage(
-                            context = ctx,
-                            threadAddress = threadAddress,
-                            message = msg,
-                        )
-                    } catch (e: Exception) {
-                        logE(
-                            "Error processing open group message ${msg.id} in ${threadAddress.debugString}",
-                            e
-                        )
+                    storage.setLastMessageServerID(roomToken, server, chunkSeqNo)
+                }
+
+                if ((storage.getLastMessageServerID(roomToken, server) ?: 0L) < chunkSeqNo) {
+                    // A failed write rolls back the whole transaction, go through the chunk again
+                    // one message at a time so that a bad message can't block the room forever.
+                    logE("Chunk processing in ${threadAddress.debugString} rolled back, retrying each message")
+                    ctx.pendingCommunityReactions = reactionsBefore
+
+                    for (msg in chunk) {
+                        // Set the cursor before processing, so that we don't retry a message that fails.
+                        storage.setLastMessageServerID(roomToken, server, msg.seqno)
+                        processMessage(ctx, threadAddress, msg)
                     }
                 }
             }
 
-            jobQueue.get().add(trimThreadJobFactory.create(threadId))
+            storage.setLastMessageServerID(roomToken, server, lastSeqNo)
         }
 
-        if (deletions.isNotEmpty()) {
-            try {
-                val (smsMessages, mmsMessages) = messageDataProvider.getMessageIDs(deletions.map { it.id }, threadId)
+        if (additions.isNotEmpty()) {
+            threadTrimmer.onMessagesAdded(threadId)
+        }
+    }
 
-                // Delete the SMS messages
-                if (smsMessages.isNotEmpty()) {
-                    messageDataProvider.deleteMessages(smsMessages, true)
-                }
+    private fun processMessage(
+        ctx: ReceivedMessageProcessor.MessageProcessingContext,
+        threadAddress: Address.Community,
+        msg: OpenGroupApi.Message,
+    ) {
+        try {
+            receivedMessageProcessor.processCommunityMessage(
+                context = ctx,
+                threadAddress = threadAddress,
+                message = msg,
+            )
+        } catch (e: Exception) {
+            logE(
+                "Error processing open group message ${msg.id} in ${threadAddress.debugString}",
+                e
+            )
+        }
+    }
 
-                // Delete the MMS messages
-                if (mmsMessages.isNotEmpty()) {
-                    messageDataProvider.deleteMessages(mmsMessages, false)
-                }
-            } catch (e: Exception) {
-                logE("Error deleting open group messages", e)
-            } finally {
-                storage.setLastMessageServerID(roomToken, server, deletions.maxOf { it.seqno })
+    private fun deleteMessages(threadId: Long, deletions: List<OpenGroupApi.Message>) {
+        if (deletions.isEmpty()) return
+
+        try {
+            val (smsMessages, mmsMessages) = messageDataProvider.getMessageIDs(deletions.map { it.id }, threadId)
+
+            // Delete the SMS messages
+            if (smsMessages.isNotEmpty()) {
+                messageDataProvider.deleteMessages(smsMessages, true)
+            }
+
+            // Delete the MMS messages
+            if (mmsMessages.isNotEmpty()) {
+                messageDataProvider.deleteMessages(mmsMessages, false)
             }
+        } catch (e: Exception) {
+            logE("Error deleting open group messages", e)
         }
     }
 
@@ -349,4 +442,11 @@ class OpenGroupPoller @AssistedInject constructor(
             pollerSemaphore: Semaphore
         ): OpenGroupPoller
     }
+
+    companion object {
+        private val ROOM_INFO_IDLE_AFTER = 1.minutes
+        private val ROOM_INFO_IDLE_POLL_INTERVAL = 1.minutes
+
+        private const val MESSAGES_PER_TRANSACTION = 25
+    }
 }
\ No newline at end of file
@@ -120,7 +120,7 @@ class Poller @Inject constructor(
 
                 try {
                     val result = messageParser.parse1o1Message(
-                        data = message.data,
+                        data = message.decodeData(),
                         serverHash = message.hash,
                         currentUserEd25519PrivKey = ctx.currentUserEd25519KeyPair.secretKey.data,
                         currentUserId = ctx.currentUserId
@@ -175,7 +175,7 @@ class Poller @Inject constructor(
     private fun RetrieveMessageResponse.Message.toConfigMessage(): ConfigMessage {
         return ConfigMessage(
             hash = this.hash,
-            data = this.data,
+            data = decodeData(),
             timestamp = this.timestamp.toEpochMilli()
         )
     }
@@ -1,8 +1,8 @@
 package org.session.libsession.snode.model
 
-import android.util.Base64
 import kotlinx.serialization.SerialName
 import kotlinx.serialization.Serializable
+import org.session.libsignal.utilities.Base64Codec
 import org.session.libsession.utilities.serializable.InstantAsMillisSerializer
 import org.thoughtcrime.securesms.api.snode.SnodeApiResponse
 import java.time.Instant
@@ -35,9 +35,12 @@ data class RetrieveMessageResponse(
         @SerialName("data")
         val dataB64: String? = null,
     ) {
-        val data: ByteArray by lazy {
-            Base64.decode(dataB64, Base64.DEFAULT)
-        }
+        /**
+         * Decodes the message data. The result is not kept around, so that a large retrieve only
+         * holds the decoded data of the message being handled; call this once per message.
+         */
+        fun decodeData(): ByteArray =
+            Base64Codec.decode(requireNotNull(dataB64) { "Message data is missing" })
 
         val timestamp: Instant get() = requireNotNull(t1 ?: t2) {
             "Message timestamp is missing"
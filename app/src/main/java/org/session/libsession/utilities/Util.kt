@@ -111,12 +111,16 @@ object Util {
     }
 
     @JvmStatic
-    fun newSingleThreadedLifoExecutor(): ExecutorService {
-        val executor = ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, LinkedBlockingLifoQueue<Runnable>())
-        executor.execute {
-            Thread.currentThread().priority = Thread.MIN_PRIORITY
+    fun newSingleThreadedLifoExecutor(): ExecutorService = newLifoExecutor(1)
+
+    /**
+     * An executor of low priority threads that runs the most recently submitted task first.
+     */
+    @JvmStatic
+    fun newLifoExecutor(threadCount: Int): ExecutorService {
+        return ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS, LinkedBlockingLifoQueue<Runnable>()) { runnable ->
+            Thread(runnable).apply { priority = Thread.MIN_PRIORITY }
         }
-        return executor
     }
 
     @JvmStatic
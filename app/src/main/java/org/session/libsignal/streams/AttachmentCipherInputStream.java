@@ -22,7 +22,6 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -45,11 +44,18 @@ public class AttachmentCipherInputStream extends FilterInputStream {
   private static final int CIPHER_KEY_SIZE = 32;
   private static final int MAC_KEY_SIZE    = 32;
 
+  // Leaves room in the plaintext buffer for the block the cipher holds back, and the final one
+  private static final int CIPHERTEXT_CHUNK_SIZE = StreamBufferPool.BUFFER_SIZE - 2 * BLOCK_SIZE;
+
   private Cipher  cipher;
   private boolean done;
   private long    totalDataSize;
   private long    totalRead;
-  private byte[]  overflowBuffer;
+
+  private byte[] ciphertextBuffer;
+  private byte[] plaintextBuffer;
+  private int    plaintextOffset;
+  private int    plaintextLimit;
 
   public static InputStream createForAttachment(File file, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest)
       throws InvalidMessageException, IOException
@@ -77,7 +83,7 @@ public class AttachmentCipherInputStream extends FilterInputStream {
         inputStream = new ContentLengthInputStream(inputStream, plaintextLength);
       }
 
-      return new AttachmentCipherInputStream(inputStream, parts[0], file.length() - BLOCK_SIZE - mac.getMacLength());
+      return inputStream;
     } catch (NoSuchAlgorithmException e) {
       throw new AssertionError(e);
     } catch (InvalidKeyException e) {
@@ -147,6 +153,21 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     super.close();
 
     in.close();
+
+    StreamBufferPool.release(ciphertextBuffer);
+    StreamBufferPool.release(plaintextBuffer);
+    ciphertextBuffer = null;
+    plaintextBuffer  = null;
+  }
+
+  @Override
+  public int read() throws IOException {
+    while (plaintextOffset == plaintextLimit) {
+      if (done) return -1;
+      decryptChunk();
+    }
+
+    return plaintextBuffer[plaintextOffset++] & 0xFF;
   }
 
   @Override
@@ -156,9 +177,23 @@ public class AttachmentCipherInputStream extends FilterInputStream {
 
   @Override
   public int read(byte[] buffer, int offset, int length) throws IOException {
-    if      (totalRead != totalDataSize) return readIncremental(buffer, offset, length);
-    else if (!done)                      return readFinal(buffer, offset, length);
-    else                                 return -1;
+    if (length == 0) return 0;
+
+    while (plaintextOffset == plaintextLimit) {
+      if (done) return -1;
+      decryptChunk();
+    }
+
+    int read = Math.min(length, plaintextLimit - plaintextOffset);
+    System.arraycopy(plaintextBuffer, plaintextOffset, buffer, offset, read);
+    plaintextOffset += read;
+
+    return read;
+  }
+
+  @Override
+  public int available() {
+    return plaintextLimit - plaintextOffset;
   }
 
   @Override
@@ -170,75 +205,52 @@ public class AttachmentCipherInputStream extends FilterInputStream {
   public long skip(long byteCount) throws IOException {
     long skipped = 0L;
     while (skipped < byteCount) {
-      byte[] buf  = new byte[Math.min(4096, (int)(byteCount-skipped))];
-      int    read = read(buf);
+      if (plaintextOffset == plaintextLimit) {
+        if (done) break;
+        decryptChunk();
+        continue;
+      }
 
-      skipped += read;
+      int count = (int) Math.min(byteCount - skipped, plaintextLimit - plaintextOffset);
+      plaintextOffset += count;
+      skipped         += count;
     }
 
     return skipped;
   }
 
-  private int readFinal(byte[] buffer, int offset, int length) throws IOException {
-    try {
-      synchronized (CIPHER_LOCK) {
-        int flourish = cipher.doFinal(buffer, offset);
-        done = true;
-        return flourish;
-      }
-    } catch (IllegalBlockSizeException | ShortBufferException | BadPaddingException e) {
-      throw new IOException(e);
+  /**
+   * Decrypts the next chunk of ciphertext into the plaintext buffer, finishing the cipher
+   * once all of the ciphertext has been read.
+   */
+  private void decryptChunk() throws IOException {
+    if (plaintextBuffer == null) {
+      ciphertextBuffer = StreamBufferPool.acquire();
+      plaintextBuffer  = StreamBufferPool.acquire();
     }
-  }
-
-  private int readIncremental(byte[] buffer, int offset, int length) throws IOException {
-    int readLength = 0;
-    if (null != overflowBuffer) {
-      if (overflowBuffer.length > length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
-        overflowBuffer = Arrays.copyOfRange(overflowBuffer, length, overflowBuffer.length);
-        return length;
-      } else if (overflowBuffer.length == length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
-        overflowBuffer = null;
-        return length;
-      } else {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, overflowBuffer.length);
-        readLength += overflowBuffer.length;
-        offset += readLength;
-        length -= readLength;
-        overflowBuffer = null;
-      }
-    }
-
-    if (length + totalRead > totalDataSize)
-      length = (int)(totalDataSize - totalRead);
-
-    byte[] internalBuffer = new byte[length];
-    int read              = super.read(internalBuffer, 0, internalBuffer.length <= cipher.getBlockSize() ? internalBuffer.length : internalBuffer.length - cipher.getBlockSize());
-    totalRead            += read;
 
     try {
-      int outputLen = cipher.getOutputSize(read);
+      int outputLength = 0;
+
+      if (totalRead < totalDataSize) {
+        int read = super.read(ciphertextBuffer, 0, (int) Math.min(CIPHERTEXT_CHUNK_SIZE, totalDataSize - totalRead));
+        if (read == -1) throw new IOException("Unexpected end of ciphertext");
 
-      if (outputLen <= length) {
-        readLength += cipher.update(internalBuffer, 0, read, buffer, offset);
-        return readLength;
+        totalRead   += read;
+        outputLength = cipher.update(ciphertextBuffer, 0, read, plaintextBuffer, 0);
       }
 
-      byte[] transientBuffer = new byte[outputLen];
-      outputLen = cipher.update(internalBuffer, 0, read, transientBuffer, 0);
-      if (outputLen <= length) {
-        System.arraycopy(transientBuffer, 0, buffer, offset, outputLen);
-        readLength += outputLen;
-      } else {
-        System.arraycopy(transientBuffer, 0, buffer, offset, length);
-        overflowBuffer = Arrays.copyOfRange(transientBuffer, length, outputLen);
-        readLength += length;
+      if (totalRead == totalDataSize) {
+        synchronized (CIPHER_LOCK) {
+          outputLength += cipher.doFinal(plaintextBuffer, outputLength);
+        }
+        done = true;
       }
-      return readLength;
-    } catch (ShortBufferException e) {
-      throw new AssertionError(e);
+
+      plaintextOffset = 0;
+      plaintextLimit  = outputLength;
+    } catch (IllegalBlockSizeException | ShortBufferException | BadPaddingException e) {
+      throw new IOException(e);
     }
   }
 
@@ -248,13 +260,20 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     try {
       MessageDigest   digest        = MessageDigest.getInstance("SHA256");
       int             remainingData = Util.toIntExact(length) - mac.getMacLength();
-      byte[]          buffer        = new byte[4096];
-
-      while (remainingData > 0) {
-        int read = inputStream.read(buffer, 0, Math.min(buffer.length, remainingData));
-        mac.update(buffer, 0, read);
-        digest.update(buffer, 0, read);
-        remainingData -= read;
+      byte[]          buffer        = StreamBufferPool.acquire();
+
+      // The MAC and the digest are both over the ciphertext, so they share a single pass over it
+      try {
+        while (remainingData > 0) {
+          int read = inputStream.read(buffer, 0, Math.min(buffer.length, remainingData));
+          if (read == -1) throw new IOException("Unexpected end of ciphertext");
+
+          mac.update(buffer, 0, read);
+          digest.update(buffer, 0, read);
+          remainingData -= read;
+        }
+      } finally {
+        StreamBufferPool.release(buffer);
       }
 
       byte[] ourMac   = mac.doFinal();
@@ -20,13 +20,19 @@ import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
 public class AttachmentCipherOutputStream extends DigestingOutputStream {
 
+  // Leaves room in the ciphertext buffer for the block the cipher may have held back
+  private static final int PLAINTEXT_CHUNK_SIZE = StreamBufferPool.BUFFER_SIZE - 16;
+
   private final Cipher cipher;
   private final Mac    mac;
 
+  private byte[] ciphertextBuffer;
+
   public AttachmentCipherOutputStream(byte[] combinedKeyMaterial,
                                       OutputStream outputStream)
       throws IOException
@@ -54,11 +60,24 @@ public class AttachmentCipherOutputStream extends DigestingOutputStream {
 
   @Override
   public void write(byte[] buffer, int offset, int length) throws IOException {
-    byte[] ciphertext = cipher.update(buffer, offset, length);
+    if (ciphertextBuffer == null) {
+      ciphertextBuffer = StreamBufferPool.acquire();
+    }
 
-    if (ciphertext != null) {
-      mac.update(ciphertext);
-      super.write(ciphertext);
+    try {
+      while (length > 0) {
+        int chunk            = Math.min(length, PLAINTEXT_CHUNK_SIZE);
+        int ciphertextLength = cipher.update(buffer, offset, chunk, ciphertextBuffer, 0);
+
+        // The MAC here and the digest in the super class both take the same chunk of ciphertext
+        mac.update(ciphertextBuffer, 0, ciphertextLength);
+        super.write(ciphertextBuffer, 0, ciphertextLength);
+
+        offset += chunk;
+        length -= chunk;
+      }
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
     }
   }
 
@@ -85,6 +104,14 @@ public class AttachmentCipherOutputStream extends DigestingOutputStream {
     }
   }
 
+  @Override
+  public void close() throws IOException {
+    super.close();
+
+    StreamBufferPool.release(ciphertextBuffer);
+    ciphertextBuffer = null;
+  }
+
   public static long getCiphertextLength(long plaintextLength) {
     return 16 + (((plaintextLength / 16) +1) * 16) + 32;
   }
@@ -5,6 +5,7 @@ import org.session.libsignal.utilities.Util;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 public class PaddingInputStream extends FilterInputStream {
 
@@ -36,6 +37,9 @@ public class PaddingInputStream extends FilterInputStream {
     if (paddingRemaining > 0) {
       length = Math.min(length, Util.toIntExact(paddingRemaining));
       paddingRemaining -= length;
+
+      // The buffer may be reused, so its old content must not end up as padding
+      Arrays.fill(buffer, offset, offset + length, (byte) 0);
       return length;
     }
 
@@ -0,0 +1,51 @@
+package org.session.libsignal.streams;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A small pool of the buffers the attachment streams process their data in, so that they can
+ * work in large blocks without allocating a new buffer for every stream.
+ */
+public final class StreamBufferPool {
+
+  public static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final int MAX_POOLED_BUFFERS = 8;
+
+  private static final ArrayDeque<byte[]> pool = new ArrayDeque<>(MAX_POOLED_BUFFERS);
+
+  private StreamBufferPool() {}
+
+  /**
+   * @return A buffer of {@link #BUFFER_SIZE} bytes, with undefined content.
+   */
+  public static byte[] acquire() {
+    synchronized (pool) {
+      byte[] buffer = pool.pollLast();
+      if (buffer != null) return buffer;
+    }
+
+    return new byte[BUFFER_SIZE];
+  }
+
+  /**
+   * Returns a buffer from {@link #acquire()} to the pool. The buffer must not be used afterwards.
+   *
+   * The buffer is zeroed first, as it can hold decrypted attachment data that would otherwise
+   * stay in memory for as long as the buffer is pooled.
+   */
+  public static void release(byte[] buffer) {
+    if (buffer == null) return;
+
+    Arrays.fill(buffer, (byte) 0);
+
+    if (buffer.length != BUFFER_SIZE) return;
+
+    synchronized (pool) {
+      if (pool.size() < MAX_POOLED_BUFFERS) {
+        pool.addLast(buffer);
+      }
+    }
+  }
+}
@@ -717,35 +717,14 @@ public class Base64
      * @since 1.4
      */
     public static String encodeBytes(@NonNull byte[] source ) {
-        // Since we're not going to have the GZIP encoding turned on,
-        // we're not going to have an java.io.IOException thrown, so
-        // we should not force the user to have to catch it.
-        String encoded = null;
-        try {
-            encoded = encodeBytes(source, 0, source.length, NO_OPTIONS);
-        } catch (java.io.IOException ex) {
-            assert false : ex.getMessage();
-        }   // end catch
-        assert encoded != null;
-        return encoded;
+        // Without any options this is plain Base64, which Base64Codec encodes
+        // straight into the resulting string.
+        return Base64Codec.INSTANCE.encodeToString(source, 0, source.length, true);
     }   // end encodeBytes
     
     
     public static String encodeBytesWithoutPadding(byte[] source, int offset, int length) {
-    	String encoded = null;
- 
-    	try {
-    		encoded = encodeBytes(source, offset, length, NO_OPTIONS);
-    	} catch (java.io.IOException ex) {
-    		assert false : ex.getMessage();
-    	}
-    	
-    	assert encoded != null;
-    	
-    	if      (encoded.charAt(encoded.length()-2) == '=') return encoded.substring(0, encoded.length()-2);
-    	else if (encoded.charAt(encoded.length()-1) == '=') return encoded.substring(0, encoded.length()-1);
-    	else                                                return encoded;
-    	
+    	return Base64Codec.INSTANCE.encodeToString(source, offset, length, false);
     }
     
     public static String encodeBytesWithoutPadding(byte[] source) {
@@ -0,0 +1,232 @@
+package org.session.libsignal.utilities
+
+import org.session.libsignal.utilities.ByteArraySlice.Companion.view
+
+/**
+ * A Base64 codec that works on caller provided buffers and [ByteArraySlice]s, for the hot paths
+ * where the intermediate strings and arrays of [Base64] and [android.util.Base64] add up.
+ *
+ * Encoding uses the standard alphabet. Decoding accepts the standard and the URL safe alphabet,
+ * with or without padding, and skips whitespace.
+ */
+object Base64Codec {
+    private val ENCODE_TABLE = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray()
+
+    private const val INVALID = -1
+    private const val WHITESPACE = -2
+    private const val PADDING = -3
+
+    private val DECODE_TABLE = IntArray(128) { INVALID }.apply {
+        ENCODE_TABLE.forEachIndexed { value, c -> this[c.code] = value }
+        this['-'.code] = 62
+        this['_'.code] = 63
+        this['='.code] = PADDING
+        for (c in " \t\r\n") this[c.code] = WHITESPACE
+    }
+
+    fun encodedLength(length: Int, padding: Boolean = true): Int {
+        return if (padding) (length + 2) / 3 * 4 else (length * 4 + 2) / 3
+    }
+
+    /**
+     * Encodes [length] bytes of [src] from [srcOffset] into [out] at [outOffset].
+     *
+     * @return The number of chars written, see [encodedLength].
+     */
+    fun encode(
+        src: ByteArray,
+        srcOffset: Int,
+        length: Int,
+        out: CharArray,
+        outOffset: Int = 0,
+        padding: Boolean = true,
+    ): Int {
+        var i = srcOffset
+        var o = outOffset
+        val wholeGroupsEnd = srcOffset + length / 3 * 3
+
+        while (i < wholeGroupsEnd) {
+            val bits = (src[i].toInt() and 0xFF shl 16) or
+                    (src[i + 1].toInt() and 0xFF shl 8) or
+                    (src[i + 2].toInt() and 0xFF)
+            out[o] = ENCODE_TABLE[bits ushr 18]
+            out[o + 1] = ENCODE_TABLE[bits ushr 12 and 0x3F]
+            out[o + 2] = ENCODE_TABLE[bits ushr 6 and 0x3F]
+            out[o + 3] = ENCODE_TABLE[bits and 0x3F]
+            i += 3
+            o += 4
+        }
+
+        when (srcOffset + length - i) {
+            1 -> {
+                val bits = src[i].toInt() and 0xFF
+                out[o++] = ENCODE_TABLE[bits ushr 2]
+                out[o++] = ENCODE_TABLE[bits shl 4 and 0x3F]
+                if (padding) {
+                    out[o++] = '='
+                    out[o++] = '='
+                }
+            }
+
+            2 -> {
+                val bits = (src[i].toInt() and 0xFF shl 8) or (src[i + 1].toInt() and 0xFF)
+                out[o++] = ENCODE_TABLE[bits ushr 10]
+                out[o++] = ENCODE_TABLE[bits ushr 4 and 0x3F]
+                out[o++] = ENCODE_TABLE[bits shl 2 and 0x3F]
+                if (padding) {
+                    out[o++] = '='
+                }
+            }
+        }
+
+        return o - outOffset
+    }
+
+    fun encodeToString(
+        src: ByteArray,
+        offset: Int = 0,
+        length: Int = src.size,
+        padding: Boolean = true
+    ): String {
+        val out = CharArray(encodedLength(length, padding))
+        encode(src, offset, length, out, 0, padding)
+        return String(out)
+    }
+
+    fun encodeToString(src: ByteArraySlice, padding: Boolean = true): String {
+        return encodeToString(src.data, src.offset, src.len, padding)
+    }
+
+    /**
+     * @return The number of bytes [encoded] decodes to, as long as it holds no whitespace.
+     * Otherwise it's an upper bound.
+     */
+    fun decodedLength(encoded: CharSequence, start: Int = 0, end: Int = encoded.length): Int {
+        return decodedLength(start, end) { encoded[it].code }
+    }
+
+    fun decodedLength(encoded: ByteArraySlice): Int {
+        val data = encoded.data
+        return decodedLength(encoded.offset, encoded.offset + encoded.len) { data[it].toInt() }
+    }
+
+    /**
+     * Decodes [encoded] between [start] and [end] into [out] at [outOffset], which must have
+     * room for [decodedLength] bytes.
+     *
+     * @return The number of bytes written.
+     * @throws IllegalArgumentException If [encoded] isn't valid Base64.
+     */
+    fun decode(
+        encoded: CharSequence,
+        start: Int = 0,
+        end: Int = encoded.length,
+        out: ByteArray,
+        outOffset: Int = 0
+    ): Int {
+        return decode(start, end, out, outOffset) { encoded[it].code }
+    }
+
+    /**
+     * Decodes the ASCII Base64 in [encoded] into [out] at [outOffset], which must have room for
+     * [decodedLength] bytes.
+     *
+     * @return The number of bytes written.
+     * @throws IllegalArgumentException If [encoded] isn't valid Base64.
+     */
+    fun decode(encoded: ByteArraySlice, out: ByteArray, outOffset: Int = 0): Int {
+        val data = encoded.data
+        return decode(encoded.offset, encoded.offset + encoded.len, out, outOffset) { data[it].toInt() }
+    }
+
+    fun decode(encoded: CharSequence): ByteArray {
+        return decodeToSlice(encoded).exactBytes()
+    }
+
+    fun decode(encoded: ByteArraySlice): ByteArray {
+        return decodeToSlice(encoded).exactBytes()
+    }
+
+    /**
+     * Decodes [encoded] without copying the result when it holds whitespace, which makes
+     * [decodedLength] overestimate the size.
+     */
+    fun decodeToSlice(encoded: CharSequence): ByteArraySlice {
+        val out = ByteArray(decodedLength(encoded))
+        return out.view(0 until decode(encoded, out = out))
+    }
+
+    fun decodeToSlice(encoded: ByteArraySlice): ByteArraySlice {
+        val out = ByteArray(decodedLength(encoded))
+        return out.view(0 until decode(encoded, out))
+    }
+
+    private fun ByteArraySlice.exactBytes(): ByteArray {
+        return if (offset == 0 && len == data.size) data else copyToBytes()
+    }
+
+    private inline fun decodedLength(start: Int, end: Int, charAt: (Int) -> Int): Int {
+        var length = end
+        while (length > start && DECODE_TABLE.getOrElse(charAt(length - 1)) { INVALID }.let { it == PADDING || it == WHITESPACE }) {
+            length--
+        }
+        return ((length - start).toLong() * 3 / 4).toInt()
+    }
+
+    private inline fun decode(start: Int, end: Int, out: ByteArray, outOffset: Int, charAt: (Int) -> Int): Int {
+        var i = start
+        var o = outOffset
+
+        // Whole groups of four, the common case without whitespace or padding
+        while (i + 4 <= end) {
+            val c0 = charAt(i)
+            val c1 = charAt(i + 1)
+            val c2 = charAt(i + 2)
+            val c3 = charAt(i + 3)
+            if ((c0 or c1 or c2 or c3) ushr 7 != 0) break
+
+            val v0 = DECODE_TABLE[c0]
+            val v1 = DECODE_TABLE[c1]
+            val v2 = DECODE_TABLE[c2]
+            val v3 = DECODE_TABLE[c3]
+            if ((v0 or v1 or v2 or v3) < 0) break
+
+            val bits = (v0 shl 18) or (v1 shl 12) or (v2 shl 6) or v3
+            out[o] = (bits shr 16).toByte()
+            out[o + 1] = (bits shr 8).toByte()
+            out[o + 2] = bits.toByte()
+            i += 4
+            o += 3
+        }
+
+        // Whatever is left, one char at a time
+        var bits = 0
+        var bitCount = 0
+        var padded = false
+
+        while (i < end) {
+            val c = charAt(i++)
+            val value = if (c ushr 7 == 0) DECODE_TABLE[c] else INVALID
+
+            when {
+                value == WHITESPACE -> continue
+                value == PADDING -> padded = true
+                value == INVALID || padded -> throw IllegalArgumentException("Invalid Base64 character at ${i - 1}")
+                else -> {
+                    bits = (bits shl 6) or value
+                    bitCount += 6
+
+                    if (bitCount >= 8) {
+                        bitCount -= 8
+                        out[o++] = (bits shr bitCount).toByte()
+                    }
+                }
+            }
+        }
+
+        // A lone char at the end only holds 6 bits, which can't make up a byte
+        require(bitCount < 6) { "Truncated Base64" }
+
+        return o - outOffset
+    }
+}
@@ -32,6 +32,14 @@ public class Hex {
     '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
   };
 
+  private final static byte[] DIGIT_VALUES = new byte[128];
+
+  static {
+    for (int c = 0; c < DIGIT_VALUES.length; c++) {
+      DIGIT_VALUES[c] = (byte) Character.digit(c, 16);
+    }
+  }
+
   public static String toString(byte[] bytes) {
     return toString(bytes, 0, bytes.length);
   }
@@ -46,33 +54,61 @@ public class Hex {
   }
 
   public static String toStringCondensed(byte[] bytes) {
-    StringBuffer buf = new StringBuffer();
-    for (int i=0;i<bytes.length;i++) {
-      appendHexChar(buf, bytes[i]);
+    return toStringCondensed(bytes, 0, bytes.length);
+  }
+
+  public static String toStringCondensed(byte[] bytes, int offset, int length) {
+    char[] out = new char[length * 2];
+    encode(bytes, offset, length, out, 0);
+    return new String(out);
+  }
+
+  /**
+   * Writes the condensed hex of the given bytes into {@code out}, which needs room for
+   * {@code length * 2} chars.
+   *
+   * @return The number of chars written.
+   */
+  public static int encode(byte[] bytes, int offset, int length, char[] out, int outOffset) {
+    for (int i = 0; i < length; i++) {
+      int b = bytes[offset + i];
+      out[outOffset + i * 2]     = HEX_DIGITS[(b >> 4) & 0xf];
+      out[outOffset + i * 2 + 1] = HEX_DIGITS[b & 0xf];
     }
-    return buf.toString();
+    return length * 2;
   }
 
   public static byte[] fromStringCondensed(String encoded) throws IOException {
-    final char[] data = encoded.toCharArray();
-    final int    len  = data.length;
+    final byte[] out = new byte[encoded.length() >> 1];
+    decode(encoded, 0, encoded.length(), out, 0);
+    return out;
+  }
+
+  /**
+   * Decodes the condensed hex between {@code start} and {@code end} into {@code out}, which
+   * needs room for half as many bytes.
+   *
+   * @return The number of bytes written.
+   */
+  public static int decode(CharSequence encoded, int start, int end, byte[] out, int outOffset) throws IOException {
+    final int len = end - start;
 
     if ((len & 0x01) != 0) {
       throw new IOException("Odd number of characters.");
     }
 
-    final byte[] out = new byte[len >> 1];
-
     // two characters form the hex value.
-    for (int i = 0, j = 0; j < len; i++) {
-      int f = Character.digit(data[j], 16) << 4;
-      j++;
-      f = f | Character.digit(data[j], 16);
-      j++;
+    for (int i = outOffset, j = start; j < end; i++, j += 2) {
+      int f = digit(encoded.charAt(j)) << 4 | digit(encoded.charAt(j + 1));
       out[i] = (byte) (f & 0xFF);
     }
 
-    return out;
+    return len >> 1;
+  }
+
+  private static int digit(char c) {
+    if (c < DIGIT_VALUES.length) return DIGIT_VALUES[c];
+    return Character.digit(c, 16);
   }
 
   public static String dump(byte[] bytes) {
@@ -7,6 +7,10 @@ fun ByteArray.toHexString(): String {
     return Hex.toStringCondensed(this)
 }
 
+fun ByteArraySlice.toHexString(): String {
+    return Hex.toStringCondensed(data, offset, len)
+}
+
 val IdentityKeyPair.hexEncodedPublicKey: String
     get() = publicKey.serialize().toHexString()
 
@@ -0,0 +1,236 @@
+package org.session.libsignal.utilities
+
+import androidx.annotation.MainThread
+import androidx.annotation.VisibleForTesting
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+object Log {
+
+    // Declared in order of severity
+    enum class Level {
+        VERBOSE,
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR,
+        ASSERT,
+    }
+
+    // Only set from outside through initialize, except by tests that put back the previous loggers
+    @VisibleForTesting
+    internal var loggers: Array<out Logger>? = null
+
+    /**
+     * Entries below this level are dropped. The lazy logging functions don't even build their
+     * message for them.
+     */
+    @Volatile
+    @JvmStatic
+    var minLevel: Level = Level.VERBOSE
+
+    private class Sampler(val oneIn: Int) {
+        val counter = AtomicInteger()
+    }
+
+    private val samplers = ConcurrentHashMap<String, Sampler>()
+
+    @MainThread
+    @JvmStatic
+    fun initialize(vararg loggers: Logger) {
+        Log.loggers = loggers
+    }
+
+    /**
+     * Only keep one in every [oneIn] of the entries of [tag] below [Level.WARN],
+     * for tags that are too chatty to log in full. A rate of 1 or less keeps everything.
+     */
+    @JvmStatic
+    fun setSampleRate(tag: String, oneIn: Int) {
+        if (oneIn <= 1) {
+            samplers.remove(tag)
+        } else {
+            samplers[tag] = Sampler(oneIn)
+        }
+    }
+
+    /**
+     * @return Whether an entry of the given level and tag would be logged, taking the sampling
+     * of the tag into account. Calling this counts towards the sampling.
+     */
+    @JvmStatic
+    fun isLoggable(level: Level, tag: String?): Boolean {
+        if (level < minLevel) return false
+        if (level >= Level.WARN || tag == null || samplers.isEmpty()) return true
+
+        val sampler = samplers[tag] ?: return true
+        return sampler.counter.getAndIncrement() % sampler.oneIn == 0
+    }
+
+    // The lazy versions of the logging functions, which only build the message if it will be
+    // logged. Use these on hot paths, where the message is costly to build.
+
+    inline fun v(tag: String?, t: Throwable? = null, message: () -> String) {
+        if (isLoggable(Level.VERBOSE, tag)) write(Level.VERBOSE, tag, message(), t)
+    }
+
+    inline fun d(tag: String?, t: Throwable? = null, message: () -> String) {
+        if (isLoggable(Level.DEBUG, tag)) write(Level.DEBUG, tag, message(), t)
+    }
+
+    inline fun i(tag: String?, t: Throwable? = null, message: () -> String) {
+        if (isLoggable(Level.INFO, tag)) write(Level.INFO, tag, message(), t)
+    }
+
+    inline fun w(tag: String?, t: Throwable? = null, message: () -> String) {
+        if (isLoggable(Level.WARN, tag)) write(Level.WARN, tag, message(), t)
+    }
+
+    inline fun e(tag: String?, t: Throwable? = null, message: () -> String) {
+        if (isLoggable(Level.ERROR, tag)) write(Level.ERROR, tag, message(), t)
+    }
+
+    @JvmStatic
+    fun v(tag: String?, message: String?) {
+        v(tag, message, null)
+    }
+
+    @JvmStatic
+    fun d(tag: String?, message: String?) {
+        d(tag, message, null)
+    }
+
+    @JvmStatic
+    fun i(tag: String?, message: String?) {
+        i(tag, message, null)
+    }
+
+    @JvmStatic
+    fun w(tag: String?, message: String?) {
+        w(tag, message, null)
+    }
+
+    @JvmStatic
+    fun e(tag: String?, message: String?) {
+        e(tag, message, null)
+    }
+
+    @JvmStatic
+    fun wtf(tag: String?, message: String?) {
+        wtf(tag, message, null)
+    }
+
+    @JvmStatic
+    fun v(tag: String?, t: Throwable?) {
+        v(tag, null, t)
+    }
+
+    @JvmStatic
+    fun d(tag: String?, t: Throwable?) {
+        d(tag, null, t)
+    }
+
+    @JvmStatic
+    fun i(tag: String?, t: Throwable?) {
+        i(tag, null, t)
+    }
+
+    @JvmStatic
+    fun w(tag: String?, t: Throwable?) {
+        w(tag, null, t)
+    }
+
+    @JvmStatic
+    fun e(tag: String?, t: Throwable?) {
+        e(tag, null, t)
+    }
+
+    @JvmStatic
+    fun wtf(tag: String?, t: Throwable?) {
+        wtf(tag, null, t)
+    }
+
+    @JvmStatic
+    fun v(tag: String?, message: String?, t: Throwable?) {
+        if (isLoggable(Level.VERBOSE, tag)) write(Level.VERBOSE, tag, message, t)
+    }
+
+    @JvmStatic
+    fun d(tag: String?, message: String?, t: Throwable?) {
+        if (isLoggable(Level.DEBUG, tag)) write(Level.DEBUG, tag, message, t)
+    }
+
+    @JvmStatic
+    fun i(tag: String?, message: String?, t: Throwable?) {
+        if (isLoggable(Level.INFO, tag)) write(Level.INFO, tag, message, t)
+    }
+
+    @JvmStatic
+    fun w(tag: String?, message: String?, t: Throwable?) {
+        if (isLoggable(Level.WARN, tag)) write(Level.WARN, tag, message, t)
+    }
+
+    @JvmStatic
+    fun e(tag: String?, message: String?, t: Throwable?) {
+        if (isLoggable(Level.ERROR, tag)) write(Level.ERROR, tag, message, t)
+    }
+
+    @JvmStatic
+    fun wtf(tag: String?, message: String?, t: Throwable?) {
+        write(Level.ASSERT, tag, message, t)
+    }
+
+    /**
+     * Hands an entry to the loggers, once [isLoggable] has been checked.
+     */
+    @PublishedApi
+    internal fun write(level: Level, tag: String?, message: String?, t: Throwable?) {
+        val loggers = loggers
+        if (loggers == null) {
+            when (level) {
+                Level.VERBOSE -> android.util.Log.v(tag, message, t)
+                Level.DEBUG -> android.util.Log.d(tag, message, t)
+                Level.INFO -> android.util.Log.i(tag, message, t)
+                Level.WARN -> android.util.Log.w(tag, message, t)
+                Level.ERROR -> android.util.Log.e(tag, message, t)
+                Level.ASSERT -> android.util.Log.wtf(tag, message, t)
+            }
+            return
+        }
+
+        for (logger in loggers) {
+            when (level) {
+                Level.VERBOSE -> logger.v(tag, message, t)
+                Level.DEBUG -> logger.d(tag, message, t)
+                Level.INFO -> logger.i(tag, message, t)
+                Level.WARN -> logger.w(tag, message, t)
+                Level.ERROR -> logger.e(tag, message, t)
+                Level.ASSERT -> logger.wtf(tag, message, t)
+            }
+        }
+    }
+
+    @JvmStatic
+    fun tag(clazz: Class<*>): String {
+        val simpleName = clazz.simpleName
+        if (simpleName.length > 23) {
+            return simpleName.substring(0, 23)
+        }
+        return simpleName
+    }
+
+    @JvmStatic
+    fun blockUntilAllWritesFinished() {
+        loggers?.forEach { it.blockUntilAllWritesFinished() }
+    }
+
+    abstract class Logger {
+        abstract fun v(tag: String?, message: String?, t: Throwable?)
+        abstract fun d(tag: String?, message: String?, t: Throwable?)
+        abstract fun i(tag: String?, message: String?, t: Throwable?)
+        abstract fun w(tag: String?, message: String?, t: Throwable?)
+        abstract fun e(tag: String?, message: String?, t: Throwable?)
+        abstract fun wtf(tag: String?, message: String?, t: Throwable?)
+        abstract fun blockUntilAllWritesFinished()
+    }
+}
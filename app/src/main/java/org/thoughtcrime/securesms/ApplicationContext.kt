@@ -194,6 +194,12 @@ class ApplicationContext : Application(), DefaultLifecycleObserver, Configuratio
     }
 
     private fun initializeLogging() {
+        // Verbose logs are only of use while developing, so don't pay for building them in release.
+        // The tags that log every request are sampled, they'd drown out the rest.
+        Log.minLevel = if (BuildConfig.DEBUG) Log.Level.VERBOSE else Log.Level.DEBUG
+        for (tag in CHATTY_LOG_TAGS) {
+            Log.setSampleRate(tag, CHATTY_LOG_SAMPLE_RATE)
+        }
         Log.initialize(AndroidLogger(), persistentLogger.get(), debugLogger.get())
         Logger.addLogger(object : Logger {
             private val tag = "LibSession"
@@ -239,6 +245,9 @@ class ApplicationContext : Application(), DefaultLifecycleObserver, Configuratio
 
         private val TAG: String = ApplicationContext::class.java.simpleName
 
+        private val CHATTY_LOG_TAGS = listOf("OnionSessionApiExecutor", "BatchApiExecutor", "OpenGroupDispatcher")
+        private const val CHATTY_LOG_SAMPLE_RATE = 10
+
         @JvmStatic
         fun getInstance(context: Context): ApplicationContext {
             return context.applicationContext as ApplicationContext
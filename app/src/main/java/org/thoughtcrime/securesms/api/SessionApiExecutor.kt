@@ -26,6 +26,10 @@ sealed interface SessionApiRequest<ResponseType : SessionApiResponse> {
 }
 
 sealed interface SessionApiResponse {
+    /**
+     * @param bodyAsText The raw body, only kept when it isn't valid JSON. Large JSON bodies,
+     * like retrieved messages, would otherwise stay in memory twice while they're handled.
+     */
     class JsonRPCResponse(
         val code: Int,
         val bodyAsText: String?,
@@ -1,7 +1,9 @@
 package org.thoughtcrime.securesms.api.direct
 
+import kotlinx.serialization.ExperimentalSerializationApi
 import kotlinx.serialization.json.Json
 import kotlinx.serialization.json.JsonElement
+import kotlinx.serialization.json.decodeFromStream
 import okhttp3.HttpUrl.Companion.toHttpUrl
 import org.thoughtcrime.securesms.api.ApiExecutorContext
 import org.thoughtcrime.securesms.api.SessionApiExecutor
@@ -18,6 +20,7 @@ class DirectSessionApiExecutor @Inject constructor(
     private val httpApiExecutor: HttpApiExecutor,
     private val json: Json,
 ) : SessionApiExecutor {
+    @OptIn(ExperimentalSerializationApi::class)
     override suspend fun send(
         ctx: ApiExecutorContext,
         req: SessionApiRequest<*>
@@ -38,14 +41,16 @@ class DirectSessionApiExecutor @Inject constructor(
 
         return when (req) {
             is SessionApiRequest.SnodeJsonRPC -> {
-                val bodyAsText = httpResponse.body.toText()
+                // Parse straight from the bytes, so a large body never exists as a whole string.
+                // The text is only needed when the body isn't JSON.
+                val bodyAsJson = runCatching {
+                    httpResponse.body.asInputStream().use { json.decodeFromStream<JsonElement>(it) }
+                }.getOrNull()
+
                 SessionApiResponse.JsonRPCResponse(
                     code = httpResponse.statusCode,
-                    bodyAsText = bodyAsText,
-                    bodyAsJson = bodyAsText?.let {
-                        runCatching { json.decodeFromString<JsonElement>(it) }
-                            .getOrNull()
-                    },
+                    bodyAsText = if (bodyAsJson == null) httpResponse.body.toText() else null,
+                    bodyAsJson = bodyAsJson,
                 )
             }
 
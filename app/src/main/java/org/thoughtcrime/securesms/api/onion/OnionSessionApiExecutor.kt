@@ -21,7 +21,7 @@ import org.session.libsession.network.onion.OnionRequestEncryption
 import org.session.libsession.network.onion.OnionRequestVersion
 import org.session.libsession.network.onion.PathManager
 import org.session.libsession.utilities.AESGCM
-import org.session.libsignal.utilities.Base64
+import org.session.libsignal.utilities.Base64Codec
 import org.session.libsignal.utilities.ByteArraySlice
 import org.session.libsignal.utilities.ByteArraySlice.Companion.view
 import org.session.libsignal.utilities.Log
@@ -72,7 +72,7 @@ class OnionSessionApiExecutor @Inject constructor(
 
         when (req) {
             is SessionApiRequest.SnodeJsonRPC -> {
-                Log.d("OnionSessionApiExecutor", "Sending Onion request to Snode destination. Method: ${req.request.method} -- Destination: ${req.snode}")
+                Log.d("OnionSessionApiExecutor") { "Sending Onion request to Snode destination. Method: ${req.request.method} -- Destination: ${req.snode}" }
 
                 onionRequestVersion = OnionRequestVersion.V3
                 onionDestination = OnionDestination.SnodeDestination(req.snode)
@@ -80,7 +80,7 @@ class OnionSessionApiExecutor @Inject constructor(
             }
 
             is SessionApiRequest.HttpServerRequest -> {
-                Log.d("OnionSessionApiExecutor", "Sending Onion request to Server destination. Url: ${req.request.url}")
+                Log.d("OnionSessionApiExecutor") { "Sending Onion request to Server destination. Url: ${req.request.url}" }
                 onionRequestVersion = OnionRequestVersion.V4
                 onionDestination = OnionDestination.ServerDestination(
                     host = req.request.url.host,
@@ -199,7 +199,7 @@ class OnionSessionApiExecutor @Inject constructor(
     ): OnionError {
         val guardSnode = path.first()
 
-        Log.d("OnionSessionApiExecutor", "Networking Error, got a non 200 response code: $httpResponseCode, body: $httpResponseBody")
+        Log.d("OnionSessionApiExecutor") { "Networking Error, got a non 200 response code: $httpResponseCode, body: $httpResponseBody" }
 
         // ---- 502: hop can't find/contact next hop ----
         val nextNodeNotFound = "Next node not found: "
@@ -411,19 +411,21 @@ class OnionSessionApiExecutor @Inject constructor(
         body: HttpBody,
         builtOnion: OnionBuilder.BuiltOnion
     ): SessionApiResponse.JsonRPCResponse {
-        val ivAndCipherText = Base64.decode(body.toBytes())
+        val ivAndCipherText = Base64Codec.decode(body.toByteArraySlice())
 
         val response: V3Response =
             AESGCM.decrypt(ivAndCipherText, symmetricKey = builtOnion.destinationSymmetricKey)
                 .inputStream()
                 .use(json::decodeFromStream)
 
+        val bodyAsJson = runCatching {
+            json.decodeFromString<JsonElement>(response.body)
+        }.getOrNull()
+
         return SessionApiResponse.JsonRPCResponse(
             code = response.status,
-            bodyAsJson = runCatching {
-                json.decodeFromString<JsonElement>(response.body)
-            }.getOrNull(),
-            bodyAsText = response.body,
+            bodyAsJson = bodyAsJson,
+            bodyAsText = response.body.takeIf { bodyAsJson == null },
         )
     }
 
@@ -39,6 +39,9 @@ import org.thoughtcrime.securesms.util.BitmapUtil
 import org.thoughtcrime.securesms.util.ImageUtils
 import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
 import java.security.MessageDigest
 import java.util.concurrent.TimeoutException
 import javax.inject.Inject
@@ -299,12 +302,16 @@ class AttachmentProcessor @Inject constructor(
      */
     fun encryptAttachmentLegacy(plaintext: ByteArray): Pair<EncryptResult, DigestResult> {
         val key = Util.getSecretBytes(64)
-        var remainingPaddingSize =
-            (PaddingInputStream.getPaddedSize(plaintext.size.toLong()) - plaintext.size.toLong()).toInt()
+        val paddedSize = PaddingInputStream.getPaddedSize(plaintext.size.toLong())
+        var remainingPaddingSize = (paddedSize - plaintext.size.toLong()).toInt()
         val paddingBuffer = ByteArray(remainingPaddingSize.coerceAtMost(512))
         val digest: ByteArray
 
-        val cipherText = ByteArrayOutputStream().also { outputStream ->
+        // The ciphertext size is known up front, so encrypt straight into an array of that size
+        // rather than growing (and finally copying) a ByteArrayOutputStream.
+        val cipherText = ByteArray(AttachmentCipherOutputStream.getCiphertextLength(paddedSize).toInt())
+
+        FixedSizeOutputStream(cipherText).also { outputStream ->
             AttachmentCipherOutputStream(key, outputStream).use { os ->
                 os.write(plaintext)
 
@@ -318,7 +325,11 @@ class AttachmentProcessor @Inject constructor(
 
                 digest = os.transmittedDigest
             }
-        }.toByteArray()
+
+            check(outputStream.position == cipherText.size) {
+                "Ciphertext size ${outputStream.position} doesn't match the expected ${cipherText.size}"
+            }
+        }
 
         return EncryptResult(
             ciphertext = cipherText,
@@ -346,13 +357,19 @@ class AttachmentProcessor @Inject constructor(
         return plaintextOut.view(0 until plaintextSize)
     }
 
+    /**
+     * Decrypt the given data using the legacy attachment encryption method.
+     *
+     * The MAC and digest are verified before this returns, but the plaintext is only produced as
+     * the returned stream is read, so it can be written straight to storage without ever being
+     * held in memory as a whole.
+     */
     fun decryptAttachmentLegacy(
         ciphertext: ByteArraySlice,
         key: ByteArray,
         digest: ByteArray?
-    ): ByteArraySlice {
+    ): InputStream {
         return AttachmentCipherInputStream.createForAttachment(ciphertext, key, digest)
-            .use { it.readBytes().view() }
     }
 
     fun digest(data: ByteArray): ByteArray {
@@ -443,9 +460,19 @@ class AttachmentProcessor @Inject constructor(
             "Expected a BitmapImage but got ${result.image?.javaClass}"
         }.bitmap
 
-        return ByteArrayOutputStream().also { out ->
-            bitmap.compress(format, quality, out)
-        }.toByteArray() to IntSize(bitmap.width, bitmap.height)
+        val size = IntSize(bitmap.width, bitmap.height)
+
+        // The bitmap isn't shared with any cache, so let go of it as soon as it's compressed
+        // rather than keeping a full-size decoded image around until the next GC.
+        val compressed = try {
+            ByteArrayOutputStream().also { out ->
+                bitmap.compress(format, quality, out)
+            }.toByteArray()
+        } finally {
+            bitmap.recycle()
+        }
+
+        return compressed to size
     }
 
     @Suppress("DEPRECATION")
@@ -491,6 +518,25 @@ class AttachmentProcessor @Inject constructor(
         )
     }
 
+    /**
+     * An [OutputStream] that writes into a pre-allocated array, failing if it's written past its end.
+     */
+    private class FixedSizeOutputStream(private val buffer: ByteArray) : OutputStream() {
+        var position: Int = 0
+            private set
+
+        override fun write(b: Int) {
+            if (position >= buffer.size) throw IOException("Buffer full")
+            buffer[position++] = b.toByte()
+        }
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            if (len > buffer.size - position) throw IOException("Buffer full")
+            System.arraycopy(b, off, buffer, position, len)
+            position += len
+        }
+    }
+
     /**
      * A locally scoped fetcher to allow us to use Coil's for decoding an inputStream.
      */
@@ -4,8 +4,10 @@ import android.content.Context
 import androidx.annotation.CheckResult
 import dagger.hilt.android.qualifiers.ApplicationContext
 import kotlinx.coroutines.CancellationException
-import kotlinx.coroutines.sync.Mutex
-import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.launch
 import okhttp3.HttpUrl.Companion.toHttpUrl
 import org.session.libsession.avatars.AvatarHelper
 import org.session.libsession.messaging.file_server.FileDownloadApi
@@ -35,12 +37,13 @@ import org.thoughtcrime.securesms.api.server.ServerApiRequest
 import org.thoughtcrime.securesms.api.server.execute
 import org.thoughtcrime.securesms.auth.LoginStateRepository
 import org.thoughtcrime.securesms.database.RecipientSettingsDatabase
+import org.thoughtcrime.securesms.dependencies.ManagerScope
+import org.thoughtcrime.securesms.util.AppVisibilityManager
 import org.thoughtcrime.securesms.util.DateUtils.Companion.millsToInstant
 import org.thoughtcrime.securesms.util.findCause
 import java.io.File
 import java.io.InputStream
 import java.security.MessageDigest
-import java.util.concurrent.ConcurrentHashMap
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -60,11 +63,32 @@ class AvatarDownloadManager @Inject constructor(
     private val fileDownloadApiFactory: FileDownloadApi.Factory,
     private val communityApiExecutor: CommunityApiExecutor,
     private val communityFileDownloadApiFactory: CommunityFileDownloadApi.Factory,
+    private val appVisibilityManager: AppVisibilityManager,
+    @param:ManagerScope private val scope: CoroutineScope,
 ) {
+    private val scheduler = AvatarDownloadScheduler(
+        maxConcurrent = MAX_CONCURRENT_DOWNLOADS,
+        maxBackground = MAX_CONCURRENT_BACKGROUND_DOWNLOADS,
+    )
+
+    private class InFlightDownload(val ticket: AvatarDownloadScheduler.Ticket) {
+        lateinit var result: Deferred<Unit>
+
+        // Guarded by inFlightDownloads
+        var waiters = 1
+    }
+
     /**
-     * A map of mutexes to synchronize downloads for each remote file.
+     * The downloads currently queued or running, so that requests for the same file share them.
      */
-    private val downloadMutex = ConcurrentHashMap<RemoteFile, Mutex>()
+    private val inFlightDownloads = HashMap<RemoteFile, InFlightDownload>()
+
+    init {
+        // Prefetching avatars is paused while the app is in the background
+        scope.launch {
+            appVisibilityManager.isAppVisible.collect(scheduler::setBackgroundAllowed)
+        }
+    }
 
     // Return null if the file doesn't exist locally or corrupted
     private fun openDownloadedFile(file: File): InputStream? {
@@ -99,78 +123,117 @@ class AvatarDownloadManager @Inject constructor(
      * Downloads the given remote file, returning an InputStream to read the downloaded file.
      * If the file has already been downloaded, returns an InputStream to read the cached file.
      *
+     * Concurrent requests for the same file share a single download, which gets the highest
+     * priority any of them asked for.
+     *
+     * @param priority Whether the file is needed on screen, or is merely prefetched.
      * @throws NonRetryableException if the download failed permanently.
      * @return InputStream to read the downloaded file. It's the caller's responsibility to close the stream.
      */
     @CheckResult
-    suspend fun download(file: RemoteFile): InputStream {
+    suspend fun download(
+        file: RemoteFile,
+        priority: AvatarDownloadScheduler.Priority = AvatarDownloadScheduler.Priority.VISIBLE,
+    ): InputStream {
         val downloaded = computeFileName(context, file)
 
-        // Quickly look at the downloaded file without holding the lock,
+        // Quickly look at the downloaded file before anything else,
         // in case we already have it downloaded.
         openDownloadedFile(downloaded)?.let { return it }
 
-        // Now given we don't have a locally download file, we will hold the mutex for this
-        // file when we try to download it from network
-        downloadMutex.getOrPut(file) { Mutex() }.withLock {
-            // Once we hold the lock, we MUST check the local file again just in case
-            // another coroutine already downloaded it while we were waiting for the lock
-            openDownloadedFile(downloaded)?.let { return it }
-
-            Log.d(TAG, "Start downloading file from $file")
-
-            val (bytes, meta) = try {
-                downloadAndDecryptFile(file)
-            } catch (e: Exception) {
-                if (e.findCause<NonRetryableException>() != null ||
-                    e.findCause<UnhandledStatusCodeException>()?.code == 404
-                ) {
-                    Log.w(TAG, "Download failed permanently for file $file", e)
-                    // Write an empty file with a permanent error metadata if the download failed permanently.
-                    localEncryptedFileOutputStreamFactory.create(
-                        downloaded, FileMetadata(
-                            hasPermanentDownloadError = true
-                        )
-                    ).use {}
-
-                    throw NonRetryableException("Download failed permanently for file $file", e)
-                } else {
-                    throw e
+        val download = synchronized(inFlightDownloads) {
+            val existing = inFlightDownloads[file]
+            if (existing != null) {
+                scheduler.bump(existing.ticket, priority)
+                existing.waiters++
+                existing
+            } else {
+                InFlightDownload(scheduler.newTicket(priority)).also { download ->
+                    download.result = scope.async {
+                        scheduler.withPermit(download.ticket) {
+                            downloadToFile(file, downloaded)
+                        }
+                    }
+                    inFlightDownloads[file] = download
                 }
             }
+        }
 
+        try {
+            download.result.await()
+        } finally {
+            synchronized(inFlightDownloads) {
+                // The download is only cancelled once nobody is waiting for it anymore
+                if (--download.waiters == 0) {
+                    inFlightDownloads.remove(file, download)
+                    download.result.cancel()
+                }
+            }
+        }
 
-            // A temp file to clear, if it exists
-            var tmpFileToClean: File? = null
-            try {
-                // Re-encrypt the file with our streaming cipher, and encode it with the metadata,
-                // and doing it to a temporary file first.
-                downloaded.parentFile!!.mkdirs()
-                val tmpFile = File.createTempFile("downloaded-", null, downloaded.parentFile)
-                    .also { tmpFileToClean = it }
+        return localEncryptedFileInputStreamFactory.create(downloaded)
+    }
 
-                localEncryptedFileOutputStreamFactory.create(tmpFile, meta)
-                    .use { fos -> fos.write(bytes) }
+    private suspend fun downloadToFile(file: RemoteFile, downloaded: File) {
+        // We MUST check the local file again just in case another download
+        // finished while this one was waiting for its turn
+        openDownloadedFile(downloaded)?.let {
+            it.close()
+            return
+        }
 
-                // Once done, rename the temporary file to the final file name.
-                check(tmpFile.renameTo(downloaded)) {
-                    "Failed to rename temporary file ${tmpFile.absolutePath} to $downloaded"
-                }
+        Log.d(TAG, "Start downloading file from $file")
+
+        val (bytes, meta) = try {
+            downloadAndDecryptFile(file)
+        } catch (e: Exception) {
+            if (e.findCause<NonRetryableException>() != null ||
+                e.findCause<UnhandledStatusCodeException>()?.code == 404
+            ) {
+                Log.w(TAG, "Download failed permanently for file $file", e)
+                // Write an empty file with a permanent error metadata if the download failed permanently.
+                localEncryptedFileOutputStreamFactory.create(
+                    downloaded, FileMetadata(
+                        hasPermanentDownloadError = true
+                    )
+                ).use {}
 
-                // Since we successfully moved the file, we don't need to delete the temporary file anymore.
-                tmpFileToClean = null
-                Log.d(TAG, "Successfully downloaded file $file")
-                return localEncryptedFileInputStreamFactory.create(downloaded)
-            } catch (e: CancellationException) {
-                Log.i(TAG, "Download cancelled for file $file")
-                throw e
-            } catch (e: Exception) {
-                Log.e(TAG, "Failed to download file $file", e)
+                throw NonRetryableException("Download failed permanently for file $file", e)
+            } else {
                 throw e
-            } finally {
-                tmpFileToClean?.delete()
             }
         }
+
+
+        // A temp file to clear, if it exists
+        var tmpFileToClean: File? = null
+        try {
+            // Re-encrypt the file with our streaming cipher, and encode it with the metadata,
+            // and doing it to a temporary file first.
+            downloaded.parentFile!!.mkdirs()
+            val tmpFile = File.createTempFile("downloaded-", null, downloaded.parentFile)
+                .also { tmpFileToClean = it }
+
+            localEncryptedFileOutputStreamFactory.create(tmpFile, meta)
+                .use { fos -> fos.write(bytes) }
+
+            // Once done, rename the temporary file to the final file name.
+            check(tmpFile.renameTo(downloaded)) {
+                "Failed to rename temporary file ${tmpFile.absolutePath} to $downloaded"
+            }
+
+            // Since we successfully moved the file, we don't need to delete the temporary file anymore.
+            tmpFileToClean = null
+            Log.d(TAG, "Successfully downloaded file $file")
+        } catch (e: CancellationException) {
+            Log.i(TAG, "Download cancelled for file $file")
+            throw e
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to download file $file", e)
+            throw e
+        } finally {
+            tmpFileToClean?.delete()
+        }
     }
 
     private fun findRecipientsForProfilePic(profilePicUrl: String): Set<Address> {
@@ -296,6 +359,9 @@ class AvatarDownloadManager @Inject constructor(
         private const val TAG = "AvatarDownloadManager"
         private const val SUBDIRECTORY = "remote_files"
 
+        private const val MAX_CONCURRENT_DOWNLOADS = 5
+        private const val MAX_CONCURRENT_BACKGROUND_DOWNLOADS = 3
+
         private fun RemoteFile.sha256Hash(): String {
             val hash = MessageDigest.getInstance("SHA-256")
             when (this) {
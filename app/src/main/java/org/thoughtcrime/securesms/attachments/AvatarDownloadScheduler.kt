@@ -0,0 +1,128 @@
+package org.thoughtcrime.securesms.attachments
+
+import kotlinx.coroutines.CompletableDeferred
+import java.util.PriorityQueue
+
+/**
+ * Decides when avatar downloads can go to the network.
+ *
+ * At most [maxConcurrent] downloads run at once, and the downloads for avatars on screen always
+ * go first. Background prefetches only get up to [maxBackground] of the slots, so there's always
+ * room left for what the user is looking at, and they don't start at all while background
+ * downloads are paused.
+ */
+class AvatarDownloadScheduler(
+    private val maxConcurrent: Int,
+    private val maxBackground: Int,
+) {
+    enum class Priority {
+        // Declared in order of precedence
+        VISIBLE,
+        BACKGROUND,
+    }
+
+    /**
+     * A place in the queue for one download, whose priority can be raised while it waits.
+     */
+    class Ticket internal constructor(priority: Priority, internal val sequence: Long) {
+        @Volatile
+        var priority: Priority = priority
+            internal set
+
+        internal val permit = CompletableDeferred<Unit>()
+
+        // The priority the permit was granted for, to release the right slot
+        internal var grantedPriority: Priority? = null
+    }
+
+    // All the state below is guarded by the lock
+    private val lock = Any()
+    private val waiting = PriorityQueue(compareBy<Ticket>({ it.priority }, { it.sequence }))
+    private var nextSequence = 0L
+    private var running = 0
+    private var runningBackground = 0
+    private var backgroundAllowed = true
+
+    fun newTicket(priority: Priority): Ticket = synchronized(lock) {
+        Ticket(priority, nextSequence++)
+    }
+
+    /**
+     * Raises the priority of a ticket, if it's lower than the given one.
+     */
+    fun bump(ticket: Ticket, priority: Priority) = synchronized(lock) {
+        if (priority >= ticket.priority) return@synchronized
+
+        // The queue has to be told about the new ordering
+        val queued = waiting.remove(ticket)
+        ticket.priority = priority
+        if (queued) {
+            waiting.add(ticket)
+        }
+
+        dispatch()
+    }
+
+    fun setBackgroundAllowed(allowed: Boolean) = synchronized(lock) {
+        backgroundAllowed = allowed
+        dispatch()
+    }
+
+    /**
+     * Waits for the turn of the ticket, then runs [block] while holding a download slot.
+     */
+    suspend fun <T> withPermit(ticket: Ticket, block: suspend () -> T): T {
+        synchronized(lock) {
+            waiting.add(ticket)
+            dispatch()
+        }
+
+        try {
+            ticket.permit.await()
+        } catch (e: Throwable) {
+            // Give the slot back if it was granted just as we got cancelled
+            synchronized(lock) {
+                if (!waiting.remove(ticket) && ticket.grantedPriority != null) {
+                    release(ticket)
+                }
+            }
+            throw e
+        }
+
+        try {
+            return block()
+        } finally {
+            synchronized(lock) { release(ticket) }
+        }
+    }
+
+    private fun release(ticket: Ticket) {
+        running--
+        if (ticket.grantedPriority == Priority.BACKGROUND) {
+            runningBackground--
+        }
+        ticket.grantedPriority = null
+        dispatch()
+    }
+
+    private fun dispatch() {
+        while (running < maxConcurrent) {
+            val next = waiting.peek() ?: return
+
+            if (next.priority == Priority.BACKGROUND &&
+                (!backgroundAllowed || runningBackground >= maxBackground)
+            ) {
+                // Everything else in the queue is background too
+                return
+            }
+
+            waiting.poll()
+            running++
+            if (next.priority == Priority.BACKGROUND) {
+                runningBackground++
+            }
+            next.grantedPriority = next.priority
+            next.permit.complete(Unit)
+        }
+    }
+}
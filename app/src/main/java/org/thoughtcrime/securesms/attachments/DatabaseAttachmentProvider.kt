@@ -18,6 +18,7 @@ import org.session.libsession.messaging.sending_receiving.attachments.PointerAtt
 import org.session.libsession.messaging.sending_receiving.attachments.SessionServiceAttachmentPointer
 import org.session.libsession.messaging.sending_receiving.attachments.SessionServiceAttachmentStream
 import org.session.libsession.utilities.Address
+import org.session.libsession.utilities.DecodedAudio
 import org.session.libsession.utilities.UploadResult
 import org.session.libsession.utilities.Util
 import org.session.libsignal.messages.SignalServiceAttachment
@@ -117,11 +118,23 @@ class DatabaseAttachmentProvider @Inject constructor(
         attachmentDatabase.insertAttachmentsForPlaceholder(messageId, attachmentId, stream)
     }
 
-    override fun updateAudioAttachmentDuration(
-        attachmentId: AttachmentId,
-        durationMs: Long,
-        threadId: Long
-    ) {
+    override fun reuseDownloadedAttachment(attachmentId: AttachmentId, url: String): Boolean {
+        return attachmentDatabase.reuseDownloadedData(attachmentId, url)
+    }
+
+    override fun processAudioAttachment(attachmentId: AttachmentId) {
+        val attachment = attachmentDatabase.getAttachment(attachmentId) ?: return
+        if (attachment.audioDurationMs > 0) {
+            return
+        }
+
+        val dataSource = attachmentDatabase.getMediaDataSource(attachmentId) ?: return
+        val durationMs = dataSource.use {
+            (DecodedAudio.create(it).totalDurationMicroseconds / 1000.0).toLong()
+        }
+
+        Log.d(TAG, "Audio attachment duration calculated as: $durationMs ms")
+
         attachmentDatabase.setAttachmentAudioExtras(
             DatabaseAttachmentAudioExtras(
                 attachmentId = attachmentId,
@@ -23,10 +23,12 @@ class LocalEncryptedFileInputStream @AssistedInject constructor(
     codec: EmbeddedMetadataCodec,
     attachmentSecretProvider: AttachmentSecretProvider,
 ) : InputStream() {
+    // Buffered so that single byte reads, like the ones decoding the metadata, don't each
+    // go down to the native decryption.
     private val inputStream: InputStream = DecryptionStream(
         inStream = file.inputStream(),
         key = attachmentSecretProvider.getOrCreateAttachmentSecret().modernKey,
-    )
+    ).buffered()
 
     val meta: FileMetadata = codec.decodeFromStream(inputStream)
 
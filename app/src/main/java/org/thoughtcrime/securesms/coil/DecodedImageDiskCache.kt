@@ -0,0 +1,236 @@
+package org.thoughtcrime.securesms.coil
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.os.Build
+import coil3.size.Dimension
+import coil3.size.Size
+import dagger.hilt.android.qualifiers.ApplicationContext
+import okio.BufferedSource
+import org.session.libsignal.utilities.Log
+import org.session.libsignal.utilities.toHexString
+import org.thoughtcrime.securesms.attachments.FileMetadata
+import org.thoughtcrime.securesms.attachments.LocalEncryptedFileInputStream
+import org.thoughtcrime.securesms.attachments.LocalEncryptedFileOutputStream
+import org.thoughtcrime.securesms.util.AnimatedImageUtils
+import java.io.File
+import java.io.InputStream
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicInteger
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * An encrypted, on-disk cache of downsampled copies of remote images.
+ *
+ * Remote images (mostly avatars) are stored at whatever resolution they were uploaded with, but
+ * are almost always displayed a lot smaller. Once an image falls out of Coil's memory cache,
+ * loading it again means decrypting and decoding the full-size image. This cache keeps a copy
+ * scaled down to a power-of-two size bucket instead, so the reload only has to deal with the
+ * small copy.
+ *
+ * Entries are encrypted the same way as the downloaded files they are derived from, and are
+ * evicted in least-recently-used order once the cache goes over [MAX_TOTAL_BYTES].
+ */
+@Singleton
+class DecodedImageDiskCache @Inject constructor(
+    @param:ApplicationContext private val context: Context,
+    private val localEncryptedFileOutputStreamFactory: LocalEncryptedFileOutputStream.Factory,
+    private val localEncryptedFileInputStreamFactory: LocalEncryptedFileInputStream.Factory,
+) {
+    private val directory: File get() = File(context.cacheDir, SUBDIRECTORY)
+
+    // File name to file size, in access order. Lazily loaded from the disk and guarded by itself.
+    private var entries: LinkedHashMap<String, Long>? = null
+
+    // Only written while holding the lock, but also read without it for logging.
+    @Volatile
+    private var totalBytes = 0L
+
+    private val hits = AtomicInteger()
+    private val misses = AtomicInteger()
+
+    /**
+     * @return The cached image for the given key and size bucket, or null if there isn't one.
+     */
+    fun get(key: String, sizeBucket: Int): InputStream? {
+        val name = fileName(key, sizeBucket)
+        val file = File(directory, name)
+
+        val stream = if (file.exists()) {
+            runCatching { localEncryptedFileInputStreamFactory.create(file) }
+                .onFailure { Log.w(TAG, "Failed to read cached image, removing", it) }
+                .getOrNull()
+        } else {
+            null
+        }
+
+        synchronized(this) {
+            val entries = loadEntries()
+            if (stream != null) {
+                // Touch the entry so the access order survives a restart too
+                entries.remove(name)?.let { entries[name] = it }
+                file.setLastModified(System.currentTimeMillis())
+            } else {
+                entries.remove(name)?.let { totalBytes -= it }
+                file.delete()
+            }
+        }
+
+        recordLookup(hit = stream != null)
+        return stream
+    }
+
+    /**
+     * Downsample the image in [source] to the given size bucket and store it in the cache.
+     *
+     * The [source] is not consumed if nothing gets cached, which happens when the image is
+     * animated, already small enough, or can't be decoded.
+     *
+     * @return The cached image, or null if nothing was cached.
+     */
+    fun put(key: String, sizeBucket: Int, source: BufferedSource): InputStream? {
+        if (AnimatedImageUtils.isAnimatedGif(source) || AnimatedImageUtils.isAnimatedWebP(source)) {
+            return null
+        }
+
+        val bounds = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+        source.peek().inputStream().use { BitmapFactory.decodeStream(it, null, bounds) }
+
+        val longestSide = maxOf(bounds.outWidth, bounds.outHeight)
+        if (longestSide <= sizeBucket) {
+            return null
+        }
+
+        var sampleSize = 1
+        while (longestSide / (sampleSize * 2) >= sizeBucket) {
+            sampleSize *= 2
+        }
+
+        val sampled = source.peek().inputStream().use {
+            BitmapFactory.decodeStream(it, null, BitmapFactory.Options().apply { inSampleSize = sampleSize })
+        } ?: return null
+
+        val scale = sizeBucket.toFloat() / maxOf(sampled.width, sampled.height)
+        val scaled = if (scale < 1f) {
+            Bitmap.createScaledBitmap(
+                sampled,
+                maxOf(1, (sampled.width * scale).toInt()),
+                maxOf(1, (sampled.height * scale).toInt()),
+                true
+            ).also { if (it !== sampled) sampled.recycle() }
+        } else {
+            sampled
+        }
+
+        val name = fileName(key, sizeBucket)
+        val file = File(directory, name)
+        var tmpFileToClean: File? = null
+
+        try {
+            directory.mkdirs()
+            val tmpFile = File.createTempFile("decoded-", null, directory)
+                .also { tmpFileToClean = it }
+
+            localEncryptedFileOutputStreamFactory.create(tmpFile, FileMetadata())
+                .use { scaled.compress(COMPRESS_FORMAT, COMPRESS_QUALITY, it) }
+
+            check(tmpFile.renameTo(file)) {
+                "Failed to rename temporary file ${tmpFile.absolutePath} to $file"
+            }
+
+            tmpFileToClean = null
+            onEntryWritten(name, file.length())
+        } catch (e: Exception) {
+            Log.w(TAG, "Failed to cache decoded image", e)
+            return null
+        } finally {
+            scaled.recycle()
+            tmpFileToClean?.delete()
+        }
+
+        return runCatching { localEncryptedFileInputStreamFactory.create(file) }.getOrNull()
+    }
+
+    private fun onEntryWritten(name: String, size: Long) = synchronized(this) {
+        val entries = loadEntries()
+        entries.put(name, size)?.let { totalBytes -= it }
+        totalBytes += size
+
+        val iterator = entries.entries.iterator()
+        while (totalBytes > MAX_TOTAL_BYTES && iterator.hasNext()) {
+            val (eldest, eldestSize) = iterator.next()
+            if (eldest == name) continue
+
+            iterator.remove()
+            totalBytes -= eldestSize
+            File(directory, eldest).delete()
+        }
+    }
+
+    private fun loadEntries(): LinkedHashMap<String, Long> {
+        entries?.let { return it }
+
+        val loaded = LinkedHashMap<String, Long>(16, 0.75f, true)
+        directory.listFiles()
+            ?.filter { !it.name.startsWith("decoded-") }
+            ?.sortedBy { it.lastModified() }
+            ?.forEach {
+                loaded[it.name] = it.length()
+                totalBytes += it.length()
+            }
+
+        entries = loaded
+        return loaded
+    }
+
+    private fun recordLookup(hit: Boolean) {
+        val hitCount = if (hit) hits.incrementAndGet() else hits.get()
+        val missCount = if (hit) misses.get() else misses.incrementAndGet()
+        val lookups = hitCount + missCount
+
+        if (lookups % LOG_EVERY_LOOKUPS == 0) {
+            Log.d(TAG, "Hit ratio: ${hitCount * 100 / lookups}% of $lookups lookups, $totalBytes bytes cached")
+        }
+    }
+
+    companion object {
+        private const val TAG = "DecodedImageDiskCache"
+        private const val SUBDIRECTORY = "decoded_images"
+
+        private const val MAX_TOTAL_BYTES = 20L * 1024 * 1024
+        private const val MIN_SIZE_BUCKET = 64
+        private const val MAX_SIZE_BUCKET = 1024
+        private const val LOG_EVERY_LOOKUPS = 100
+
+        private const val COMPRESS_QUALITY = 90
+
+        @Suppress("DEPRECATION")
+        private val COMPRESS_FORMAT = if (Build.VERSION.SDK_INT >= 30)
+            Bitmap.CompressFormat.WEBP_LOSSY
+        else
+            Bitmap.CompressFormat.WEBP
+
+        /**
+         * @return The size bucket that a request of the given size should use, or null if the
+         * request shouldn't go through this cache because it's unbounded or too large.
+         */
+        fun sizeBucket(size: Size): Int? {
+            val longestSide = maxOf(size.width.pixelsOrZero(), size.height.pixelsOrZero())
+            if (longestSide == 0 || longestSide > MAX_SIZE_BUCKET) {
+                return null
+            }
+
+            return Integer.highestOneBit(longestSide - 1).shl(1).coerceIn(MIN_SIZE_BUCKET, MAX_SIZE_BUCKET)
+        }
+
+        private fun Dimension.pixelsOrZero(): Int = (this as? Dimension.Pixels)?.px ?: 0
+
+        private fun fileName(key: String, sizeBucket: Int): String {
+            val hash = MessageDigest.getInstance("SHA-256")
+            hash.update(key.toByteArray())
+            return "${hash.digest().toHexString()}-$sizeBucket"
+        }
+    }
+}
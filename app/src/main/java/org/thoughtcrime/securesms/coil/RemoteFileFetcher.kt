@@ -13,10 +13,12 @@ import dagger.assisted.Assisted
 import dagger.assisted.AssistedFactory
 import dagger.assisted.AssistedInject
 import dagger.hilt.android.qualifiers.ApplicationContext
+import okio.BufferedSource
 import okio.FileSystem
 import okio.buffer
 import okio.source
 import org.session.libsession.utilities.recipients.RemoteFile
+import org.session.libsignal.utilities.Log
 import org.thoughtcrime.securesms.attachments.AvatarDownloadManager
 
 class RemoteFileFetcher @AssistedInject constructor(
@@ -24,8 +26,22 @@ class RemoteFileFetcher @AssistedInject constructor(
     @Assisted private val options: Options,
     @param:ApplicationContext private val context: Context,
     private val avatarDownloadManager: AvatarDownloadManager,
+    private val decodedImageDiskCache: DecodedImageDiskCache,
+    private val keyer: RemoteFileKeyer,
 ) : Fetcher {
     override suspend fun fetch(): FetchResult? {
+        // Small requests are served from, and fill, the downsampled image cache, so we don't
+        // have to decrypt and decode the full-size image every time it's needed again. A cached
+        // copy is good even when the original is gone and we can't download it again.
+        val sizeBucket = DecodedImageDiskCache.sizeBucket(options.size)
+        val cacheKey = keyer.key(file)
+
+        if (sizeBucket != null) {
+            decodedImageDiskCache.get(cacheKey, sizeBucket)?.let {
+                return sourceFetchResult(it.source().buffer(), DataSource.DISK)
+            }
+        }
+
         val downloadedFile = AvatarDownloadManager.computeFileName(context, file)
 
         // Check if the file already exists in the local storage, otherwise enqueue a download and
@@ -39,9 +55,26 @@ class RemoteFileFetcher @AssistedInject constructor(
             }
         }
 
+        val source = avatarDownloadManager.download(file).source().buffer()
+
+        if (sizeBucket != null) {
+            val cached = runCatching { decodedImageDiskCache.put(cacheKey, sizeBucket, source) }
+                .onFailure { Log.w(TAG, "Failed to cache downsampled image for $file", it) }
+                .getOrNull()
+
+            if (cached != null) {
+                source.close()
+                return sourceFetchResult(cached.source().buffer(), dataSource)
+            }
+        }
+
+        return sourceFetchResult(source, dataSource)
+    }
+
+    private fun sourceFetchResult(source: BufferedSource, dataSource: DataSource): SourceFetchResult {
         return SourceFetchResult(
             source = ImageSource(
-                source = avatarDownloadManager.download(file).source().buffer(),
+                source = source,
                 fileSystem = FileSystem.SYSTEM,
                 metadata = null
             ),
@@ -50,6 +83,10 @@ class RemoteFileFetcher @AssistedInject constructor(
         )
     }
 
+    companion object {
+        private const val TAG = "RemoteFileFetcher"
+    }
+
     @AssistedFactory
     abstract class Factory : Fetcher.Factory<RemoteFile> {
         abstract fun create(remoteFile: RemoteFile, options: Options): RemoteFileFetcher
@@ -10,7 +10,9 @@ class RemoteFileKeyer @Inject constructor() : Keyer<RemoteFile> {
     override fun key(
         data: RemoteFile,
         options: Options
-    ): String {
+    ): String = key(data)
+
+    fun key(data: RemoteFile): String {
         return when (data) {
             is RemoteFile.Encrypted -> "${data.url}-${data.key.data.toHexString()}"
             is RemoteFile.Community -> "${data.communityServerBaseUrl}-${data.roomId}-${data.fileId}"
@@ -22,6 +22,7 @@ import org.session.libsignal.utilities.Log;
 import org.thoughtcrime.securesms.util.LimitedInputStream;
 import org.session.libsession.utilities.Util;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -45,27 +46,92 @@ public class ClassicDecryptingPartInputStream {
   private static final int IV_LENGTH  = 16;
   private static final int MAC_LENGTH = 20;
 
+  private static final int BLOCK_LENGTH = 16;
+
   public static InputStream createFor(@NonNull AttachmentSecret attachmentSecret, @NonNull File file)
       throws IOException
   {
-    try {
-      if (file.length() <= IV_LENGTH + MAC_LENGTH) {
-        throw new IOException("File too short");
-      }
+    return createFor(attachmentSecret, file, 0);
+  }
+
+  public static InputStream createFor(@NonNull AttachmentSecret attachmentSecret, @NonNull File file, long offset)
+      throws IOException
+  {
+    return createRandomAccessFor(attachmentSecret, file).open(offset);
+  }
 
-      verifyMac(attachmentSecret, file);
+  /**
+   * Verify the MAC of the given file once, returning a reader that can then decrypt from any
+   * offset without going through the file again.
+   */
+  public static RandomAccessReader createRandomAccessFor(@NonNull AttachmentSecret attachmentSecret, @NonNull File file)
+      throws IOException
+  {
+    if (file.length() <= IV_LENGTH + MAC_LENGTH) {
+      throw new IOException("File too short");
+    }
+
+    verifyMac(attachmentSecret, file);
+
+    return new RandomAccessReader(attachmentSecret, file);
+  }
+
+  /**
+   * Decrypts a MAC-verified classic part from arbitrary offsets.
+   *
+   * In CBC mode a plaintext block only depends on its own ciphertext block and the one before it,
+   * so a read from any offset can start by using the preceding ciphertext block as the IV, rather
+   * than decrypting everything from the start of the file.
+   */
+  public static class RandomAccessReader {
+
+    private final AttachmentSecret attachmentSecret;
+    private final File             file;
+    private final long             cipherTextLength;
+
+    private RandomAccessReader(@NonNull AttachmentSecret attachmentSecret, @NonNull File file) {
+      this.attachmentSecret = attachmentSecret;
+      this.file             = file;
+      this.cipherTextLength = file.length() - IV_LENGTH - MAC_LENGTH;
+    }
+
+    public InputStream open(long offset) throws IOException {
+      long blockOffset = offset - (offset % BLOCK_LENGTH);
+
+      if (offset < 0 || blockOffset >= cipherTextLength) {
+        return new ByteArrayInputStream(new byte[0]);
+      }
 
       FileInputStream fileStream = new FileInputStream(file);
-      byte[]          ivBytes    = new byte[IV_LENGTH];
-      readFully(fileStream, ivBytes);
 
-      Cipher          cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      IvParameterSpec iv     = new IvParameterSpec(ivBytes);
-      cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(attachmentSecret.getClassicCipherKey(), "AES"), iv);
+      try {
+        // The IV of the first block is the file header, for every other block it's the ciphertext
+        // block right before it. Either way it sits just before the block we start from.
+        byte[] ivBytes = new byte[IV_LENGTH];
+
+        skipFully(fileStream, blockOffset);
+        readFully(fileStream, ivBytes);
 
-      return new CipherInputStreamWrapper(new LimitedInputStream(fileStream, file.length() - MAC_LENGTH - IV_LENGTH), cipher);
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException e) {
-      throw new AssertionError(e);
+        Cipher          cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        IvParameterSpec iv     = new IvParameterSpec(ivBytes);
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(attachmentSecret.getClassicCipherKey(), "AES"), iv);
+
+        InputStream inputStream = new CipherInputStreamWrapper(new LimitedInputStream(fileStream, cipherTextLength - blockOffset), cipher);
+        long        remainder   = offset - blockOffset;
+
+        if (inputStream.skip(remainder) != remainder) {
+          inputStream.close();
+          return new ByteArrayInputStream(new byte[0]);
+        }
+
+        return inputStream;
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException e) {
+        fileStream.close();
+        throw new AssertionError(e);
+      } catch (IOException e) {
+        fileStream.close();
+        throw e;
+      }
     }
   }
 
@@ -115,8 +181,15 @@ public class ClassicDecryptingPartInputStream {
     for (;;) {
       int read = in.read(buffer, offset, buffer.length-offset);
 
-      if (read + offset < buffer.length) offset += read;
-      else                               return;
+      if (read == -1)                         throw new IOException("Unexpected end of stream");
+      else if (read + offset < buffer.length) offset += read;
+      else                                    return;
+    }
+  }
+
+  private static void skipFully(InputStream in, long count) throws IOException {
+    if (in.skip(count) != count) {
+      throw new IOException("Unable to seek");
     }
   }
 
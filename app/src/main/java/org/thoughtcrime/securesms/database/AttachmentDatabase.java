@@ -21,19 +21,22 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Bitmap;
+import android.media.MediaDataSource;
 import android.media.MediaMetadataRetriever;
 import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Pair;
 
 import androidx.annotation.VisibleForTesting;
+import androidx.collection.LongList;
+import androidx.collection.MutableLongObjectMap;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 
 import com.bumptech.glide.Glide;
 
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
 
 import org.json.JSONArray;
-import org.json.JSONException;
 import org.jspecify.annotations.NonNull;
 import org.jspecify.annotations.Nullable;
 import org.session.libsession.messaging.sending_receiving.attachments.Attachment;
@@ -44,8 +47,8 @@ import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAt
 import org.session.libsession.utilities.MediaTypes;
 import org.session.libsession.utilities.Util;
 import org.session.libsignal.utilities.ExternalStorageUtil;
+import org.session.libsignal.utilities.Hex;
 import org.session.libsignal.utilities.Log;
-import org.session.libsignal.utilities.SaneJSONObject;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.ClassicDecryptingPartInputStream;
 import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
@@ -62,23 +65,30 @@ import org.thoughtcrime.securesms.util.MediaUtil.ThumbnailData;
 import org.thoughtcrime.securesms.video.EncryptedMediaDataSource;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
@@ -98,7 +108,6 @@ public class AttachmentDatabase extends Database {
 
   public  static final String TABLE_NAME             = "part";
   public  static final String ROW_ID                 = "_id";
-          static final String ATTACHMENT_JSON_ALIAS  = "attachment_json";
   public  static final String MMS_ID                 = "mid";
           static final String CONTENT_TYPE           = "ct";
           static final String NAME                   = "name";
@@ -128,6 +137,13 @@ public class AttachmentDatabase extends Database {
   // "audio/*" mime type only related columns.
           static final String AUDIO_VISUAL_SAMPLES   = "audio_visual_samples";  // Small amount of audio byte samples to visualise the content (e.g. draw waveform).
           static final String AUDIO_DURATION         = "audio_duration";        // Duration of the audio track in milliseconds.
+  // Keyed MAC of the plaintext in DATA, rows with the same hash share the same file.
+  private static final String DATA_HASH              = "data_hash";
+  // The URL the DATA was downloaded from, kept so the same file doesn't have to be downloaded twice.
+  private static final String SOURCE_URL             = "source_url";
+  // The key and digest the DATA was downloaded with, only data downloaded with both can be reused.
+  private static final String SOURCE_KEY             = "source_key";
+  private static final String SOURCE_DIGEST          = "source_digest";
 
   private static final String PART_ID_WHERE = ROW_ID + " = ? AND " + UNIQUE_ID + " = ?";
   private static final String ROW_ID_WHERE = ROW_ID + " = ?";
@@ -163,7 +179,24 @@ public class AttachmentDatabase extends Database {
     "CREATE INDEX IF NOT EXISTS part_sticker_pack_id_index ON " + TABLE_NAME + " (" + STICKER_PACK_ID + ");",
   };
 
-  final ExecutorService thumbnailExecutor = Util.newSingleThreadedLifoExecutor();
+  public static void addDataDeduplicationColumns(SupportSQLiteDatabase db) {
+    db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + DATA_HASH + " TEXT DEFAULT NULL");
+    db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + SOURCE_URL + " TEXT DEFAULT NULL");
+    db.execSQL("CREATE INDEX IF NOT EXISTS part_data_hash_index ON " + TABLE_NAME + " (" + DATA_HASH + ") WHERE " + DATA_HASH + " IS NOT NULL");
+    db.execSQL("CREATE INDEX IF NOT EXISTS part_source_url_index ON " + TABLE_NAME + " (" + SOURCE_URL + ") WHERE " + SOURCE_URL + " IS NOT NULL");
+    db.execSQL("CREATE INDEX IF NOT EXISTS part_data_index ON " + TABLE_NAME + " (" + DATA + ") WHERE " + DATA + " IS NOT NULL");
+  }
+
+  public static void addSourceKeyAndDigestColumns(SupportSQLiteDatabase db) {
+    db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + SOURCE_KEY + " TEXT DEFAULT NULL");
+    db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + SOURCE_DIGEST + " BLOB DEFAULT NULL");
+  }
+
+  private final ExecutorService thumbnailExecutor = Util.newLifoExecutor(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+  // Thumbnail generations that are queued or running, so that concurrent requests for the same
+  // attachment share the work instead of generating and persisting the thumbnail more than once.
+  private final Map<AttachmentId, Future<Boolean>> inFlightThumbnails = new ConcurrentHashMap<>();
 
   private final Lazy<@NonNull AttachmentSecret> attachmentSecret;
 
@@ -195,6 +228,17 @@ public class AttachmentDatabase extends Database {
     else                    return dataStream;
   }
 
+  /**
+   * @return A media data source that decrypts the attachment data as it's read, rather than
+   * loading all of it in memory, or null if the attachment has no data.
+   */
+  public @Nullable MediaDataSource getMediaDataSource(@NonNull AttachmentId attachmentId) {
+    DataInfo dataInfo = getAttachmentDataFileInfo(attachmentId, DATA);
+
+    if (dataInfo == null) return null;
+    else                  return new EncryptedMediaDataSource(attachmentSecret.get(), dataInfo.file, dataInfo.random, dataInfo.length);
+  }
+
   public @NonNull InputStream getThumbnailStream(@NonNull AttachmentId attachmentId)
       throws IOException
   {
@@ -206,16 +250,46 @@ public class AttachmentDatabase extends Database {
     }
 
     try {
-      InputStream generatedStream = thumbnailExecutor.submit(new ThumbnailFetchCallable(attachmentId)).get();
-
-      if (generatedStream == null) throw new FileNotFoundException("No thumbnail stream available: " + attachmentId);
-      else                         return generatedStream;
+      if (!generateThumbnail(attachmentId).get()) {
+        throw new FileNotFoundException("No thumbnail stream available: " + attachmentId);
+      }
     } catch (InterruptedException ie) {
       throw new AssertionError("interrupted");
     } catch (ExecutionException ee) {
       Log.w(TAG, ee);
       throw new IOException(ee);
     }
+
+    InputStream generatedStream = getDataStream(attachmentId, THUMBNAIL, 0);
+
+    if (generatedStream == null) throw new FileNotFoundException("No thumbnail stream available: " + attachmentId);
+    else                         return generatedStream;
+  }
+
+  /**
+   * Generate the thumbnail of the given attachment in the background, if it needs one and
+   * doesn't have one yet. Requests for an attachment whose thumbnail is already being generated
+   * share the existing work.
+   *
+   * @return A future that completes with whether the attachment has a thumbnail.
+   */
+  public @NonNull Future<Boolean> generateThumbnail(@NonNull AttachmentId attachmentId) {
+    FutureTask<Boolean> task     = new FutureTask<>(new ThumbnailFetchCallable(attachmentId));
+    Future<Boolean>     existing = inFlightThumbnails.putIfAbsent(attachmentId, task);
+
+    if (existing != null) {
+      return existing;
+    }
+
+    thumbnailExecutor.execute(() -> {
+      try {
+        task.run();
+      } finally {
+        inFlightThumbnails.remove(attachmentId, task);
+      }
+    });
+
+    return task;
   }
 
   public @Nullable DatabaseAttachment getAttachment(@NonNull AttachmentId attachmentId)
@@ -265,6 +339,41 @@ public class AttachmentDatabase extends Database {
     }
   }
 
+  /**
+   * Load the attachments of all the given messages, including the quote attachments, with a
+   * single query. The attachments of each message are put into {@code out}, keyed by the message id.
+   */
+  void loadAttachmentsForMessages(@NonNull LongList mmsIds,
+                                  @NonNull MutableLongObjectMap<List<DatabaseAttachment>> out)
+  {
+    if (mmsIds.isEmpty()) return;
+
+    final String sql = "SELECT " + TextUtils.join(", ", PROJECTION) + " FROM " + TABLE_NAME + " " +
+            "WHERE " + MMS_ID + " IN (SELECT value FROM json_each(?)) " +
+            "ORDER BY " + ROW_ID;
+
+    final StringBuilder arg = new StringBuilder("[");
+    for (int i = 0; i < mmsIds.getSize(); i++) {
+      if (i > 0) arg.append(',');
+      arg.append(mmsIds.get(i));
+    }
+    arg.append(']');
+
+    try (final Cursor cursor = getReadableDatabase().rawQuery(sql, arg.toString())) {
+      while (cursor.moveToNext()) {
+        DatabaseAttachment       attachment  = getAttachment(cursor).get(0);
+        List<DatabaseAttachment> attachments = out.get(attachment.getMmsId());
+
+        if (attachments == null) {
+          attachments = new ArrayList<>(1);
+          out.set(attachment.getMmsId(), attachments);
+        }
+
+        attachments.add(attachment);
+      }
+    }
+  }
+
   public @NonNull List<DatabaseAttachment> getAllAttachments() {
     SQLiteDatabase database = getReadableDatabase();
     Cursor cursor = null;
@@ -296,19 +405,42 @@ public class AttachmentDatabase extends Database {
 
     final String arg = new JSONArray(mmsMessageIDs).toString();
 
-    final List<MmsAttachmentInfo> deletedAttachments;
+    final SQLiteDatabase          database           = getWritableDatabase();
+    final List<MmsAttachmentInfo> deletedAttachments = new ArrayList<>();
 
-    try (final Cursor cursor = getWritableDatabase().rawQuery(sql, arg)) {
-      deletedAttachments = new ArrayList<>(cursor.getCount());
-      while (cursor.moveToNext()) {
-          deletedAttachments.add(new MmsAttachmentInfo(cursor.getString(0), cursor.getString(1), cursor.getString(2)));
+    database.beginTransaction();
+    try {
+      final List<MmsAttachmentInfo> deletedRows;
+      final List<String>            dataFiles;
+
+      try (final Cursor cursor = database.rawQuery(sql, arg)) {
+        deletedRows = new ArrayList<>(cursor.getCount());
+        dataFiles   = new ArrayList<>(cursor.getCount());
+        while (cursor.moveToNext()) {
+          deletedRows.add(new MmsAttachmentInfo(cursor.getString(0), cursor.getString(1), cursor.getString(2)));
+          if (!cursor.isNull(0)) dataFiles.add(cursor.getString(0));
+        }
       }
+
+      // Data files that are shared with attachments of other messages have to stay on disk
+      final Set<String> referencedDataFiles = getReferencedDataFiles(dataFiles);
+      for (MmsAttachmentInfo info : deletedRows) {
+        if (info.getDataFile() != null && referencedDataFiles.contains(info.getDataFile())) {
+          deletedAttachments.add(new MmsAttachmentInfo(null, info.getThumbnailFile(), info.getContentType()));
+        } else {
+          deletedAttachments.add(info);
+        }
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
     }
 
     deleteAttachmentsOnDisk(deletedAttachments);
 
     for (final Long mmsId : mmsMessageIDs) {
-      mutableChangesNotification.tryEmit(mmsId);
+      TransactionSideEffects.emitAfterCommit(mutableChangesNotification, mmsId);
     }
   }
 
@@ -336,9 +468,19 @@ public class AttachmentDatabase extends Database {
       String thumbnail   = cursor.getString(1);
       String contentType = cursor.getString(2);
 
-      database.delete(TABLE_NAME, PART_ID_WHERE, id.toStrings());
+      database.beginTransaction();
+      try {
+        database.delete(TABLE_NAME, PART_ID_WHERE, id.toStrings());
+        if (data != null && !getReferencedDataFiles(Collections.singletonList(data)).isEmpty()) {
+          data = null;
+        }
+        database.setTransactionSuccessful();
+      } finally {
+        database.endTransaction();
+      }
+
       deleteAttachmentOnDisk(data, thumbnail, contentType);
-      mutableChangesNotification.tryEmit(id);
+      TransactionSideEffects.emitAfterCommit(mutableChangesNotification, id);
     }
   }
 
@@ -381,6 +523,137 @@ public class AttachmentDatabase extends Database {
     }
   }
 
+  /**
+   * @return The files among the given ones that are still the DATA of an attachment.
+   */
+  private @NonNull Set<String> getReferencedDataFiles(@NonNull Collection<String> dataFiles) {
+    if (dataFiles.isEmpty()) {
+      return Collections.emptySet();
+    }
+
+    final String sql = "SELECT DISTINCT " + DATA + " FROM " + TABLE_NAME + " " +
+            "WHERE " + DATA + " IN (SELECT value FROM json_each(?))";
+
+    final Set<String> referenced = new HashSet<>();
+    try (Cursor cursor = getReadableDatabase().rawQuery(sql, new JSONArray(dataFiles).toString())) {
+      while (cursor.moveToNext()) {
+        referenced.add(cursor.getString(0));
+      }
+    }
+
+    return referenced;
+  }
+
+  /**
+   * Deletes a data file that was replaced or never made it into the table, unless another
+   * attachment is using it.
+   */
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  private void deleteDataFileIfUnreferenced(@NonNull File file) {
+    if (getReferencedDataFiles(Collections.singletonList(file.getAbsolutePath())).isEmpty()) {
+      file.delete();
+    }
+  }
+
+  /**
+   * Looks for an attachment that already stores the same content as the freshly written data.
+   * If there's one, the fresh file is deleted and the existing file is used instead.
+   *
+   * Must be called in the same transaction as the write that stores the returned data, so that
+   * the existing file can't be deleted in between.
+   */
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  private @NonNull DataInfo deduplicate(@NonNull DataInfo dataInfo) {
+    if (dataInfo.hash == null) {
+      return dataInfo;
+    }
+
+    try (Cursor cursor = getReadableDatabase().query(TABLE_NAME,
+                                                     new String[]{DATA, DATA_RANDOM},
+                                                     DATA_HASH + " = ? AND " + DATA + " IS NOT NULL AND " + DATA + " != ?",
+                                                     new String[]{dataInfo.hash, dataInfo.file.getAbsolutePath()},
+                                                     null, null, null, "1"))
+    {
+      if (cursor == null || !cursor.moveToFirst()) {
+        return dataInfo;
+      }
+
+      File existing = new File(cursor.getString(0));
+      if (!existing.exists()) {
+        return dataInfo;
+      }
+
+      Log.d(TAG, "Reusing " + existing.getName() + " instead of storing " + dataInfo.length + " bytes again");
+      dataInfo.file.delete();
+      return new DataInfo(existing, dataInfo.length, cursor.getBlob(1), dataInfo.hash);
+    }
+  }
+
+  /**
+   * Completes the download of an attachment by reusing the data of another attachment that was
+   * downloaded from the same url, with the same key and digest, if there's one.
+   * <p>
+   * The url alone isn't enough: a pointer could name a url we already downloaded along with a
+   * key or digest of its own, and must then be downloaded and verified like any other.
+   *
+   * @return Whether the attachment now has its data.
+   */
+  public boolean reuseDownloadedData(@NonNull AttachmentId attachmentId, @NonNull String url) {
+    if (TextUtils.isEmpty(url)) {
+      return false;
+    }
+
+    DatabaseAttachment placeholder = getAttachment(attachmentId);
+    if (placeholder == null || (placeholder.isQuote() && !placeholder.getContentType().startsWith("image"))) {
+      return false;
+    }
+
+    SQLiteDatabase database = getWritableDatabase();
+    boolean        updated  = false;
+    String         sql      = "SELECT " + DATA + ", " + DATA_RANDOM + ", " + SIZE + ", " + DATA_HASH + ", " + AUDIO_DURATION +
+                              " FROM " + TABLE_NAME +
+                              " WHERE " + SOURCE_URL + " = ? AND " + SOURCE_KEY + " IS ? AND " + SOURCE_DIGEST + " IS ? AND " + DATA + " IS NOT NULL" +
+                              " LIMIT 1";
+
+    database.beginTransaction();
+    try (Cursor cursor = database.rawQuery(sql, url, placeholder.getKey(), placeholder.getDigest())) {
+      if (cursor != null && cursor.moveToFirst() && new File(cursor.getString(0)).exists()) {
+        ContentValues values = new ContentValues();
+        values.put(DATA, cursor.getString(0));
+        values.put(DATA_RANDOM, cursor.getBlob(1));
+        values.put(SIZE, cursor.getLong(2));
+        values.put(DATA_HASH, cursor.getString(3));
+        values.put(SOURCE_URL, url);
+        values.put(SOURCE_KEY, placeholder.getKey());
+        values.put(SOURCE_DIGEST, placeholder.getDigest());
+        if (!cursor.isNull(4)) {
+          values.put(AUDIO_DURATION, cursor.getLong(4));
+        }
+
+        values.put(TRANSFER_STATE, AttachmentState.DONE.getValue());
+        values.put(CONTENT_DISPOSITION, (String)null);
+        values.put(DIGEST, (byte[])null);
+        values.put(NAME, (String) null);
+        values.put(FAST_PREFLIGHT_ID, (String)null);
+        values.put(URL, "");
+
+        updated = database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings()) > 0;
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
+    if (updated) {
+      Log.d(TAG, "Reused already downloaded data for " + attachmentId);
+      TransactionSideEffects.emitAfterCommit(mutableChangesNotification, attachmentId);
+      generateThumbnail(attachmentId);
+    }
+
+    return updated;
+  }
+
   public void insertAttachmentsForPlaceholder(long mmsId, @NonNull AttachmentId attachmentId, @NonNull InputStream inputStream)
       throws MmsException
   {
@@ -388,31 +661,51 @@ public class AttachmentDatabase extends Database {
     SQLiteDatabase     database    = getWritableDatabase();
     ContentValues      values      = new ContentValues();
     DataInfo           dataInfo    = setAttachmentData(inputStream);
+    boolean            thumbnail   = placeholder != null && placeholder.isQuote() && !placeholder.getContentType().startsWith("image");
+    boolean            updated;
+
+    database.beginTransaction();
+    try {
+      if (thumbnail) {
+        values.put(THUMBNAIL, dataInfo.file.getAbsolutePath());
+        values.put(THUMBNAIL_RANDOM, dataInfo.random);
+      } else {
+        dataInfo = deduplicate(dataInfo);
+        values.put(DATA, dataInfo.file.getAbsolutePath());
+        values.put(SIZE, dataInfo.length);
+        values.put(DATA_RANDOM, dataInfo.random);
+        values.put(DATA_HASH, dataInfo.hash);
+
+        if (placeholder != null && !TextUtils.isEmpty(placeholder.getUrl())) {
+          values.put(SOURCE_URL, placeholder.getUrl());
+          values.put(SOURCE_KEY, placeholder.getKey());
+          values.put(SOURCE_DIGEST, placeholder.getDigest());
+        }
+      }
+
+      values.put(TRANSFER_STATE, AttachmentState.DONE.getValue());
+      values.put(CONTENT_DISPOSITION, (String)null);
+      values.put(DIGEST, (byte[])null);
+      values.put(NAME, (String) null);
+      values.put(FAST_PREFLIGHT_ID, (String)null);
+      values.put(URL, "");
+
+      updated = database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings()) > 0;
 
-    if (placeholder != null && placeholder.isQuote() && !placeholder.getContentType().startsWith("image")) {
-      values.put(THUMBNAIL, dataInfo.file.getAbsolutePath());
-      values.put(THUMBNAIL_RANDOM, dataInfo.random);
-    } else {
-      values.put(DATA, dataInfo.file.getAbsolutePath());
-      values.put(SIZE, dataInfo.length);
-      values.put(DATA_RANDOM, dataInfo.random);
+      if (!updated) {
+        deleteDataFileIfUnreferenced(dataInfo.file);
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
     }
 
-    values.put(TRANSFER_STATE, AttachmentState.DONE.getValue());
-    values.put(CONTENT_DISPOSITION, (String)null);
-    values.put(DIGEST, (byte[])null);
-    values.put(NAME, (String) null);
-    values.put(FAST_PREFLIGHT_ID, (String)null);
-    values.put(URL, "");
-
-    if (database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings()) == 0) {
-      //noinspection ResultOfMethodCallIgnored
-      dataInfo.file.delete();
-    } else {
-      mutableChangesNotification.tryEmit(attachmentId);
+    if (updated) {
+      TransactionSideEffects.emitAfterCommit(mutableChangesNotification, attachmentId);
     }
 
-    thumbnailExecutor.submit(new ThumbnailFetchCallable(attachmentId));
+    generateThumbnail(attachmentId);
   }
 
   public void updateAttachmentAfterUploadSucceeded(@NonNull AttachmentId id, @NonNull Attachment attachment) {
@@ -481,22 +774,33 @@ public class AttachmentDatabase extends Database {
 
     dataInfo = setAttachmentData(mediaStream.getStream());
 
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(SIZE, dataInfo.length);
-    contentValues.put(CONTENT_TYPE, mediaStream.getMimeType());
-    contentValues.put(WIDTH, mediaStream.getWidth());
-    contentValues.put(HEIGHT, mediaStream.getHeight());
-    contentValues.put(DATA_RANDOM, dataInfo.random);
-    contentValues.put(DATA, dataInfo.file.getAbsolutePath());
+    database.beginTransaction();
+    try {
+      dataInfo = deduplicate(dataInfo);
+
+      ContentValues contentValues = new ContentValues();
+      contentValues.put(SIZE, dataInfo.length);
+      contentValues.put(CONTENT_TYPE, mediaStream.getMimeType());
+      contentValues.put(WIDTH, mediaStream.getWidth());
+      contentValues.put(HEIGHT, mediaStream.getHeight());
+      contentValues.put(DATA_RANDOM, dataInfo.random);
+      contentValues.put(DATA, dataInfo.file.getAbsolutePath());
+      contentValues.put(DATA_HASH, dataInfo.hash);
 
-    database.update(TABLE_NAME, contentValues, PART_ID_WHERE, databaseAttachment.getAttachmentId().toStrings());
+      database.update(TABLE_NAME, contentValues, PART_ID_WHERE, databaseAttachment.getAttachmentId().toStrings());
 
-    if (oldFile != null && oldFile.exists()) {
-        try {
-            oldFile.delete();
-        } catch (Exception e) {
-            Log.w(TAG, "Error deleting an old attachment file", e);
-        }
+      // The old file may be shared with other attachments, or even be the deduplicated new one
+      if (oldFile != null && oldFile.exists()) {
+          try {
+              deleteDataFileIfUnreferenced(oldFile);
+          } catch (Exception e) {
+              Log.w(TAG, "Error deleting an old attachment file", e);
+          }
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
     }
 
     return new DatabaseAttachment(databaseAttachment.getAttachmentId(),
@@ -527,7 +831,7 @@ public class AttachmentDatabase extends Database {
 
     values.put(TRANSFER_STATE, transferState);
     if (database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings()) > 0) {
-      mutableChangesNotification.tryEmit(attachmentId);
+      TransactionSideEffects.emitAfterCommit(mutableChangesNotification, attachmentId);
     }
   }
 
@@ -545,15 +849,7 @@ public class AttachmentDatabase extends Database {
       if (dataInfo.random != null && dataInfo.random.length == 32) {
         return ModernDecryptingPartInputStream.createFor(attachmentSecret.get(), dataInfo.random, dataInfo.file, offset);
       } else {
-        InputStream stream  = ClassicDecryptingPartInputStream.createFor(attachmentSecret.get(), dataInfo.file);
-        long        skipped = stream.skip(offset);
-
-        if (skipped != offset) {
-          Log.w(TAG, "Skip failed: " + skipped + " vs " + offset);
-          return null;
-        }
-
-        return stream;
+        return ClassicDecryptingPartInputStream.createFor(attachmentSecret.get(), dataInfo.file, offset);
       }
     } catch (IOException e) {
       Log.w(TAG, e);
@@ -616,81 +912,46 @@ public class AttachmentDatabase extends Database {
 
       Log.d("AttachmentDatabase", "Writing attachment data to: " + dataFile.getAbsolutePath());
       Pair<byte[], OutputStream> out    = ModernEncryptingPartOutputStream.createFor(attachmentSecret.get(), dataFile, false);
-      long                       length = Util.copy(in, out.second);
+      HashingInputStream         hashed = new HashingInputStream(in, getDataHashKey());
+      long                       length = Util.copy(hashed, out.second);
 
-      return new DataInfo(dataFile, length, out.first);
-    } catch (IOException e) {
+      return new DataInfo(dataFile, length, out.first, hashed.getHash());
+    } catch (IOException | GeneralSecurityException e) {
       throw new MmsException(e);
     }
   }
 
-  public List<DatabaseAttachment> getAttachment(@NonNull Cursor cursor) {
-    try {
-      if (cursor.getColumnIndex(AttachmentDatabase.ATTACHMENT_JSON_ALIAS) != -1) {
-        if (cursor.isNull(cursor.getColumnIndexOrThrow(ATTACHMENT_JSON_ALIAS))) {
-          return new LinkedList<>();
-        }
-
-        Set<DatabaseAttachment> result = new TreeSet<>((o1, o2) -> o1.getAttachmentId().equals(o2.getAttachmentId()) ? 0 : 1);
-        JSONArray                array  = new JSONArray(cursor.getString(cursor.getColumnIndexOrThrow(ATTACHMENT_JSON_ALIAS)));
-
-        for (int i=0;i<array.length();i++) {
-          SaneJSONObject object = new SaneJSONObject(array.getJSONObject(i));
-
-          if (!object.isNull(ROW_ID)) {
-            result.add(new DatabaseAttachment(new AttachmentId(object.getLong(ROW_ID), object.getLong(UNIQUE_ID)),
-                                              object.getLong(MMS_ID),
-                                              !TextUtils.isEmpty(object.getString(DATA)),
-                                              !TextUtils.isEmpty(object.getString(THUMBNAIL)),
-                                              object.getString(CONTENT_TYPE),
-                                              object.getInt(TRANSFER_STATE),
-                                              object.getLong(SIZE),
-                                              object.getString(FILE_NAME),
-                                              object.getString(CONTENT_LOCATION),
-                                              object.getString(CONTENT_DISPOSITION),
-                                              object.getString(NAME),
-                                              null,
-                                              object.getString(FAST_PREFLIGHT_ID),
-                                              object.getInt(VOICE_NOTE) == 1,
-                                              object.getInt(WIDTH),
-                                              object.getInt(HEIGHT),
-                                              object.getInt(QUOTE) == 1,
-                                              object.getString(CAPTION),
-                                              "", // TODO: Not sure if this will break something
-                                              object.getLong(AUDIO_DURATION)));
-          }
-        }
+  private @NonNull byte[] getDataHashKey() throws GeneralSecurityException {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(attachmentSecret.get().getModernKey(), "HmacSHA256"));
+    return mac.doFinal("attachment-data-hash".getBytes());
+  }
 
-        return new ArrayList<>(result);
-      } else {
-        int urlIndex = cursor.getColumnIndex(URL);
-        int audioDurationIndex = cursor.getColumnIndexOrThrow(AUDIO_DURATION);
-        return Collections.singletonList(new DatabaseAttachment(new AttachmentId(cursor.getLong(cursor.getColumnIndexOrThrow(ROW_ID)),
-                                                                                 cursor.getLong(cursor.getColumnIndexOrThrow(UNIQUE_ID))),
-                                                                cursor.getLong(cursor.getColumnIndexOrThrow(MMS_ID)),
-                                                                !cursor.isNull(cursor.getColumnIndexOrThrow(DATA)),
-                                                                !cursor.isNull(cursor.getColumnIndexOrThrow(THUMBNAIL)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_TYPE)),
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(TRANSFER_STATE)),
-                                                                cursor.getLong(cursor.getColumnIndexOrThrow(SIZE)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(FILE_NAME)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_LOCATION)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_DISPOSITION)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(NAME)),
-                                                                cursor.getBlob(cursor.getColumnIndexOrThrow(DIGEST)),
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(FAST_PREFLIGHT_ID)),
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(VOICE_NOTE)) == 1,
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(WIDTH)),
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(HEIGHT)),
-                                                                cursor.getInt(cursor.getColumnIndexOrThrow(QUOTE)) == 1,
-                                                                cursor.getString(cursor.getColumnIndexOrThrow(CAPTION)),
-                                                                urlIndex > 0 ? cursor.getString(urlIndex) : "",
-                                                                cursor.isNull(audioDurationIndex) ? -1L : cursor.getLong(audioDurationIndex))
-                );
-      }
-    } catch (JSONException e) {
-      throw new AssertionError(e);
-    }
+  public List<DatabaseAttachment> getAttachment(@NonNull Cursor cursor) {
+    int urlIndex = cursor.getColumnIndex(URL);
+    int audioDurationIndex = cursor.getColumnIndexOrThrow(AUDIO_DURATION);
+    return Collections.singletonList(new DatabaseAttachment(new AttachmentId(cursor.getLong(cursor.getColumnIndexOrThrow(ROW_ID)),
+                                                                             cursor.getLong(cursor.getColumnIndexOrThrow(UNIQUE_ID))),
+                                                            cursor.getLong(cursor.getColumnIndexOrThrow(MMS_ID)),
+                                                            !cursor.isNull(cursor.getColumnIndexOrThrow(DATA)),
+                                                            !cursor.isNull(cursor.getColumnIndexOrThrow(THUMBNAIL)),
+                                                            cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_TYPE)),
+                                                            cursor.getInt(cursor.getColumnIndexOrThrow(TRANSFER_STATE)),
+                                                            cursor.getLong(cursor.getColumnIndexOrThrow(SIZE)),
+                                                            cursor.getString(cursor.getColumnIndexOrThrow(FILE_NAME)),
+                                                            cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_LOCATION)),
+                                                            cursor.getString(cursor.getColumnIndexOrThrow(CONTENT_DISPOSITION)),
+                                                            cursor.getString(cursor.getColumnIndexOrThrow(NAME)),
+                                                            cursor.getBlob(cursor.getColumnIndexOrThrow(DIGEST)),
+                                                            cursor.getString(cursor.getColumnIndexOrThrow(FAST_PREFLIGHT_ID)),
+                                                            cursor.getInt(cursor.getColumnIndexOrThrow(VOICE_NOTE)) == 1,
+                                                            cursor.getInt(cursor.getColumnIndexOrThrow(WIDTH)),
+                                                            cursor.getInt(cursor.getColumnIndexOrThrow(HEIGHT)),
+                                                            cursor.getInt(cursor.getColumnIndexOrThrow(QUOTE)) == 1,
+                                                            cursor.getString(cursor.getColumnIndexOrThrow(CAPTION)),
+                                                            urlIndex > 0 ? cursor.getString(urlIndex) : "",
+                                                            cursor.isNull(audioDurationIndex) ? -1L : cursor.getLong(audioDurationIndex))
+            );
   }
 
 
@@ -734,13 +995,24 @@ public class AttachmentDatabase extends Database {
       contentValues.put(AUDIO_DURATION, audioDuration);
     }
 
-    if (dataInfo != null) {
-      contentValues.put(DATA, dataInfo.file.getAbsolutePath());
-      contentValues.put(SIZE, dataInfo.length);
-      contentValues.put(DATA_RANDOM, dataInfo.random);
+    long rowId;
+
+    database.beginTransaction();
+    try {
+      if (dataInfo != null) {
+        dataInfo = deduplicate(dataInfo);
+        contentValues.put(DATA, dataInfo.file.getAbsolutePath());
+        contentValues.put(SIZE, dataInfo.length);
+        contentValues.put(DATA_RANDOM, dataInfo.random);
+        contentValues.put(DATA_HASH, dataInfo.hash);
+      }
+
+      rowId = database.insert(TABLE_NAME, null, contentValues);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
     }
 
-    long         rowId        = database.insert(TABLE_NAME, null, contentValues);
     AttachmentId attachmentId = new AttachmentId(rowId, uniqueId);
     Uri          thumbnailUri = attachment.getThumbnailUri();
     boolean      hasThumbnail = false;
@@ -781,7 +1053,7 @@ public class AttachmentDatabase extends Database {
       }
     }
 
-    mutableChangesNotification.tryEmit(attachmentId);
+    TransactionSideEffects.emitAfterCommit(mutableChangesNotification, attachmentId);
 
     return attachmentId;
   }
@@ -804,7 +1076,7 @@ public class AttachmentDatabase extends Database {
 
     database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings());
 
-    mutableChangesNotification.tryEmit(attachmentId);
+    TransactionSideEffects.emitAfterCommit(mutableChangesNotification, attachmentId);
   }
 
   /**
@@ -849,13 +1121,13 @@ public class AttachmentDatabase extends Database {
       extras.getAttachmentId().toStrings());
 
     if (alteredRows > 0) {
-      mutableChangesNotification.tryEmit(extras.getAttachmentId());
+      TransactionSideEffects.emitAfterCommit(mutableChangesNotification, extras.getAttachmentId());
     }
 
     return alteredRows > 0;
   }
 
-  class ThumbnailFetchCallable implements Callable<InputStream> {
+  private class ThumbnailFetchCallable implements Callable<Boolean> {
 
     private final AttachmentId attachmentId;
 
@@ -864,18 +1136,17 @@ public class AttachmentDatabase extends Database {
     }
 
     @Override
-    public @Nullable InputStream call() throws Exception {
+    public Boolean call() throws Exception {
       Log.d(TAG, "Executing thumbnail job...");
-      final InputStream stream = getDataStream(attachmentId, THUMBNAIL, 0);
 
-      if (stream != null) {
-        return stream;
+      if (getAttachmentDataFileInfo(attachmentId, THUMBNAIL) != null) {
+        return true;
       }
 
       DatabaseAttachment attachment = getAttachment(attachmentId);
 
       if (attachment == null || !attachment.hasData()) {
-        return null;
+        return false;
       }
 
       ThumbnailData data = null;
@@ -885,12 +1156,12 @@ public class AttachmentDatabase extends Database {
       }
 
       if (data == null) {
-        return null;
+        return false;
       }
 
       updateAttachmentThumbnail(attachmentId, data.toDataStream(), data.getAspectRatio());
 
-      return getDataStream(attachmentId, THUMBNAIL, 0);
+      return true;
     }
 
     @SuppressLint("NewApi")
@@ -936,11 +1207,54 @@ public class AttachmentDatabase extends Database {
     private final File   file;
     private final long   length;
     private final byte[] random;
+    private final String hash;
 
     private DataInfo(File file, long length, byte[] random) {
+      this(file, length, random, null);
+    }
+
+    private DataInfo(File file, long length, byte[] random, @Nullable String hash) {
       this.file = file;
       this.length = length;
       this.random = random;
+      this.hash = hash;
+    }
+  }
+
+  /**
+   * Computes a keyed hash of everything read through it, so the plaintext of an attachment can
+   * be identified without being kept around.
+   */
+  private static class HashingInputStream extends FilterInputStream {
+    private final Mac mac;
+
+    private HashingInputStream(InputStream in, byte[] key) throws GeneralSecurityException {
+      super(in);
+      this.mac = Mac.getInstance("HmacSHA256");
+      this.mac.init(new SecretKeySpec(key, "HmacSHA256"));
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) mac.update((byte) b);
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read > 0) mac.update(buffer, offset, read);
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      throw new IOException("Skipped bytes would be missing from the hash");
+    }
+
+    private String getHash() {
+      return Hex.toStringCondensed(mac.doFinal());
     }
   }
 }
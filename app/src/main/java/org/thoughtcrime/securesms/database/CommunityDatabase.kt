@@ -1,7 +1,6 @@
 package org.thoughtcrime.securesms.database
 
 import android.content.Context
-import androidx.collection.LruCache
 import dagger.hilt.android.qualifiers.ApplicationContext
 import kotlinx.coroutines.channels.BufferOverflow
 import kotlinx.coroutines.flow.MutableSharedFlow
@@ -13,6 +12,7 @@ import org.session.libsession.messaging.open_groups.OpenGroupApi
 import org.session.libsession.utilities.Address
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper
 import java.util.Optional
+import java.util.concurrent.ConcurrentHashMap
 import javax.inject.Inject
 import javax.inject.Provider
 import javax.inject.Singleton
@@ -25,7 +25,8 @@ class CommunityDatabase @Inject constructor(
     private val json: Json,
 ) : Database(context, helper) {
 
-    private val cache = LruCache<Address.Community, Optional<OpenGroupApi.RoomInfo>>(24)
+    // There's an entry for every community we've looked at, which are few enough to keep them all
+    private val cache = ConcurrentHashMap<Address.Community, Optional<OpenGroupApi.RoomInfo>>()
 
     private val mutableChangeNotification = MutableSharedFlow<Address.Community>(
         extraBufferCapacity = 24,
@@ -50,33 +51,62 @@ class CommunityDatabase @Inject constructor(
                 }
             }
             .also {
-                cache.put(address, Optional.ofNullable(it))
+                cache[address] = Optional.ofNullable(it)
             }
     }
 
 
-    fun patchRoomInfo(address: Address.Community, jsonText: String) {
-        val sql = """
-            INSERT OR REPLACE INTO $TABLE_NAME ($COL_ADDRESS, $COL_ROOM_INFO) 
-                VALUES (
-                    ?, 
-                    json_patch(ifnull((SELECT $COL_ROOM_INFO FROM $TABLE_NAME WHERE $COL_ADDRESS = ?), json_object()), ?)
-                )
-            RETURNING $COL_ROOM_INFO"""
-
-        writableDatabase.rawQuery(sql, address, address, jsonText).use { cursor ->
-            check(cursor.moveToNext()) { "Unable to patch room info" }
-            json.decodeFromString<OpenGroupApi.RoomInfo>(cursor.getString(0))
-        }.also {
-            if (cache[address]?.getOrNull() != it) {
-                cache.put(address, Optional.of(it))
-                mutableChangeNotification.tryEmit(address)
+    fun updateRoomInfo(address: Address.Community, pollInfo: OpenGroupApi.RoomPollInfo) {
+        updateRoomInfo(mapOf(address to pollInfo))
+    }
+
+    /**
+     * Applies the polled info of each room onto what we have for it.
+     *
+     * The merging is done on the typed room info, so that only the rooms whose info actually
+     * changed get written (all in one transaction) and have their change notified.
+     */
+    fun updateRoomInfo(updates: Map<Address.Community, OpenGroupApi.RoomPollInfo>) {
+        val changed = synchronized(this) {
+            val changed = updates.mapNotNull { (address, pollInfo) ->
+                val existing = getRoomInfo(address)
+                val updated = pollInfo.applyTo(existing)
+                if (updated != existing) address to updated else null
+            }
+
+            if (changed.isEmpty()) {
+                return
+            }
+
+            val db = writableDatabase
+            db.beginTransaction()
+            try {
+                for ((address, info) in changed) {
+                    db.rawExecSQL(
+                        "INSERT OR REPLACE INTO $TABLE_NAME ($COL_ADDRESS, $COL_ROOM_INFO) VALUES (?, ?)",
+                        address.address,
+                        json.encodeToString(info)
+                    )
+                }
+                db.setTransactionSuccessful()
+            } finally {
+                db.endTransaction()
+            }
+
+            for ((address, info) in changed) {
+                cache[address] = Optional.of(info)
             }
+
+            changed
+        }
+
+        for ((address, _) in changed) {
+            mutableChangeNotification.tryEmit(address)
         }
     }
 
     fun deleteRoomInfo(address: Address.Community) {
-        cache.put(address, Optional.empty()) // We know this item doesn't exist in the db which itself is also a cachable information
+        cache[address] = Optional.empty() // We know this item doesn't exist in the db which itself is also a cachable information
         writableDatabase.delete(TABLE_NAME, "$COL_ADDRESS = ?", arrayOf(address.address))
         mutableChangeNotification.tryEmit(address)
     }
@@ -19,7 +19,7 @@ import javax.inject.Provider;
 
 public class MediaDatabase extends Database {
 
-    private static final String BASE_MEDIA_QUERY = "SELECT " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + " AS " + AttachmentDatabase.ROW_ID + ", "
+    private static final String MEDIA_PROJECTION = "SELECT " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + " AS " + AttachmentDatabase.ROW_ID + ", "
         + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_TYPE + ", "
         + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.THUMBNAIL_ASPECT_RATIO + ", "
         + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.UNIQUE_ID + ", "
@@ -47,23 +47,59 @@ public class MediaDatabase extends Database {
         + MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_SENT + ", "
         + MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED + ", "
         + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ADDRESS + ", "
-        + MmsDatabase.TABLE_NAME + "." + MmsDatabase.LINK_PREVIEWS + " "
+        + MmsDatabase.TABLE_NAME + "." + MmsDatabase.LINK_PREVIEWS + " ";
+
+    private static final String MEDIA_CONDITIONS = AttachmentDatabase.DATA + " IS NOT NULL AND "
+        + AttachmentDatabase.QUOTE + " = 0 AND "
+        + AttachmentDatabase.STICKER_PACK_ID + " IS NULL AND "
+        + MmsDatabase.LINK_PREVIEWS + " IS NULL ";
+
+    // Newest first. Shared by all the media queries, so that the media preview walks the media in
+    // the same order as the paged overview.
+    private static final String MEDIA_ORDER = "ORDER BY " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_SENT + " DESC, "
+        + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + " DESC ";
+
+    private static final String BASE_MEDIA_QUERY = MEDIA_PROJECTION
         + "FROM " + AttachmentDatabase.TABLE_NAME + " LEFT JOIN " + MmsDatabase.TABLE_NAME
         + " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " "
         + "WHERE " + AttachmentDatabase.MMS_ID + " IN (SELECT " + MmsSmsColumns.ID
         + " FROM " + MmsDatabase.TABLE_NAME
         + " WHERE " + MmsDatabase.THREAD_ID + " = ?) AND (%s) AND "
-        + AttachmentDatabase.DATA + " IS NOT NULL AND "
-        + AttachmentDatabase.QUOTE + " = 0 AND "
-        + AttachmentDatabase.STICKER_PACK_ID + " IS NULL AND "
-        + MmsDatabase.LINK_PREVIEWS + " IS NULL "
-        + "ORDER BY " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + " DESC";
-
-  private static final String GALLERY_MEDIA_QUERY  = String.format(BASE_MEDIA_QUERY, AttachmentDatabase.CONTENT_TYPE + " LIKE 'image/%' OR " + AttachmentDatabase.CONTENT_TYPE + " LIKE 'video/%'");
-  private static final String DOCUMENT_MEDIA_QUERY = String.format(BASE_MEDIA_QUERY, AttachmentDatabase.CONTENT_TYPE + " NOT LIKE 'image/%' AND " +
-                                                                                     AttachmentDatabase.CONTENT_TYPE + " NOT LIKE 'video/%' AND " +
-                                                                                     AttachmentDatabase.CONTENT_TYPE + " NOT LIKE 'text/x-signal-plain' AND " +
-                                                                                     "IFNULL(" + AttachmentDatabase.VOICE_NOTE + ", 0) = 0");
+        + MEDIA_CONDITIONS
+        + MEDIA_ORDER;
+
+    // A page of media, newest first, that starts after the given (date sent, part id) key. The
+    // messages of the thread are walked through the (thread id, date sent) index, and their
+    // attachments looked up through the MEDIA_INDEX, so a page only reads the rows it returns.
+    // The redundant "date sent <= ?" gives the index a range to seek to, the OR alone doesn't.
+    private static final String PAGED_MEDIA_QUERY = MEDIA_PROJECTION
+        + "FROM " + MmsDatabase.TABLE_NAME + " INNER JOIN " + AttachmentDatabase.TABLE_NAME
+        + " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " "
+        + "WHERE " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.THREAD_ID + " = ? AND (%s) AND "
+        + MEDIA_CONDITIONS + "AND "
+        + MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_SENT + " <= ? AND ("
+        + MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_SENT + " < ? OR ("
+        + MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_SENT + " = ? AND "
+        + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + " < ?)) "
+        + MEDIA_ORDER
+        + "LIMIT ?";
+
+  private static final String GALLERY_CONDITION  = AttachmentDatabase.CONTENT_TYPE + " LIKE 'image/%' OR " + AttachmentDatabase.CONTENT_TYPE + " LIKE 'video/%'";
+  private static final String DOCUMENT_CONDITION = AttachmentDatabase.CONTENT_TYPE + " NOT LIKE 'image/%' AND " +
+                                                   AttachmentDatabase.CONTENT_TYPE + " NOT LIKE 'video/%' AND " +
+                                                   AttachmentDatabase.CONTENT_TYPE + " NOT LIKE 'text/x-signal-plain' AND " +
+                                                   "IFNULL(" + AttachmentDatabase.VOICE_NOTE + ", 0) = 0";
+
+  private static final String GALLERY_MEDIA_QUERY        = String.format(BASE_MEDIA_QUERY, GALLERY_CONDITION);
+  private static final String DOCUMENT_MEDIA_QUERY       = String.format(BASE_MEDIA_QUERY, DOCUMENT_CONDITION);
+  private static final String PAGED_GALLERY_MEDIA_QUERY  = String.format(PAGED_MEDIA_QUERY, GALLERY_CONDITION);
+  private static final String PAGED_DOCUMENT_MEDIA_QUERY = String.format(PAGED_MEDIA_QUERY, DOCUMENT_CONDITION);
+
+  public static final String CREATE_MEDIA_INDEX = "CREATE INDEX IF NOT EXISTS part_media_mms_id_index ON "
+      + AttachmentDatabase.TABLE_NAME + " (" + AttachmentDatabase.MMS_ID + ", " + AttachmentDatabase.ROW_ID + ") "
+      + "WHERE " + AttachmentDatabase.DATA + " IS NOT NULL AND "
+      + AttachmentDatabase.QUOTE + " = 0 AND "
+      + AttachmentDatabase.STICKER_PACK_ID + " IS NULL";
 
   public MediaDatabase(Context context, Provider<SQLCipherOpenHelper> databaseHelper) {
     super(context, databaseHelper);
@@ -81,6 +117,58 @@ public class MediaDatabase extends Database {
     return cursor;
   }
 
+  /**
+   * Returns a page of the gallery media of a thread, newest first.
+   *
+   * @param after The key of the last item of the previous page, or null for the first page.
+   */
+  public Cursor getGalleryMediaPageForThread(long threadId, @Nullable PageKey after, int limit) {
+    return getMediaPage(PAGED_GALLERY_MEDIA_QUERY, threadId, after, limit);
+  }
+
+  /**
+   * Returns a page of the documents of a thread, newest first.
+   *
+   * @param after The key of the last item of the previous page, or null for the first page.
+   */
+  public Cursor getDocumentMediaPageForThread(long threadId, @Nullable PageKey after, int limit) {
+    return getMediaPage(PAGED_DOCUMENT_MEDIA_QUERY, threadId, after, limit);
+  }
+
+  private Cursor getMediaPage(String query, long threadId, @Nullable PageKey after, int limit) {
+    long dateSent = after != null ? after.dateSent : Long.MAX_VALUE;
+    long rowId    = after != null ? after.rowId    : Long.MAX_VALUE;
+
+    return getReadableDatabase().rawQuery(query, new String[]{String.valueOf(threadId),
+                                                               String.valueOf(dateSent),
+                                                               String.valueOf(dateSent),
+                                                               String.valueOf(dateSent),
+                                                               String.valueOf(rowId),
+                                                               String.valueOf(limit)});
+  }
+
+  /**
+   * The position of an item in the paged media queries.
+   */
+  public static class PageKey {
+
+    private final long dateSent;
+    private final long rowId;
+
+    private PageKey(long dateSent, long rowId) {
+      this.dateSent = dateSent;
+      this.rowId    = rowId;
+    }
+
+    /**
+     * @return The key of the row the cursor is on, to load the page that follows it.
+     */
+    public static PageKey from(@NonNull Cursor cursor) {
+      return new PageKey(cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.DATE_SENT)),
+                         cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.ROW_ID)));
+    }
+  }
+
   public static class MediaRecord {
 
     private final DatabaseAttachment attachment;
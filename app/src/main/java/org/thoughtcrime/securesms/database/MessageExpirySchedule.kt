@@ -0,0 +1,88 @@
+package org.thoughtcrime.securesms.database
+
+import androidx.collection.LongLongMap
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.receiveAsFlow
+import org.session.libsession.network.SnodeClock
+import org.thoughtcrime.securesms.database.model.MessageId
+import org.thoughtcrime.securesms.util.TimerWheel
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * An in-memory schedule of when messages are due to disappear.
+ *
+ * [MmsDatabase] and [SmsDatabase] feed this schedule whenever a message is written with both
+ * [MmsSmsColumns.EXPIRES_IN] and [MmsSmsColumns.EXPIRE_STARTED] set, so that the expiring message
+ * manager only has to wake up when something is actually due, rather than re-querying the
+ * database on every change.
+ *
+ * The schedule is only a hint: entries may be stale (the message got deleted in the meantime),
+ * so the consumer must check the database's `expires_at` before deleting anything.
+ */
+@Singleton
+class MessageExpirySchedule @Inject constructor(
+    clock: SnodeClock,
+) {
+    private val wheel = TimerWheel<MessageId>(
+        tickMillis = TICK_MILLS,
+        startMillis = clock.currentTimeMillis()
+    )
+
+    // The earliest deadline that the consumer knows about, used to avoid waking it up
+    // for the deadlines that are later than what it's already waiting for. Guarded by [wheel].
+    private var consumerDeadline: Long = Long.MAX_VALUE
+
+    private val earlierDeadlineSignal = Channel<Unit>(Channel.CONFLATED)
+
+    /**
+     * Emits when a deadline earlier than the last [nextDeadlineMills] is scheduled.
+     */
+    val earlierDeadlineScheduled: Flow<Unit> get() = earlierDeadlineSignal.receiveAsFlow()
+
+    fun schedule(messageId: MessageId, expiresAtMills: Long) {
+        synchronized(wheel) {
+            wheel.schedule(messageId, expiresAtMills)
+
+            if (expiresAtMills < consumerDeadline) {
+                consumerDeadline = expiresAtMills
+                earlierDeadlineSignal.trySend(Unit)
+            }
+        }
+    }
+
+    fun scheduleAll(expiringMessages: LongLongMap, mms: Boolean) {
+        expiringMessages.forEach { id, expiresAt -> schedule(MessageId(id, mms), expiresAt) }
+    }
+
+    /**
+     * Remove everything from the schedule. Any message written after this call will be
+     * scheduled again, so the caller should reload from the database afterwards, not before.
+     */
+    fun clear() {
+        synchronized(wheel) {
+            wheel.clear()
+            consumerDeadline = Long.MAX_VALUE
+        }
+    }
+
+    /**
+     * @return The messages that are due at [nowMills]. They are removed from the schedule.
+     */
+    fun pollDue(nowMills: Long): List<MessageId> = synchronized(wheel) {
+        wheel.advanceTo(nowMills)
+    }
+
+    /**
+     * @return A timestamp no later than the next deadline in the schedule, or null if there's nothing
+     * scheduled.
+     */
+    fun nextDeadlineMills(): Long? = synchronized(wheel) {
+        wheel.nextDeadlineMillis().also { consumerDeadline = it ?: Long.MAX_VALUE }
+    }
+
+    companion object {
+        private const val TICK_MILLS = 500L
+    }
+}
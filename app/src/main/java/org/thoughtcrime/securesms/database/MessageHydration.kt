@@ -0,0 +1,37 @@
+package org.thoughtcrime.securesms.database
+
+import android.database.Cursor
+import android.database.CursorWrapper
+import androidx.collection.LongObjectMap
+import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAttachment
+import org.thoughtcrime.securesms.database.model.MessageId
+import org.thoughtcrime.securesms.database.model.ReactionRecord
+
+/**
+ * The attachments and reactions of a page of messages, loaded with one query per table
+ * rather than with a sub-query per message.
+ */
+class MessageHydration(
+    private val attachments: LongObjectMap<out List<DatabaseAttachment>>,
+    private val smsReactions: LongObjectMap<out List<ReactionRecord>>,
+    private val mmsReactions: LongObjectMap<out List<ReactionRecord>>,
+) {
+    /**
+     * @return All the attachments of the given mms message, including the quote attachments.
+     */
+    fun getAttachments(mmsId: Long): List<DatabaseAttachment> = attachments[mmsId].orEmpty()
+
+    fun getReactions(messageId: MessageId): List<ReactionRecord> {
+        val reactions = if (messageId.mms) mmsReactions else smsReactions
+        return reactions[messageId.id].orEmpty()
+    }
+}
+
+/**
+ * A cursor of message rows that carries the [MessageHydration] for all of its rows, so the message
+ * readers can look the attachments and reactions up instead of querying them row by row.
+ */
+class HydratedMessageCursor(
+    cursor: Cursor,
+    val hydration: MessageHydration,
+) : CursorWrapper(cursor)
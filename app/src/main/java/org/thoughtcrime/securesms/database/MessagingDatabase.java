@@ -3,10 +3,13 @@ package org.thoughtcrime.securesms.database;
 import android.content.Context;
 import android.database.Cursor;
 
+import androidx.collection.LongLongMap;
+
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
 
 import org.session.libsession.utilities.Address;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.database.model.MessageChanges;
 
 import java.util.Collection;
 import java.util.List;
@@ -25,6 +28,17 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
 
   public abstract void markExpireStarted(long messageId, long startTime);
 
+  /**
+   * Start the expiry timer of all the given messages at once, each from its own start time, in a
+   * single statement.
+   * <p>
+   * Nothing is notified, so that callers can write several tables in one transaction. Pass the
+   * result to {@link #notifyChanges} once that transaction has committed.
+   */
+  public abstract List<MessageChanges> markExpireStarted(LongLongMap startTimeByMessageId);
+
+  public abstract void notifyChanges(List<MessageChanges> changes);
+
   public abstract void markAsSent(long messageId, boolean sent);
 
   public abstract void markAsSyncing(long id);
@@ -36,9 +50,16 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
 
   public abstract void markAsDeleted(long messageId, boolean isOutgoing, String displayedMessage);
 
-  public abstract List<Long> getExpiredMessageIDs(long nowMills);
+  /**
+   * @return All the messages that have started expiring, keyed by ID, with the value being
+   * when they are due to expire.
+   */
+  public abstract LongLongMap getExpiringMessages();
 
-  public abstract long getNextExpiringTimestamp();
+  /**
+   * Delete the given messages in one transaction, but only those that have actually expired by {@code nowMills}.
+   */
+  public abstract void deleteExpiredMessages(Collection<Long> messageIds, long nowMills);
 
   public abstract void deleteMessage(long messageId);
   public abstract void deleteMessages(Collection<Long> messageIds);
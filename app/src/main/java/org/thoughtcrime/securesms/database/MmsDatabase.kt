@@ -19,7 +19,10 @@ package org.thoughtcrime.securesms.database
 import android.content.ContentValues
 import android.content.Context
 import android.database.Cursor
+import androidx.collection.LongLongMap
+import androidx.collection.MutableLongLongMap
 import androidx.collection.MutableLongObjectMap
+import androidx.collection.longListOf
 import androidx.sqlite.db.SupportSQLiteDatabase
 import dagger.Lazy
 import dagger.hilt.android.qualifiers.ApplicationContext
@@ -78,6 +81,7 @@ class MmsDatabase @Inject constructor(
     private val groupDatabase: GroupDatabase,
     private val snodeClock: SnodeClock,
     private val prefs: Provider<PreferenceStorage>,
+    private val expirySchedule: MessageExpirySchedule,
 ) : MessagingDatabase(context, databaseHelper) {
     private val earlyDeliveryReceiptCache = EarlyReceiptCache()
     private val earlyReadReceiptCache = EarlyReceiptCache()
@@ -204,7 +208,7 @@ class MmsDatabase @Inject constructor(
                             "UPDATE $TABLE_NAME SET $columnName = $columnName + 1 WHERE $ID = ?",
                             arrayOf(id)
                         )
-                        _changeNotification.tryEmit(
+                        TransactionSideEffects.emitAfterCommit(_changeNotification,
                             MessageChanges(
                                 changeType = MessageChanges.ChangeType.Updated,
                                 id = MessageId(id, true),
@@ -240,7 +244,7 @@ class MmsDatabase @Inject constructor(
         ).use { cursor ->
             if (cursor.moveToFirst()) {
                 val threadId = cursor.getLong(0)
-                _changeNotification.tryEmit(
+                TransactionSideEffects.emitAfterCommit(_changeNotification,
                     MessageChanges(
                         changeType = MessageChanges.ChangeType.Updated,
                         id = MessageId(messageId, true),
@@ -261,31 +265,30 @@ class MmsDatabase @Inject constructor(
         }
     }
 
-    override fun getExpiredMessageIDs(nowMills: Long): List<Long> {
-        val query = "SELECT " + ID + " FROM " + TABLE_NAME +
-                " WHERE " + EXPIRES_IN + " > 0 AND " + EXPIRE_STARTED + " > 0 AND " + EXPIRE_STARTED + " + " + EXPIRES_IN + " <= ?"
-
-        return readableDatabase.rawQuery(query, nowMills).use { cursor ->
-            cursor.asSequence()
-                .map { it.getLong(0) }
-                .toList()
+    override fun getExpiringMessages(): LongLongMap {
+        //language=roomsql
+        return readableDatabase.rawQuery(
+            "SELECT $ID, $EXPIRES_AT FROM $TABLE_NAME WHERE $EXPIRES_AT IS NOT NULL"
+        ).use { cursor ->
+            val result = MutableLongLongMap(cursor.count)
+            while (cursor.moveToNext()) {
+                result[cursor.getLong(0)] = cursor.getLong(1)
+            }
+            result
         }
     }
 
-    /**
-     * @return the next expiring timestamp for messages that have started expiring. 0 if no messages are expiring.
-     */
-    override fun getNextExpiringTimestamp(): Long {
-        val query =
-            "SELECT MIN(" + EXPIRE_STARTED + " + " + EXPIRES_IN + ") FROM " + TABLE_NAME +
-                    " WHERE " + EXPIRES_IN + " > 0 AND " + EXPIRE_STARTED + " > 0"
-
-        return readableDatabase.rawQuery(query).use { cursor ->
-            if (cursor.moveToFirst()) {
-                cursor.getLong(0)
-            } else {
-                0L
-            }
+    override fun deleteExpiredMessages(messageIds: Collection<Long>, nowMills: Long) {
+        val db = writableDatabase
+        db.beginTransaction()
+        try {
+            doDeleteMessages(
+                where = "$ID IN (SELECT value FROM json_each(?)) AND $EXPIRES_AT <= ?",
+                JSONArray(messageIds).toString(), nowMills
+            )
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
         }
     }
 
@@ -303,7 +306,7 @@ class MmsDatabase @Inject constructor(
             arrayOf(messageId)
         ).use { cursor ->
             if (cursor.moveToNext()) {
-                _changeNotification.tryEmit(
+                TransactionSideEffects.emitAfterCommit(_changeNotification,
                     MessageChanges(
                         changeType = MessageChanges.ChangeType.Updated,
                         id = MessageId(messageId, true),
@@ -361,10 +364,14 @@ class MmsDatabase @Inject constructor(
         writableDatabase.rawQuery("""
             UPDATE $TABLE_NAME SET $EXPIRE_STARTED = ?1
             WHERE $ID = ?2 AND IFNULL($EXPIRE_STARTED, 0) != ?1  
-            RETURNING $THREAD_ID
+            RETURNING $THREAD_ID, $EXPIRES_AT
         """, startedTimestamp, messageId).use { cursor ->
             if (cursor.moveToNext()) {
-                _changeNotification.tryEmit(
+                if (!cursor.isNull(1)) {
+                    expirySchedule.schedule(MessageId(messageId, true), cursor.getLong(1))
+                }
+
+                TransactionSideEffects.emitAfterCommit(_changeNotification,
                     MessageChanges(
                         changeType = MessageChanges.ChangeType.Updated,
                         id = MessageId(messageId, true),
@@ -375,6 +382,48 @@ class MmsDatabase @Inject constructor(
         }
     }
 
+    override fun markExpireStarted(startTimeByMessageId: LongLongMap): List<MessageChanges> {
+        if (startTimeByMessageId.isEmpty()) return emptyList()
+
+        val startTimes = JSONArray()
+        startTimeByMessageId.forEach { messageId, startTime ->
+            startTimes.put(JSONArray().put(messageId).put(startTime))
+        }
+
+        val changedIdsByThreadId = MutableLongObjectMap<MutableList<MessageId>>()
+
+        //language=roomsql
+        writableDatabase.rawQuery("""
+            UPDATE $TABLE_NAME SET $EXPIRE_STARTED = s.start_time
+            FROM (SELECT value ->> 0 AS message_id, value ->> 1 AS start_time FROM json_each(?)) AS s
+            WHERE $ID = s.message_id AND IFNULL($EXPIRE_STARTED, 0) != s.start_time
+            RETURNING $ID, $THREAD_ID, $EXPIRES_AT
+        """, startTimes.toString()).use { cursor ->
+            while (cursor.moveToNext()) {
+                val messageId = MessageId(cursor.getLong(0), true)
+                if (!cursor.isNull(2)) {
+                    expirySchedule.schedule(messageId, cursor.getLong(2))
+                }
+
+                changedIdsByThreadId.getOrPut(cursor.getLong(1)) { ArrayList() } += messageId
+            }
+        }
+
+        val changes = ArrayList<MessageChanges>(changedIdsByThreadId.size)
+        changedIdsByThreadId.forEach { threadId, ids ->
+            changes += MessageChanges(
+                changeType = MessageChanges.ChangeType.Updated,
+                ids = ids,
+                threadId = threadId
+            )
+        }
+        return changes
+    }
+
+    override fun notifyChanges(changes: List<MessageChanges>) {
+        changes.forEach { TransactionSideEffects.emitAfterCommit(_changeNotification, it) }
+    }
+
     private fun getLinkPreviews(
         cursor: Cursor,
         attachments: List<DatabaseAttachment>
@@ -460,7 +509,7 @@ class MmsDatabase @Inject constructor(
             contentValues = contentValues,
         )
 
-        _changeNotification.tryEmit(
+        TransactionSideEffects.emitAfterCommit(_changeNotification,
             MessageChanges(
                 changeType = MessageChanges.ChangeType.Added,
                 id = MessageId(messageId, true),
@@ -568,7 +617,7 @@ class MmsDatabase @Inject constructor(
                 .getGroupMembers(message.recipient.toGroupString(), false)
         }
 
-        _changeNotification.tryEmit(
+        TransactionSideEffects.emitAfterCommit(_changeNotification,
             MessageChanges(
                 changeType = MessageChanges.ChangeType.Added,
                 id = MessageId(messageId, true),
@@ -640,9 +689,14 @@ class MmsDatabase @Inject constructor(
             // Process thumbnail jobs AFTER transaction commits
             thumbnailJobs.forEach { attachmentId ->
                 Log.i(TAG, "Submitting thumbnail generation job for attachment: $attachmentId")
-                attachmentDatabase.thumbnailExecutor.submit(
-                    attachmentDatabase.ThumbnailFetchCallable(attachmentId)
-                )
+                attachmentDatabase.generateThumbnail(attachmentId)
+            }
+        }.also { messageId ->
+            // Only schedule the expiry once the message is committed
+            val expiresIn = contentValues.getAsLong(EXPIRES_IN) ?: 0L
+            val expireStarted = contentValues.getAsLong(EXPIRE_STARTED) ?: 0L
+            if (expiresIn > 0 && expireStarted > 0) {
+                expirySchedule.schedule(MessageId(messageId, true), expireStarted + expiresIn)
             }
         }
     }
@@ -676,7 +730,7 @@ class MmsDatabase @Inject constructor(
         }
 
         deletedByThreadIDs.forEach { threadId, deletedMessageIDs ->
-            _changeNotification.tryEmit(
+            TransactionSideEffects.emitAfterCommit(_changeNotification,
                 MessageChanges(
                     changeType = MessageChanges.ChangeType.Deleted,
                     ids = deletedMessageIDs,
@@ -721,7 +775,7 @@ class MmsDatabase @Inject constructor(
                 .toList()
         }
 
-        _changeNotification.tryEmit(
+        TransactionSideEffects.emitAfterCommit(_changeNotification,
             MessageChanges(
                 changeType = MessageChanges.ChangeType.Deleted,
                 ids = updatedMessageIDs,
@@ -729,7 +783,7 @@ class MmsDatabase @Inject constructor(
             )
         )
 
-        _changeNotification.tryEmit(
+        TransactionSideEffects.emitAfterCommit(_changeNotification,
             MessageChanges(
                 changeType = MessageChanges.ChangeType.Added,
                 ids = updatedMessageIDs,
@@ -920,6 +974,8 @@ class MmsDatabase @Inject constructor(
     }
 
     inner class Reader(private val cursor: Cursor?, private val getQuote: Boolean = true) : Closeable {
+        private val hydration = (cursor as? HydratedMessageCursor)?.hydration
+
         val next: MessageRecord?
             get() = if (cursor == null || !cursor.moveToNext()) null else current
         val current: MessageRecord
@@ -951,9 +1007,7 @@ class MmsDatabase @Inject constructor(
                 readReceiptCount = 0
             }
             val recipient = getRecipientFor(address)
-            val attachments = attachmentDatabase.getAttachment(
-                cursor
-            )
+            val attachments = getAttachments(id)
             val previews: List<LinkPreview?> = getLinkPreviews(cursor, attachments)
             val previewAttachments: Set<Attachment?> =
                 previews.mapNotNull { it?.thumbnail }.toSet()
@@ -962,7 +1016,8 @@ class MmsDatabase @Inject constructor(
                     .filterNot { o: DatabaseAttachment? -> o in previewAttachments }
             )
             val quote = if (getQuote) getQuote(cursor) else null
-            val reactions = reactionDatabase.getReactions(cursor)
+            val reactions = hydration?.getReactions(MessageId(id, true))
+                ?: reactionDatabase.getReactions(MessageId(id, true))
             val messageContent = runCatching {
                 messageContentJson?.takeIf { it.isNotBlank() }
                     ?.let { json.decodeFromString<MessageContent>(it) }
@@ -996,6 +1051,14 @@ class MmsDatabase @Inject constructor(
             )
         }
 
+        private fun getAttachments(mmsId: Long): List<DatabaseAttachment> {
+            hydration?.let { return it.getAttachments(mmsId) }
+
+            val attachments = MutableLongObjectMap<List<DatabaseAttachment>>(1)
+            attachmentDatabase.loadAttachmentsForMessages(longListOf(mmsId), attachments)
+            return attachments[mmsId].orEmpty()
+        }
+
         private fun getRecipientFor(serialized: String): Recipient {
             return recipientRepository.getRecipientSync(serialized.toAddress())
         }
@@ -1016,8 +1079,8 @@ class MmsDatabase @Inject constructor(
             val quoteMissing = retrievedQuote == null
             val quoteDeck = (
                     (retrievedQuote as? MmsMessageRecord)?.slideDeck
-                        ?: attachmentDatabase.getAttachment(cursor)
-                            .filter { it?.isQuote == true }
+                        ?: getAttachments(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))
+                            .filter { it.isQuote }
                             .let { SlideDeck(context, it) }
                     )
             val quoteMessageId = retrievedQuote?.let { MessageId(it.id, it.isMms) }
@@ -1202,5 +1265,10 @@ class MmsDatabase @Inject constructor(
             val outgoingTypeSet = MmsSmsColumns.Types.OUTGOING_MESSAGE_TYPES.joinToString(separator = ",", prefix = "(", postfix = ")")
             db.execSQL("ALTER TABLE $TABLE_NAME ADD COLUMN $IS_OUTGOING BOOLEAN GENERATED ALWAYS AS (($MESSAGE_BOX & ${MmsSmsColumns.Types.BASE_TYPE_MASK}) IN ${outgoingTypeSet}) VIRTUAL")
         }
+
+        fun addExpiresAtColumn(db: SupportSQLiteDatabase) {
+            db.execSQL("ALTER TABLE $TABLE_NAME ADD COLUMN $EXPIRES_AT INTEGER GENERATED ALWAYS AS (CASE WHEN $EXPIRES_IN > 0 AND $EXPIRE_STARTED > 0 THEN $EXPIRE_STARTED + $EXPIRES_IN END) VIRTUAL")
+            db.execSQL("CREATE INDEX IF NOT EXISTS mms_expires_at_index ON $TABLE_NAME ($EXPIRES_AT) WHERE $EXPIRES_AT IS NOT NULL")
+        }
     }
 }
@@ -54,6 +54,10 @@ public interface MmsSmsColumns {
 
   public static final String IS_OUTGOING              = "is_outgoing";
 
+  // A generated column of when the message is due to disappear, NULL if it's not disappearing
+  // or the timer hasn't started yet.
+  public static final String EXPIRES_AT               = "expires_at";
+
   public static class Types {
     protected static final long TOTAL_MASK = 0xFFFFFFFF;
 
@@ -79,6 +79,8 @@ public class MmsSmsDatabase extends Database {
   private final Lazy<@NonNull ThreadDatabase> threadDatabase;
   final Lazy<@NonNull MmsDatabase> mmsDatabase;
   final Lazy<@NonNull SmsDatabase> smsDatabase;
+  final Lazy<@NonNull AttachmentDatabase> attachmentDatabase;
+  final Lazy<@NonNull ReactionDatabase> reactionDatabase;
   final Lazy<@NonNull ConfigFactoryProtocol> configFactory;
   @NonNull final Json json;
 
@@ -89,6 +91,8 @@ public class MmsSmsDatabase extends Database {
                         Lazy<@NonNull ThreadDatabase> threadDatabase, 
                         Lazy<@NonNull MmsDatabase> mmsDatabase, 
                         Lazy<@NonNull SmsDatabase> smsDatabase,
+                        Lazy<@NonNull AttachmentDatabase> attachmentDatabase,
+                        Lazy<@NonNull ReactionDatabase> reactionDatabase,
                         Lazy<@NonNull ConfigFactoryProtocol> configFactory,
                         @NonNull Json json) {
     super(context, databaseHelper);
@@ -97,6 +101,8 @@ public class MmsSmsDatabase extends Database {
     this.threadDatabase = threadDatabase;
     this.mmsDatabase = mmsDatabase;
     this.smsDatabase = smsDatabase;
+    this.attachmentDatabase = attachmentDatabase;
+    this.reactionDatabase = reactionDatabase;
     this.configFactory = configFactory;
     this.json = json;
   }
@@ -1,33 +1,17 @@
 package org.thoughtcrime.securesms.database
 
 import android.database.Cursor
+import androidx.collection.MutableLongList
+import androidx.collection.MutableLongObjectMap
+import org.session.libsession.messaging.sending_receiving.attachments.DatabaseAttachment
 import org.session.libsession.utilities.Address
 import org.session.libsession.utilities.withUserConfigs
 import org.thoughtcrime.securesms.database.model.MessageId
 import org.thoughtcrime.securesms.database.model.MessageRecord
+import org.thoughtcrime.securesms.database.model.ReactionRecord
 import org.thoughtcrime.securesms.util.get
 
 object MmsSmsDatabaseExt {
-    // The query parts that fetch all reactions for a given message, and group them into a JSON array
-    //language=roomsql
-    private const val REACTIONS_QUERY_PARTS = """
-        SELECT json_group_array(
-            json_object(
-                '${ReactionDatabase.ROW_ID}', ${ReactionDatabase.TABLE_NAME}.${ReactionDatabase.ROW_ID},
-                '${ReactionDatabase.MESSAGE_ID}', ${ReactionDatabase.TABLE_NAME}.${ReactionDatabase.MESSAGE_ID},
-                '${ReactionDatabase.IS_MMS}', ${ReactionDatabase.TABLE_NAME}.${ReactionDatabase.IS_MMS}, 
-                '${ReactionDatabase.AUTHOR_ID}', ${ReactionDatabase.TABLE_NAME}.${ReactionDatabase.AUTHOR_ID}, 
-                '${ReactionDatabase.EMOJI}', ${ReactionDatabase.TABLE_NAME}.${ReactionDatabase.EMOJI}, 
-                '${ReactionDatabase.SERVER_ID}', ${ReactionDatabase.TABLE_NAME}.${ReactionDatabase.SERVER_ID}, 
-                '${ReactionDatabase.COUNT}', ${ReactionDatabase.TABLE_NAME}.${ReactionDatabase.COUNT}, 
-                '${ReactionDatabase.SORT_ID}', ${ReactionDatabase.TABLE_NAME}.${ReactionDatabase.SORT_ID}, 
-                '${ReactionDatabase.DATE_SENT}', ${ReactionDatabase.TABLE_NAME}.${ReactionDatabase.DATE_SENT}, 
-                '${ReactionDatabase.DATE_RECEIVED}', ${ReactionDatabase.TABLE_NAME}.${ReactionDatabase.DATE_RECEIVED}
-            )
-        )
-        FROM ${ReactionDatabase.TABLE_NAME}
-        """
-
     // Subquery to grab sms' server hash
     //language=roomsql
     private const val SMS_HASH_QUERY = """
@@ -47,33 +31,23 @@ object MmsSmsDatabaseExt {
     /**
      * Build a combined query to fetch both MMS and SMS messages in one go, the high level idea is to
      * use a UNION between two SELECT statements, one for MMS and one for SMS. And they will need
-     * to have the same projection so we'll also do some aliasing on them. This can be illustrated as:
+     * to have the same projection so we'll also do some aliasing on them.
      *
-     * For each message, we will perform sub-query to reaction/attachment database to query the relevant
-     * data. We try not to use JOIN as they screw up performance by impacting the index selection.
+     * The attachments and reactions are not part of this query: they are loaded afterwards for
+     * the whole result set by [loadHydration]. This can be illustrated as:
      *
      * ```sqlite
-     * SELECT sms_fields,
-     *  (query reaction table) AS reactions,
-     *  NULL AS attachments,
-     *  (query hash table) AS server_hash
-     * FROM sms
-     *
-     * UNION ALL
-     *
-     * SELECT
-     *  mms_fields,
-     *  (query reaction table) AS reactions,
-     *  (query attachment table) AS attachments,
-     *  (query hash table) AS server_hash
-     * FROM mms
+     * SELECT * FROM (
+     *   SELECT sms_fields, (query hash table) AS server_hash FROM sms
+     *   UNION ALL
+     *   SELECT mms_fields, (query hash table) AS server_hash FROM mms
+     * )
+     * ORDER BY ... LIMIT ...
      * ```
      */
     private fun buildMmsSmsCombinedQuery(
         projection: String,
         selection: String?,
-        includeReactions: Boolean,
-        reactionSelection: String?,
         order: String?,
         limit: String?,
         querySms: Boolean = true,
@@ -83,20 +57,6 @@ object MmsSmsDatabaseExt {
             "At least one of querySms or queryMms must be true"
         }
 
-        // Custom where statement for reactions if provided
-        val additionalReactionSelection = reactionSelection?.let { " AND ($it)" }.orEmpty()
-
-        // If reactions are not requested, we just return an empty JSON array
-        val smsReactionQuery = if (includeReactions) {
-            """($REACTIONS_QUERY_PARTS 
-            WHERE 
-                ${ReactionDatabase.TABLE_NAME}.${ReactionDatabase.MESSAGE_ID} = ${SmsDatabase.TABLE_NAME}.${MmsSmsColumns.ID} 
-                AND NOT ${ReactionDatabase.TABLE_NAME}.${ReactionDatabase.IS_MMS}
-                $additionalReactionSelection)"""
-        } else {
-            "'[]'"
-        }
-
         val whereStatement = selection?.let { "WHERE $it" }.orEmpty()
 
         // The main query for SMS messages
@@ -106,8 +66,6 @@ object MmsSmsDatabaseExt {
             ${SmsDatabase.DATE_RECEIVED} AS ${MmsSmsColumns.NORMALIZED_DATE_RECEIVED},
             ${MmsSmsColumns.ID},
             'SMS::' || ${MmsSmsColumns.ID} || '::' || ${SmsDatabase.DATE_SENT} AS ${MmsSmsColumns.UNIQUE_ROW_ID},
-            NULL AS ${AttachmentDatabase.ATTACHMENT_JSON_ALIAS},
-            $smsReactionQuery AS ${ReactionDatabase.REACTION_JSON_ALIAS},
             ${SmsDatabase.BODY},
             NULL AS ${MmsSmsColumns.MESSAGE_CONTENT},
             ${MmsSmsColumns.READ},
@@ -141,49 +99,6 @@ object MmsSmsDatabaseExt {
         $whereStatement
     """ else null
 
-        // The subquery that fetches all attachments for a given MMS message, and group them into a JSON array
-        val attachmentQuery = """
-        SELECT json_group_array(
-            json_object(
-                '${AttachmentDatabase.ROW_ID}', a.${AttachmentDatabase.ROW_ID}, 
-                '${AttachmentDatabase.UNIQUE_ID}', a.${AttachmentDatabase.UNIQUE_ID}, 
-                '${AttachmentDatabase.MMS_ID}', a.${AttachmentDatabase.MMS_ID},
-                '${AttachmentDatabase.SIZE}', a.${AttachmentDatabase.SIZE}, 
-                '${AttachmentDatabase.FILE_NAME}', a.${AttachmentDatabase.FILE_NAME}, 
-                '${AttachmentDatabase.DATA}', a.${AttachmentDatabase.DATA}, 
-                '${AttachmentDatabase.THUMBNAIL}', a.${AttachmentDatabase.THUMBNAIL}, 
-                '${AttachmentDatabase.CONTENT_TYPE}', a.${AttachmentDatabase.CONTENT_TYPE}, 
-                '${AttachmentDatabase.CONTENT_LOCATION}', a.${AttachmentDatabase.CONTENT_LOCATION}, 
-                '${AttachmentDatabase.FAST_PREFLIGHT_ID}', a.${AttachmentDatabase.FAST_PREFLIGHT_ID}, 
-                '${AttachmentDatabase.VOICE_NOTE}', a.${AttachmentDatabase.VOICE_NOTE}, 
-                '${AttachmentDatabase.WIDTH}', a.${AttachmentDatabase.WIDTH}, 
-                '${AttachmentDatabase.HEIGHT}', a.${AttachmentDatabase.HEIGHT}, 
-                '${AttachmentDatabase.QUOTE}', a.${AttachmentDatabase.QUOTE}, 
-                '${AttachmentDatabase.CONTENT_DISPOSITION}', a.${AttachmentDatabase.CONTENT_DISPOSITION}, 
-                '${AttachmentDatabase.NAME}', a.${AttachmentDatabase.NAME}, 
-                '${AttachmentDatabase.TRANSFER_STATE}', a.${AttachmentDatabase.TRANSFER_STATE}, 
-                '${AttachmentDatabase.CAPTION}', a.${AttachmentDatabase.CAPTION}, 
-                '${AttachmentDatabase.STICKER_PACK_ID}', a.${AttachmentDatabase.STICKER_PACK_ID}, 
-                '${AttachmentDatabase.STICKER_PACK_KEY}', a.${AttachmentDatabase.STICKER_PACK_KEY}, 
-                '${AttachmentDatabase.AUDIO_DURATION}', ifnull(a.${AttachmentDatabase.AUDIO_DURATION}, -1), 
-                '${AttachmentDatabase.STICKER_ID}', a.${AttachmentDatabase.STICKER_ID}
-            )
-        )
-        FROM ${AttachmentDatabase.TABLE_NAME} AS a
-        WHERE a.${AttachmentDatabase.MMS_ID} = ${MmsDatabase.TABLE_NAME}.${MmsSmsColumns.ID}
-    """
-
-        // Custom where statement for reactions if provided
-        val mmsReactionQuery = if (includeReactions) {
-            """($REACTIONS_QUERY_PARTS 
-            WHERE 
-                ${ReactionDatabase.TABLE_NAME}.${ReactionDatabase.MESSAGE_ID} = ${MmsDatabase.TABLE_NAME}.${MmsSmsColumns.ID} 
-                AND ${ReactionDatabase.TABLE_NAME}.${ReactionDatabase.IS_MMS}
-                $additionalReactionSelection)"""
-        } else {
-            "'[]'"
-        }
-
         // The main query for MMS messages
         val mmsQuery = if (queryMms) """
         SELECT
@@ -191,8 +106,6 @@ object MmsSmsDatabaseExt {
             ${MmsDatabase.DATE_RECEIVED} AS ${MmsSmsColumns.NORMALIZED_DATE_RECEIVED},
             ${MmsDatabase.TABLE_NAME}.${MmsSmsColumns.ID} AS ${MmsSmsColumns.ID},
             'MMS::' || ${MmsDatabase.TABLE_NAME}.${MmsSmsColumns.ID} || '::' || ${MmsDatabase.DATE_SENT} AS ${MmsSmsColumns.UNIQUE_ROW_ID},
-            ($attachmentQuery) AS ${AttachmentDatabase.ATTACHMENT_JSON_ALIAS},
-            $mmsReactionQuery AS ${ReactionDatabase.REACTION_JSON_ALIAS},
             ${MmsSmsColumns.BODY},
             ${MmsSmsColumns.MESSAGE_CONTENT},
             ${MmsSmsColumns.READ},
@@ -229,16 +142,9 @@ object MmsSmsDatabaseExt {
         val orderStatement = order?.let { "ORDER BY $it" }.orEmpty()
         val limitStatement = limit?.let { "LIMIT $it" }.orEmpty()
 
-        val cteQuery = when {
-            smsQuery != null && mmsQuery != null -> "WITH combined AS ($smsQuery UNION ALL $mmsQuery)"
-            else -> "WITH combined AS (${smsQuery ?: mmsQuery})"
-        }
-
         return """
-        $cteQuery
-        
         SELECT $projection
-        FROM combined
+        FROM (${listOfNotNull(smsQuery, mmsQuery).joinToString(separator = " UNION ALL ")})
         $orderStatement
         $limitStatement
     """
@@ -258,14 +164,69 @@ object MmsSmsDatabaseExt {
         val query = buildMmsSmsCombinedQuery(
             projection = projection,
             selection = selection,
-            includeReactions = includeReactions,
-            reactionSelection = additionalReactionSelection,
             order = order,
             limit = limit,
             querySms = querySms,
             queryMms = queryMms
         )
-        return readableDatabase.rawQuery(query, null)
+        val cursor = readableDatabase.rawQuery(query, null)
+
+        // Only the full rows are read into message records, there's nothing to hydrate otherwise
+        if (projection != MmsSmsDatabase.PROJECTION_ALL) {
+            return cursor
+        }
+
+        return try {
+            HydratedMessageCursor(cursor, loadHydration(cursor, includeReactions, additionalReactionSelection))
+        } catch (e: Throwable) {
+            cursor.close()
+            throw e
+        }
+    }
+
+    /**
+     * Load the attachments and reactions of all the messages in [cursor], with one query per table.
+     * The cursor is left before its first row.
+     */
+    private fun MmsSmsDatabase.loadHydration(
+        cursor: Cursor,
+        includeReactions: Boolean,
+        reactionSelection: String?,
+    ): MessageHydration {
+        val smsIds = MutableLongList(cursor.count)
+        val mmsIds = MutableLongList(cursor.count)
+
+        val idColumn = cursor.getColumnIndexOrThrow(MmsSmsColumns.ID)
+        val transportColumn = cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT)
+        while (cursor.moveToNext()) {
+            if (cursor.getString(transportColumn) == MmsSmsDatabase.MMS_TRANSPORT) {
+                mmsIds += cursor.getLong(idColumn)
+            } else {
+                smsIds += cursor.getLong(idColumn)
+            }
+        }
+        cursor.moveToPosition(-1)
+
+        val attachments = MutableLongObjectMap<List<DatabaseAttachment>>(mmsIds.size)
+        attachmentDatabase.get().loadAttachmentsForMessages(mmsIds, attachments)
+
+        val smsReactions = MutableLongObjectMap<MutableList<ReactionRecord>>()
+        val mmsReactions = MutableLongObjectMap<MutableList<ReactionRecord>>()
+        if (includeReactions) {
+            reactionDatabase.get().loadReactionsForMessages(
+                smsIds = smsIds,
+                mmsIds = mmsIds,
+                additionalSelection = reactionSelection,
+                smsOut = smsReactions,
+                mmsOut = mmsReactions,
+            )
+        }
+
+        return MessageHydration(
+            attachments = attachments,
+            smsReactions = smsReactions,
+            mmsReactions = mmsReactions,
+        )
     }
 
     /**
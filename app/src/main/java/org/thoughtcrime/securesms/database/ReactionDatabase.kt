@@ -3,15 +3,15 @@ package org.thoughtcrime.securesms.database
 import android.content.ContentValues
 import android.content.Context
 import android.database.Cursor
+import androidx.collection.LongList
+import androidx.collection.MutableLongList
+import androidx.collection.MutableLongObjectMap
 import kotlinx.coroutines.channels.BufferOverflow
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.MutableSharedFlow
 import net.zetetic.database.sqlcipher.SQLiteDatabase
-import org.json.JSONArray
-import org.json.JSONException
 import org.session.libsignal.utilities.AccountId
 import org.session.libsession.utilities.Address
-import org.session.libsignal.utilities.SaneJSONObject
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper
 import org.thoughtcrime.securesms.database.model.MessageId
 import org.thoughtcrime.securesms.database.model.ReactionRecord
@@ -33,7 +33,6 @@ class ReactionDatabase(context: Context, helper: Provider<SQLCipherOpenHelper>)
 
   companion object {
     const val TABLE_NAME = "reaction"
-    const val REACTION_JSON_ALIAS = "reaction_json"
     const val ROW_ID = "reaction_id"
     const val MESSAGE_ID = "message_id"
     const val IS_MMS = "is_mms"
@@ -137,6 +136,7 @@ class ReactionDatabase(context: Context, helper: Provider<SQLCipherOpenHelper>)
 
     private fun readReaction(cursor: Cursor): ReactionRecord {
       return ReactionRecord(
+        id = CursorUtil.requireLong(cursor, ROW_ID),
         messageId = MessageId(CursorUtil.requireLong(cursor, MESSAGE_ID), CursorUtil.requireInt(cursor, IS_MMS) == 1),
         emoji = CursorUtil.requireString(cursor, EMOJI),
         author = CursorUtil.requireString(cursor, AUTHOR_ID),
@@ -168,63 +168,128 @@ class ReactionDatabase(context: Context, helper: Provider<SQLCipherOpenHelper>)
     addReactions(mapOf(reaction.messageId to listOf(reaction)), replaceAll = false)
   }
 
+  /**
+   * Add the given reactions. If [replaceAll] is true, the given reactions become the only
+   * reactions of their messages, see [reconcileReactions].
+   */
   fun addReactions(reactionsByMessageId: Map<MessageId, List<ReactionRecord>>, replaceAll: Boolean) {
     if (reactionsByMessageId.isEmpty()) return
 
+    if (replaceAll) {
+      reconcileReactions(reactionsByMessageId)
+      return
+    }
+
     val values = ContentValues()
 
     writableDatabase.beginTransaction()
     try {
-      // Delete existing reactions for the same message IDs if replaceAll is true
-      if (replaceAll && reactionsByMessageId.isNotEmpty()) {
-        // We don't need to do parameteralized queries here as messageId and isMms are always
-        // integers/boolean, and hence no risk of SQL injection.
-        val whereClause = StringBuilder("($MESSAGE_ID, $IS_MMS) IN (")
-        for ((i, id) in reactionsByMessageId.keys.withIndex()) {
-          if (i > 0) {
-            whereClause.append(", ")
-          }
-
-          whereClause
-            .append('(')
-            .append(id.id).append(',').append(id.mms)
-            .append(')')
-        }
-        whereClause.append(')')
-
-        writableDatabase.delete(TABLE_NAME, whereClause.toString(), null)
-      }
-
       reactionsByMessageId
         .asSequence()
         .flatMap { it.value.asSequence() }
-        .forEach { reaction ->
-            values.apply {
-              put(MESSAGE_ID, reaction.messageId.id)
-              put(IS_MMS, reaction.messageId.mms)
-              put(EMOJI, reaction.emoji)
-              put(AUTHOR_ID, reaction.author)
-              put(SERVER_ID, reaction.serverId)
-              put(COUNT, reaction.count)
-              put(SORT_ID, reaction.sortId)
-              put(DATE_SENT, reaction.dateSent)
-              put(DATE_RECEIVED, reaction.dateReceived)
-            }
-
-            writableDatabase.insert(TABLE_NAME, null, values)
-        }
+        .forEach { reaction -> insertReaction(reaction, values) }
 
       writableDatabase.setTransactionSuccessful()
 
       // Notify listeners about the change
       for (messageId in reactionsByMessageId.keys) {
-        mutableChangeNotification.tryEmit(messageId)
+        TransactionSideEffects.emitAfterCommit(mutableChangeNotification, messageId)
       }
     } finally {
       writableDatabase.endTransaction()
     }
   }
 
+  /**
+   * Make the given reactions the only reactions of their messages.
+   *
+   * Rather than replacing all the reactions of the messages, the stored reactions are diffed
+   * against the given ones, so only the reactions that were added, removed or changed are
+   * written. This matters for community messages, whose reactions are all sent again on every
+   * poll. Only the messages whose reactions actually changed are notified.
+   */
+  fun reconcileReactions(reactionsByMessageId: Map<MessageId, List<ReactionRecord>>) {
+    if (reactionsByMessageId.isEmpty()) return
+
+    val smsIds = MutableLongList()
+    val mmsIds = MutableLongList()
+    for (messageId in reactionsByMessageId.keys) {
+      if (messageId.mms) mmsIds += messageId.id else smsIds += messageId.id
+    }
+
+    val changedMessageIds = arrayListOf<MessageId>()
+    val db = writableDatabase
+    val values = ContentValues()
+
+    db.beginTransaction()
+    try {
+      // Loaded within the transaction, so that a reaction added or removed in the meantime
+      // can't leave the diff with stale row ids
+      val smsExisting = MutableLongObjectMap<MutableList<ReactionRecord>>()
+      val mmsExisting = MutableLongObjectMap<MutableList<ReactionRecord>>()
+      loadReactionsForMessages(smsIds, mmsIds, null, smsExisting, mmsExisting)
+
+      db.compileStatement("""
+        UPDATE $TABLE_NAME SET $SERVER_ID = ?, $COUNT = ?, $SORT_ID = ?, $DATE_SENT = ?, $DATE_RECEIVED = ?
+        WHERE $ROW_ID = ?
+      """).use { updateStatement ->
+        for ((messageId, reactions) in reactionsByMessageId) {
+          val existing = (if (messageId.mms) mmsExisting else smsExisting)[messageId.id].orEmpty()
+          val diff = ReactionDiff.of(existing, reactions)
+          if (diff.isEmpty) continue
+
+          if (diff.deletes.isNotEmpty()) {
+            db.delete(
+              TABLE_NAME,
+              "$ROW_ID IN (SELECT value FROM json_each(?))",
+              arrayOf(diff.deletes.joinToString(separator = ",", prefix = "[", postfix = "]") { it.id.toString() })
+            )
+          }
+
+          for (reaction in diff.updates) {
+            updateStatement.bindString(1, reaction.serverId)
+            updateStatement.bindLong(2, reaction.count)
+            updateStatement.bindLong(3, reaction.sortId)
+            updateStatement.bindLong(4, reaction.dateSent)
+            updateStatement.bindLong(5, reaction.dateReceived)
+            updateStatement.bindLong(6, reaction.id)
+            updateStatement.executeUpdateDelete()
+          }
+
+          for (reaction in diff.inserts) {
+            insertReaction(reaction, values)
+          }
+
+          changedMessageIds += messageId
+        }
+      }
+
+      db.setTransactionSuccessful()
+    } finally {
+      db.endTransaction()
+    }
+
+    for (messageId in changedMessageIds) {
+      TransactionSideEffects.emitAfterCommit(mutableChangeNotification, messageId)
+    }
+  }
+
+  private fun insertReaction(reaction: ReactionRecord, values: ContentValues) {
+    values.apply {
+      put(MESSAGE_ID, reaction.messageId.id)
+      put(IS_MMS, reaction.messageId.mms)
+      put(EMOJI, reaction.emoji)
+      put(AUTHOR_ID, reaction.author)
+      put(SERVER_ID, reaction.serverId)
+      put(COUNT, reaction.count)
+      put(SORT_ID, reaction.sortId)
+      put(DATE_SENT, reaction.dateSent)
+      put(DATE_RECEIVED, reaction.dateReceived)
+    }
+
+    writableDatabase.insert(TABLE_NAME, null, values)
+  }
+
   fun deleteReaction(emoji: String, messageId: MessageId, author: String) {
     deleteReactions(
       query = "$MESSAGE_ID = ? AND $IS_MMS = ? AND $EMOJI = ? AND $AUTHOR_ID = ?",
@@ -315,7 +380,7 @@ class ReactionDatabase(context: Context, helper: Provider<SQLCipherOpenHelper>)
       }
 
       if (changed) {
-          mutableChangeNotification.tryEmit(messageId)
+          TransactionSideEffects.emitAfterCommit(mutableChangeNotification, messageId)
       }
   }
 
@@ -326,54 +391,44 @@ class ReactionDatabase(context: Context, helper: Provider<SQLCipherOpenHelper>)
     }
 
     for (messageId in updatedMessageIDs) {
-      mutableChangeNotification.tryEmit(messageId)
+      TransactionSideEffects.emitAfterCommit(mutableChangeNotification, messageId)
     }
   }
 
-  fun getReactions(cursor: Cursor): List<ReactionRecord> {
-    return try {
-      if (cursor.getColumnIndex(REACTION_JSON_ALIAS) != -1) {
-        if (cursor.isNull(cursor.getColumnIndexOrThrow(REACTION_JSON_ALIAS))) {
-          return listOf()
-        }
-        val result = mutableSetOf<ReactionRecord>()
-        val array = JSONArray(cursor.getString(cursor.getColumnIndexOrThrow(REACTION_JSON_ALIAS)))
-        for (i in 0 until array.length()) {
-          val obj = SaneJSONObject(array.getJSONObject(i))
-          if (!obj.isNull(ROW_ID)) {
-            result.add(
-              ReactionRecord(
-                id = obj.getLong(ROW_ID),
-                messageId = MessageId(obj.getLong(MESSAGE_ID), obj.getInt(IS_MMS) == 1),
-                author = obj.getString(AUTHOR_ID),
-                emoji = obj.getString(EMOJI),
-                serverId = obj.getString(SERVER_ID),
-                count = obj.getLong(COUNT),
-                sortId = obj.getLong(SORT_ID),
-                dateSent = obj.getLong(DATE_SENT),
-                dateReceived = obj.getLong(DATE_RECEIVED)
-              )
-            )
-          }
-        }
-        result.sortedBy { it.dateSent }
-      } else {
-        listOf(
-          ReactionRecord(
-            id = cursor.getLong(cursor.getColumnIndexOrThrow(ROW_ID)),
-            messageId = MessageId(cursor.getLong(MESSAGE_ID), cursor.getInt(IS_MMS) == 1),
-            author = cursor.getString(cursor.getColumnIndexOrThrow(AUTHOR_ID)),
-            emoji = cursor.getString(cursor.getColumnIndexOrThrow(EMOJI)),
-            serverId = cursor.getString(cursor.getColumnIndexOrThrow(SERVER_ID)),
-            count = cursor.getLong(cursor.getColumnIndexOrThrow(COUNT)),
-            sortId = cursor.getLong(cursor.getColumnIndexOrThrow(SORT_ID)),
-            dateSent = cursor.getLong(cursor.getColumnIndexOrThrow(DATE_SENT)),
-            dateReceived = cursor.getLong(cursor.getColumnIndexOrThrow(DATE_RECEIVED))
-          )
-        )
+  /**
+   * Load the reactions of all the given messages with a single query. The reactions of each
+   * message are sorted by [DATE_SENT] and put into [smsOut] or [mmsOut], keyed by the message id.
+   */
+  fun loadReactionsForMessages(
+    smsIds: LongList,
+    mmsIds: LongList,
+    additionalSelection: String?,
+    smsOut: MutableLongObjectMap<MutableList<ReactionRecord>>,
+    mmsOut: MutableLongObjectMap<MutableList<ReactionRecord>>,
+  ) {
+    if (smsIds.isEmpty() && mmsIds.isEmpty()) return
+
+    //language=roomsql
+    val query = """
+      SELECT * FROM $TABLE_NAME
+      WHERE (
+        (NOT $IS_MMS AND $MESSAGE_ID IN (SELECT value FROM json_each(?1))) 
+        OR ($IS_MMS AND $MESSAGE_ID IN (SELECT value FROM json_each(?2)))
+      )
+      ${additionalSelection?.let { "AND ($it)" }.orEmpty()}
+      ORDER BY $DATE_SENT
+    """
+
+    readableDatabase.rawQuery(
+      query,
+      smsIds.joinToString(separator = ",", prefix = "[", postfix = "]"),
+      mmsIds.joinToString(separator = ",", prefix = "[", postfix = "]"),
+    ).use { cursor ->
+      while (cursor.moveToNext()) {
+        val reaction = readReaction(cursor)
+        val out = if (reaction.messageId.mms) mmsOut else smsOut
+        out.getOrPut(reaction.messageId.id) { ArrayList() } += reaction
       }
-    } catch (e: JSONException) {
-      throw AssertionError(e)
     }
   }
 
@@ -437,7 +492,7 @@ class ReactionDatabase(context: Context, helper: Provider<SQLCipherOpenHelper>)
       writableDatabase.setTransactionSuccessful()
 
       // Notify listeners about the change
-      mutableChangeNotification.tryEmit(reaction.messageId)
+      TransactionSideEffects.emitAfterCommit(mutableChangeNotification, reaction.messageId)
     } finally {
       writableDatabase.endTransaction()
     }
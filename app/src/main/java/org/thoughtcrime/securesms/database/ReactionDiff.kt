@@ -0,0 +1,44 @@
+package org.thoughtcrime.securesms.database
+
+import org.thoughtcrime.securesms.database.model.ReactionRecord
+
+/**
+ * The changes needed to turn the stored reactions of a message into a new set of reactions,
+ * where reactions are matched by their emoji and author.
+ *
+ * The [updates] carry the row ids of the stored reactions they replace.
+ */
+class ReactionDiff(
+    val inserts: List<ReactionRecord>,
+    val updates: List<ReactionRecord>,
+    val deletes: List<ReactionRecord>,
+) {
+    val isEmpty: Boolean
+        get() = inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty()
+
+    companion object {
+        fun of(existing: List<ReactionRecord>, updated: List<ReactionRecord>): ReactionDiff {
+            val existingByKey = HashMap<Pair<String, String>, ReactionRecord>(existing.size)
+            for (reaction in existing) {
+                existingByKey[reaction.emoji to reaction.author] = reaction
+            }
+
+            val inserts = arrayListOf<ReactionRecord>()
+            val updates = arrayListOf<ReactionRecord>()
+
+            // Later duplicates win, like they would with the table's conflict resolution
+            for (reaction in updated.associateBy { it.emoji to it.author }.values) {
+                val stored = existingByKey.remove(reaction.emoji to reaction.author)
+                val withRowId = reaction.copy(id = stored?.id ?: 0)
+
+                when {
+                    stored == null -> inserts += reaction
+                    withRowId != stored -> updates += withRowId
+                }
+            }
+
+            // Whatever is left wasn't in the new reactions anymore
+            return ReactionDiff(inserts, updates, existingByKey.values.toList())
+        }
+    }
+}
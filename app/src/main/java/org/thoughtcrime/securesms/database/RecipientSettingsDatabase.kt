@@ -59,7 +59,7 @@ class RecipientSettingsDatabase @Inject constructor(
             SQLiteDatabase.CONFLICT_REPLACE
         )
 
-        mutableChangeNotification.tryEmit(address)
+        TransactionSideEffects.emitAfterCommit(mutableChangeNotification, address)
     }
 
     /**
@@ -84,7 +84,7 @@ class RecipientSettingsDatabase @Inject constructor(
             "$COL_ADDRESS = ?",
             arrayOf(address.toString())
         ) > 0) {
-            mutableChangeNotification.tryEmit(address)
+            TransactionSideEffects.emitAfterCommit(mutableChangeNotification, address)
         }
     }
 
@@ -217,7 +217,7 @@ class RecipientSettingsDatabase @Inject constructor(
         // Notify after db transaction
         for (address in orphans) {
             cache.remove(address)
-            mutableChangeNotification.tryEmit(address)
+            TransactionSideEffects.emitAfterCommit(mutableChangeNotification, address)
         }
 
         return deleted
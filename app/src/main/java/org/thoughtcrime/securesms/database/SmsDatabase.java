@@ -24,6 +24,8 @@ import android.content.Context;
 import android.database.Cursor;
 
 import androidx.collection.ArraySet;
+import androidx.collection.LongLongMap;
+import androidx.collection.MutableLongLongMap;
 import androidx.collection.MutableLongObjectMap;
 import androidx.sqlite.db.SupportSQLiteDatabase;
 
@@ -51,6 +53,7 @@ import org.thoughtcrime.securesms.pro.ProFeatureExtKt;
 import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -157,6 +160,12 @@ public class SmsDatabase extends MessagingDatabase {
               " BOOLEAN GENERATED ALWAYS AS ((" + TYPE + " & " + MmsSmsColumns.Types.BASE_TYPE_MASK +") IN " + allOutgoingMessageTypeSet + ") VIRTUAL");
   }
 
+  public static void addExpiresAtColumn(SupportSQLiteDatabase db) {
+    db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + EXPIRES_AT + " INTEGER GENERATED ALWAYS AS (" +
+            "CASE WHEN " + EXPIRES_IN + " > 0 AND " + EXPIRE_STARTED + " > 0 THEN " + EXPIRE_STARTED + " + " + EXPIRES_IN + " END) VIRTUAL");
+    db.execSQL("CREATE INDEX IF NOT EXISTS sms_expires_at_index ON " + TABLE_NAME + " (" + EXPIRES_AT + ") WHERE " + EXPIRES_AT + " IS NOT NULL");
+  }
+
   private static final EarlyReceiptCache earlyDeliveryReceiptCache = new EarlyReceiptCache();
   private static final EarlyReceiptCache earlyReadReceiptCache     = new EarlyReceiptCache();
 
@@ -164,6 +173,7 @@ public class SmsDatabase extends MessagingDatabase {
   private final SnodeClock snodeClock;
   private final Lazy<@NonNull ReactionDatabase> reactionDatabase;
   final Provider<@NonNull PreferenceStorage> prefs;
+  private final MessageExpirySchedule expirySchedule;
 
   final MutableSharedFlow<MessageChanges> changeNotification
           = SharedFlowKt.MutableSharedFlow(0, 24, BufferOverflow.DROP_OLDEST);
@@ -174,12 +184,14 @@ public class SmsDatabase extends MessagingDatabase {
                      RecipientRepository recipientRepository,
                      SnodeClock snodeClock,
                      Lazy<@NonNull ReactionDatabase> reactionDatabase,
-                     Provider<@NonNull PreferenceStorage> prefs) {
+                     Provider<@NonNull PreferenceStorage> prefs,
+                     MessageExpirySchedule expirySchedule) {
     super(context, databaseHelper);
     this.recipientRepository = recipientRepository;
     this.snodeClock = snodeClock;
     this.reactionDatabase = reactionDatabase;
     this.prefs = prefs;
+    this.expirySchedule = expirySchedule;
   }
 
   public SharedFlow<MessageChanges> getChangeNotification() {
@@ -200,7 +212,7 @@ public class SmsDatabase extends MessagingDatabase {
                " RETURNING " + THREAD_ID, id)) {
         if (cursor.moveToNext()) {
             long threadId = cursor.getLong(0);
-            changeNotification.tryEmit(new MessageChanges(
+            TransactionSideEffects.emitAfterCommit(changeNotification, new MessageChanges(
                     MessageChanges.ChangeType.Updated,
                     new MessageId(id, false),
                     threadId
@@ -267,10 +279,14 @@ public class SmsDatabase extends MessagingDatabase {
   public void markExpireStarted(long id, long startedAtTimestamp) {
     SQLiteDatabase db = getWritableDatabase();
     try (final Cursor cursor = db.rawQuery("UPDATE " + TABLE_NAME + " SET " + EXPIRE_STARTED + " = ? " +
-                    "WHERE " + ID + " = ? RETURNING " + THREAD_ID, startedAtTimestamp, id)) {
+                    "WHERE " + ID + " = ? RETURNING " + THREAD_ID + ", " + EXPIRES_AT, startedAtTimestamp, id)) {
       if (cursor.moveToNext()) {
         long threadId = cursor.getLong(0);
-        changeNotification.tryEmit(new MessageChanges(
+        if (!cursor.isNull(1)) {
+          expirySchedule.schedule(new MessageId(id, false), cursor.getLong(1));
+        }
+
+        TransactionSideEffects.emitAfterCommit(changeNotification, new MessageChanges(
                 MessageChanges.ChangeType.Updated,
                 new MessageId(id, false),
                 threadId
@@ -279,6 +295,47 @@ public class SmsDatabase extends MessagingDatabase {
     }
   }
 
+  @Override
+  public List<MessageChanges> markExpireStarted(LongLongMap startTimeByMessageId) {
+    if (startTimeByMessageId.isEmpty()) return Collections.emptyList();
+
+    final JSONArray startTimes = new JSONArray();
+    startTimeByMessageId.forEach((messageId, startTime) -> {
+      startTimes.put(new JSONArray().put(messageId).put(startTime));
+      return Unit.INSTANCE;
+    });
+
+    final MutableLongObjectMap<List<MessageId>> changedIdsByThreadId = new MutableLongObjectMap<>();
+
+    try (final Cursor cursor = getWritableDatabase().rawQuery("UPDATE " + TABLE_NAME + " SET " + EXPIRE_STARTED + " = s.start_time " +
+                    "FROM (SELECT value ->> 0 AS message_id, value ->> 1 AS start_time FROM json_each(?)) AS s " +
+                    "WHERE " + ID + " = s.message_id AND IFNULL(" + EXPIRE_STARTED + ", 0) != s.start_time " +
+                    "RETURNING " + ID + ", " + THREAD_ID + ", " + EXPIRES_AT, startTimes.toString())) {
+      while (cursor.moveToNext()) {
+        MessageId messageId = new MessageId(cursor.getLong(0), false);
+        if (!cursor.isNull(2)) {
+          expirySchedule.schedule(messageId, cursor.getLong(2));
+        }
+
+        changedIdsByThreadId.getOrPut(cursor.getLong(1), ArrayList::new).add(messageId);
+      }
+    }
+
+    final List<MessageChanges> changes = new ArrayList<>(changedIdsByThreadId.getSize());
+    changedIdsByThreadId.forEach((threadId, changed) -> {
+      changes.add(new MessageChanges(MessageChanges.ChangeType.Updated, changed, threadId));
+      return Unit.INSTANCE;
+    });
+    return changes;
+  }
+
+  @Override
+  public void notifyChanges(List<MessageChanges> changes) {
+    for (MessageChanges change : changes) {
+      TransactionSideEffects.emitAfterCommit(changeNotification, change);
+    }
+  }
+
   public void markAsSentFailed(long id) {
     updateTypeBitmask(id, Types.BASE_TYPE_MASK, Types.BASE_SENT_FAILED_TYPE);
   }
@@ -379,7 +436,7 @@ public class SmsDatabase extends MessagingDatabase {
                              ID + " = ?",
                              new String[] {String.valueOf(id)});
 
-            changeNotification.tryEmit(new MessageChanges(
+            TransactionSideEffects.emitAfterCommit(changeNotification, new MessageChanges(
                     MessageChanges.ChangeType.Updated,
                     new MessageId(id, false),
                     threadId
@@ -406,7 +463,7 @@ public class SmsDatabase extends MessagingDatabase {
             "WHERE " + ID + " = ? RETURNING " + THREAD_ID, newTimestamp, messageId)) {
         if (cursor.moveToNext()) {
           long threadId = cursor.getLong(0);
-          changeNotification.tryEmit(new MessageChanges(
+          TransactionSideEffects.emitAfterCommit(changeNotification, new MessageChanges(
                   MessageChanges.ChangeType.Updated,
                   new MessageId(messageId, false),
                   threadId
@@ -458,7 +515,9 @@ public class SmsDatabase extends MessagingDatabase {
       SQLiteDatabase db        = getWritableDatabase();
       long           messageId = db.insert(TABLE_NAME, null, values);
 
-      changeNotification.tryEmit(new MessageChanges(
+      scheduleExpiry(messageId, message.getExpiresInMillis(), message.getExpireStartedAt());
+
+      TransactionSideEffects.emitAfterCommit(changeNotification, new MessageChanges(
               MessageChanges.ChangeType.Added,
               new MessageId(messageId, false),
               threadId
@@ -538,7 +597,9 @@ public class SmsDatabase extends MessagingDatabase {
 
     final long id = getWritableDatabase().insert(TABLE_NAME, ADDRESS, contentValues);
 
-    changeNotification.tryEmit(new MessageChanges(
+    scheduleExpiry(id, message.getExpiresInMillis(), message.getExpireStartedAtMillis());
+
+    TransactionSideEffects.emitAfterCommit(changeNotification, new MessageChanges(
             MessageChanges.ChangeType.Added,
             new MessageId(id, false),
             threadId
@@ -546,35 +607,40 @@ public class SmsDatabase extends MessagingDatabase {
 
     return id;
   }
+
+  private void scheduleExpiry(long messageId, long expiresIn, long expireStarted) {
+    if (messageId != -1 && expiresIn > 0 && expireStarted > 0) {
+      expirySchedule.schedule(new MessageId(messageId, false), expireStarted + expiresIn);
+    }
+  }
+
   @Override
-  public List<Long> getExpiredMessageIDs(long nowMills) {
-    String query = "SELECT " + ID + " FROM " + TABLE_NAME +
-            " WHERE " + EXPIRES_IN + " > 0 AND " + EXPIRE_STARTED + " > 0 AND " + EXPIRE_STARTED + " + " + EXPIRES_IN + " <= ?";
+  public LongLongMap getExpiringMessages() {
+    String query = "SELECT " + ID + ", " + EXPIRES_AT + " FROM " + TABLE_NAME +
+            " WHERE " + EXPIRES_AT + " IS NOT NULL";
 
-    try (final Cursor cursor = getReadableDatabase().rawQuery(query, nowMills)) {
-      List<Long> result = new ArrayList<>(cursor.getCount());
+    try (final Cursor cursor = getReadableDatabase().rawQuery(query)) {
+      MutableLongLongMap result = new MutableLongLongMap(cursor.getCount());
       while (cursor.moveToNext()) {
-          result.add(cursor.getLong(0));
+        result.set(cursor.getLong(0), cursor.getLong(1));
       }
 
       return result;
     }
   }
 
-  /**
-   * @return the next expiring timestamp for messages that have started expiring. 0 if no messages are expiring.
-   */
   @Override
-  public long getNextExpiringTimestamp() {
-    String query = "SELECT MIN(" + EXPIRE_STARTED + " + " + EXPIRES_IN + ") FROM " + TABLE_NAME +
-            " WHERE " + EXPIRES_IN + " > 0 AND " + EXPIRE_STARTED + " > 0";
-
-    try (final Cursor cursor = getReadableDatabase().rawQuery(query)) {
-      if (cursor.moveToFirst()) {
-        return cursor.getLong(0);
-      } else {
-        return 0L;
-      }
+  public void deleteExpiredMessages(Collection<Long> messageIds, long nowMills) {
+    SQLiteDatabase db = getWritableDatabase();
+    db.beginTransaction();
+    try {
+      doDeleteMessages(
+              ID + " IN (SELECT value FROM json_each(?)) AND " + EXPIRES_AT + " <= ?",
+              new JSONArray(messageIds).toString(), nowMills
+      );
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
     }
   }
 
@@ -634,7 +700,7 @@ public class SmsDatabase extends MessagingDatabase {
     }
 
     deletedByThreadIDs.forEach((threadId, deleted) -> {
-      changeNotification.tryEmit(new MessageChanges(
+      TransactionSideEffects.emitAfterCommit(changeNotification, new MessageChanges(
               MessageChanges.ChangeType.Deleted,
               deleted,
               threadId
@@ -678,10 +744,12 @@ public class SmsDatabase extends MessagingDatabase {
 
   public class Reader implements Closeable {
 
-    private final Cursor cursor;
+    private final Cursor                     cursor;
+    private final @Nullable MessageHydration hydration;
 
     public Reader(Cursor cursor) {
-      this.cursor = cursor;
+      this.cursor    = cursor;
+      this.hydration = cursor instanceof HydratedMessageCursor ? ((HydratedMessageCursor) cursor).getHydration() : null;
     }
 
     public SmsMessageRecord getNext() {
@@ -721,8 +789,9 @@ public class SmsDatabase extends MessagingDatabase {
 
       String serverHash = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsColumns.SERVER_HASH));
 
-      Recipient recipient  = recipientRepository.getRecipientSync(address);
-      List<ReactionRecord>      reactions  = reactionDatabase.get().getReactions(cursor);
+      Recipient            recipient  = recipientRepository.getRecipientSync(address);
+      MessageId            id         = new MessageId(messageId, false);
+      List<ReactionRecord> reactions  = hydration != null ? hydration.getReactions(id) : reactionDatabase.get().getReactions(id);
 
       return new SmsMessageRecord(
               messageId,
@@ -1,6 +1,7 @@
 package org.thoughtcrime.securesms.database
 
 import android.content.Context
+import android.database.sqlite.SQLiteTransactionListener
 import android.net.Uri
 import dagger.hilt.android.qualifiers.ApplicationContext
 import kotlinx.coroutines.Dispatchers
@@ -125,6 +126,43 @@ open class Storage @Inject constructor(
         return AccountId(BlindKeyAPI.blind15Ids(myId, serverPublicKey).first())
     }
 
+    override fun <T> runInTransaction(block: () -> T): T {
+        val db = writableDatabase
+
+        // Nested in a transaction that wasn't begun here, whose commit we won't get to see
+        if (db.inTransaction() && !TransactionSideEffects.isCollecting) {
+            db.beginTransaction()
+            try {
+                return block().also { db.setTransactionSuccessful() }
+            } finally {
+                db.endTransaction()
+            }
+        }
+
+        return TransactionSideEffects.collect {
+            var committed = false
+
+            // A failed nested transaction silently rolls back this one too, only the listener knows
+            db.beginTransactionWithListener(object : SQLiteTransactionListener {
+                override fun onBegin() {}
+                override fun onCommit() { committed = true }
+                override fun onRollback() {}
+            })
+
+            val result = try {
+                block().also { db.setTransactionSuccessful() }
+            } finally {
+                db.endTransaction()
+            }
+
+            result to committed
+        }
+    }
+
+    override fun runAfterCommit(action: () -> Unit) {
+        TransactionSideEffects.runAfterCommit(action)
+    }
+
     override fun getAttachmentsForMessage(mmsMessageId: Long): List<DatabaseAttachment> {
         return attachmentDatabase.getAttachmentsForMessage(mmsMessageId)
     }
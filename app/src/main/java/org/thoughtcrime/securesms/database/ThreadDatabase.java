@@ -213,8 +213,8 @@ public class ThreadDatabase extends Database {
 
   void notifyThreadUpdated(long threadId, Address.Conversable address) {
     ThreadChanges changes = new ThreadChanges(threadId, address);
-    if (changeNotification.tryEmit(changes)) {
-      Log.d(TAG, "Notified thread changes: " + changes);
+    if (TransactionSideEffects.emitAfterCommit(changeNotification, changes)) {
+      Log.d(TAG, "Notified thread changes, or queued them until the transaction commits: " + changes);
     } else {
       Log.w(TAG, "Unable to notify thread changes, flow full");
     }
@@ -0,0 +1,66 @@
+package org.thoughtcrime.securesms.database
+
+import kotlinx.coroutines.flow.MutableSharedFlow
+
+/**
+ * Holds back side effects, like change notifications and jobs, while the current thread writes a
+ * transaction through [Storage.runInTransaction].
+ *
+ * Whatever they trigger usually reads the database again, from another connection, where the
+ * changes only become visible once committed. So they are run after the commit instead, and
+ * dropped if the transaction rolls back.
+ *
+ * This only works when [Storage.runInTransaction] begins the outermost transaction. If it is
+ * called inside a transaction begun directly on the database, the commit it sees is only the
+ * nested one. In that case it runs the side effects right away, as if there were no transaction.
+ */
+object TransactionSideEffects {
+    private val pending = ThreadLocal<ArrayList<() -> Unit>?>()
+
+    /**
+     * Runs [action] now, or once the transaction being written on this thread has committed.
+     */
+    @JvmStatic
+    fun runAfterCommit(action: () -> Unit) {
+        pending.get()?.add(action) ?: action()
+    }
+
+    /**
+     * Emits [change] to [flow] now, or once the transaction being written on this thread has
+     * committed.
+     *
+     * @return Whether the change was emitted or held back, false if the flow was full.
+     */
+    @JvmStatic
+    fun <T> emitAfterCommit(flow: MutableSharedFlow<T>, change: T): Boolean {
+        val actions = pending.get() ?: return flow.tryEmit(change)
+        actions.add { flow.tryEmit(change) }
+        return true
+    }
+
+    internal val isCollecting: Boolean
+        get() = pending.get() != null
+
+    /**
+     * Runs [transaction], holding back the side effects it produces. These are run if it
+     * reports that it committed, and dropped otherwise. A nested call joins the outer one.
+     */
+    internal fun <T> collect(transaction: () -> Pair<T, Boolean>): T {
+        if (pending.get() != null) return transaction().first
+
+        val actions = ArrayList<() -> Unit>()
+        pending.set(actions)
+
+        val (result, committed) = try {
+            transaction()
+        } finally {
+            pending.set(null)
+        }
+
+        if (committed) {
+            actions.forEach { it() }
+        }
+
+        return result
+    }
+}
@@ -28,6 +28,7 @@ import org.thoughtcrime.securesms.database.LokiBackupFilesDatabase;
 import org.thoughtcrime.securesms.database.LokiMessageDatabase;
 import org.thoughtcrime.securesms.database.LokiThreadDatabase;
 import org.thoughtcrime.securesms.database.LokiUserDatabase;
+import org.thoughtcrime.securesms.database.MediaDatabase;
 import org.thoughtcrime.securesms.database.MmsDatabase;
 import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 import org.thoughtcrime.securesms.database.PushDatabase;
@@ -110,9 +111,13 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
   private static final int lokiV58                          = 79;
   private static final int lokiV59                          = 80;
   private static final int lokiV60                          = 81;
+  private static final int lokiV61                          = 82;
+  private static final int lokiV62                          = 83;
+  private static final int lokiV63                          = 84;
+  private static final int lokiV64                          = 85;
 
   // Loki - onUpgrade(...) must be updated to use Loki version numbers if Signal makes any database changes
-  private static final int    DATABASE_VERSION         = lokiV60;
+  private static final int    DATABASE_VERSION         = lokiV64;
   private static final int    MIN_DATABASE_VERSION     = lokiV7;
   public static final String  DATABASE_NAME            = "session.db";
 
@@ -286,6 +291,12 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
 
     SmsDatabase.addOutgoingColumn(db);
     MmsDatabase.Companion.addOutgoingColumn(db);
+
+    SmsDatabase.addExpiresAtColumn(db);
+    MmsDatabase.Companion.addExpiresAtColumn(db);
+    AttachmentDatabase.addDataDeduplicationColumns(db);
+    db.execSQL(MediaDatabase.CREATE_MEDIA_INDEX);
+    AttachmentDatabase.addSourceKeyAndDigestColumns(db);
   }
 
   @Override
@@ -649,6 +660,23 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
         MmsDatabase.Companion.addOutgoingColumn(db);
       }
 
+      if (oldVersion < lokiV61) {
+        SmsDatabase.addExpiresAtColumn(db);
+        MmsDatabase.Companion.addExpiresAtColumn(db);
+      }
+
+      if (oldVersion < lokiV62) {
+        AttachmentDatabase.addDataDeduplicationColumns(db);
+      }
+
+      if (oldVersion < lokiV63) {
+        db.execSQL(MediaDatabase.CREATE_MEDIA_INDEX);
+      }
+
+      if (oldVersion < lokiV64) {
+        AttachmentDatabase.addSourceKeyAndDigestColumns(db);
+      }
+
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
@@ -79,17 +79,17 @@ class DebugLogger @Inject constructor(
         toastEnabled[group] == true
 
     // ---- Log.Logger overrides (no “level” logic) ----
-    override fun v(tag: String, message: String?, t: Throwable?) = add(tag, message, t)
-    override fun d(tag: String, message: String?, t: Throwable?) = add(tag, message, t)
-    override fun i(tag: String, message: String?, t: Throwable?) = add(tag, message, t)
-    override fun w(tag: String, message: String?, t: Throwable?) = add(tag, message, t)
-    override fun e(tag: String, message: String?, t: Throwable?) = add(tag, message, t)
-    override fun wtf(tag: String, message: String?, t: Throwable?) = add(tag, message, t)
+    override fun v(tag: String?, message: String?, t: Throwable?) = add(tag, message, t)
+    override fun d(tag: String?, message: String?, t: Throwable?) = add(tag, message, t)
+    override fun i(tag: String?, message: String?, t: Throwable?) = add(tag, message, t)
+    override fun w(tag: String?, message: String?, t: Throwable?) = add(tag, message, t)
+    override fun e(tag: String?, message: String?, t: Throwable?) = add(tag, message, t)
+    override fun wtf(tag: String?, message: String?, t: Throwable?) = add(tag, message, t)
     override fun blockUntilAllWritesFinished() { /* no-op */ }
 
-    private fun add(tag: String, message: String?, t: Throwable?) {
+    private fun add(tag: String?, message: String?, t: Throwable?) {
         // Capture ONLY if tag is in our allow-list
-        if (!allowedTags.contains(tag.lowercase())) return
+        if (tag == null || !allowedTags.contains(tag.lowercase())) return
 
         val group = groupForTag(tag) ?: return
 
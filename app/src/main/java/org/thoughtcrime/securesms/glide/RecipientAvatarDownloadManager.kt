@@ -11,8 +11,6 @@ import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.onStart
 import kotlinx.coroutines.flow.scan
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.sync.Semaphore
-import kotlinx.coroutines.sync.withPermit
 import network.loki.messenger.libsession_util.util.GroupInfo
 import org.session.libsession.utilities.recipients.RemoteFile
 import org.session.libsession.utilities.recipients.RemoteFile.Companion.toRemoteFile
@@ -21,6 +19,7 @@ import org.session.libsession.utilities.withUserConfigs
 import org.session.libsignal.utilities.AccountId
 import org.session.libsignal.utilities.Log
 import org.thoughtcrime.securesms.attachments.AvatarDownloadManager
+import org.thoughtcrime.securesms.attachments.AvatarDownloadScheduler
 import org.thoughtcrime.securesms.auth.LoginStateRepository
 import org.thoughtcrime.securesms.dependencies.ConfigFactory
 import org.thoughtcrime.securesms.dependencies.ManagerScope
@@ -36,8 +35,6 @@ class RecipientAvatarDownloadManager @Inject constructor(
     private val avatarDownloadManager: AvatarDownloadManager,
     private val loginStateRepository: LoginStateRepository,
 ) {
-    private val avatarBulkDownloadSemaphore = Semaphore(5)
-
     init {
         scope.launch {
             loginStateRepository.flowWithLoggedInState {
@@ -71,9 +68,9 @@ class RecipientAvatarDownloadManager @Inject constructor(
 
     private suspend fun enqueueDownload(file: RemoteFile) {
         try {
-            avatarBulkDownloadSemaphore.withPermit {
-                avatarDownloadManager.download(file)
-            }
+            // The scheduler keeps these behind the avatars on screen, and pauses them
+            // while the app is in the background
+            avatarDownloadManager.download(file, AvatarDownloadScheduler.Priority.BACKGROUND).close()
         } catch (e: Exception) {
             if (e !is CancellationException) {
                 Log.w(TAG, "Error downloading avatar $file", e)
@@ -262,7 +262,7 @@ class GroupPoller @AssistedInject constructor(
     }
 
     private suspend fun handleRevoked(messages: List<RetrieveMessageResponse.Message>) {
-        groupRevokedMessageHandler.handleRevokeMessage(groupId, messages.map { it.data })
+        groupRevokedMessageHandler.handleRevokeMessage(groupId, messages.map { it.decodeData() })
     }
 
     private fun handleGroupConfigMessages(
@@ -309,7 +309,7 @@ class GroupPoller @AssistedInject constructor(
 
                 try {
                     val result = messageParser.parseGroupMessage(
-                        data = message.data,
+                        data = message.decodeData(),
                         serverHash = message.hash,
                         groupId = groupId,
                         currentUserId = ctx.currentUserId,
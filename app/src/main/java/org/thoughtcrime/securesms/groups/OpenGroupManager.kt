@@ -2,7 +2,6 @@ package org.thoughtcrime.securesms.groups
 
 import kotlinx.coroutines.async
 import kotlinx.coroutines.supervisorScope
-import kotlinx.serialization.json.Json
 import org.session.libsession.messaging.open_groups.OpenGroupApi
 import org.session.libsession.messaging.open_groups.api.CommunityApiExecutor
 import org.session.libsession.messaging.open_groups.api.CommunityApiRequest
@@ -33,7 +32,6 @@ class OpenGroupManager @Inject constructor(
     private val getCapsApi: Provider<GetCapsApi>,
     private val getRoomDetailsApiFactory: GetRoomDetailsApi.Factory,
     private val communityDatabase: CommunityDatabase,
-    private val json: Json,
 ) {
     suspend fun add(server: String, room: String, publicKey: String): Unit = supervisorScope {
         // Check if the community is already added, if so, we can skip the rest of the process
@@ -72,8 +70,8 @@ class OpenGroupManager @Inject constructor(
         val roomDetails = getRoomDetails.await()
 
         lokiAPIDatabase.setServerCapabilities(server, caps)
-        communityDatabase.patchRoomInfo(Address.Community(server, room),
-            json.encodeToString(OpenGroupApi.RoomInfo(roomDetails)))
+        communityDatabase.updateRoomInfo(Address.Community(server, room),
+            OpenGroupApi.RoomPollInfo(OpenGroupApi.RoomInfo(roomDetails)))
 
 
         // We should be good, now go ahead and add the community to the config
@@ -0,0 +1,459 @@
+package org.thoughtcrime.securesms.logging
+
+import org.session.libsignal.crypto.CipherUtil.CIPHER_LOCK
+import org.session.libsignal.utilities.Util.SECURE_RANDOM
+import org.thoughtcrime.securesms.util.LimitedInputStream
+import java.io.BufferedInputStream
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.security.GeneralSecurityException
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+import javax.crypto.Cipher
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * The binary log file format written by [PersistentLogger].
+ *
+ * Rather than formatting and encrypting every entry on its own like [LogFile] does, entries are
+ * appended as compact binary records to an in-memory block, which is encrypted as a whole with
+ * AES-GCM once it reaches [BLOCK_SIZE] or the writer is flushed. Entries are only turned into
+ * text when the logs are exported.
+ *
+ * A file is [MAGIC] followed by blocks of `[12 byte nonce][4 byte length][ciphertext]`. Each
+ * block is self-contained, and holds a sequence of records:
+ *
+ * - `RECORD_TAG [varint id] [string tag]`: interns a tag for the rest of the block.
+ * - `RECORD_ENTRY [level] [varint tag id, 0 for none] [zigzag varint timestamp delta]
+ *   [string message] [0 | 1 string stack trace]`
+ *
+ * where strings are a varint length followed by their UTF-8 bytes.
+ */
+internal object BlockLogFile {
+    private val MAGIC = byteArrayOf('S'.code.toByte(), 'L'.code.toByte(), 'B'.code.toByte(), 1)
+
+    const val BLOCK_SIZE = 64 * 1024
+
+    // A sanity limit to tell a damaged block header apart from a block with a huge stack trace
+    private const val MAX_BLOCK_SIZE = 16 * 1024 * 1024
+
+    private const val NONCE_SIZE = 12
+    private const val GCM_TAG_BITS = 128
+    private const val HEADER_SIZE = NONCE_SIZE + 4
+
+    private const val RECORD_TAG = 1
+    private const val RECORD_ENTRY = 2
+
+    fun isBlockLogFile(file: File): Boolean {
+        if (file.length() < MAGIC.size) return false
+
+        return FileInputStream(file).use { input ->
+            val header = ByteArray(MAGIC.size)
+            input.read(header) == MAGIC.size && header.contentEquals(MAGIC)
+        }
+    }
+
+    /**
+     * @return Whether the first block of [file] can be decrypted with [secret], or true if it
+     * has no complete block yet. Appending to a file written with another secret would leave a
+     * file that's only partly readable.
+     */
+    fun isWrittenWith(secret: ByteArray, file: File): Boolean {
+        if (completeLength(file) <= MAGIC.size) return true
+
+        return Reader(secret, file).use { it.readFirstBlock() != null }
+    }
+
+    /**
+     * @return The length of the file up to the end of its last complete block, or 0 if the file
+     * isn't in this format.
+     */
+    private fun completeLength(file: File): Long {
+        if (!isBlockLogFile(file)) return 0
+
+        RandomAccessFile(file, "r").use { raf ->
+            var position = MAGIC.size.toLong()
+
+            while (position + HEADER_SIZE <= raf.length()) {
+                raf.seek(position + NONCE_SIZE)
+                val length = raf.readInt()
+                val end = position + HEADER_SIZE + length
+
+                if (length <= 0 || length > MAX_BLOCK_SIZE || end > raf.length()) {
+                    break
+                }
+
+                position = end
+            }
+
+            return position
+        }
+    }
+
+    class Writer(secret: ByteArray, val file: File) : Closeable {
+        private val key = SecretKeySpec(secret, "AES")
+        private val cipher = Cipher.getInstance("AES/GCM/NoPadding")
+        private val nonce = ByteArray(NONCE_SIZE)
+        private val header = ByteBuffer.allocate(HEADER_SIZE)
+        private val block = RecordBuffer(BLOCK_SIZE + BLOCK_SIZE / 4)
+        private var ciphertext = ByteArray(0)
+
+        // Both are reset with each block, so that every block can be read on its own
+        private val tagIds = HashMap<String, Int>()
+        private var lastTimestamp = 0L
+
+        private val outputStream: FileOutputStream
+
+        init {
+            // Drop whatever was left of a block that was being written when the app died,
+            // otherwise the blocks we append would be unreadable.
+            val length = completeLength(file)
+            if (file.length() != length) {
+                RandomAccessFile(file, "rw").use { it.setLength(length) }
+            }
+
+            outputStream = FileOutputStream(file, true)
+            if (length == 0L) {
+                outputStream.write(MAGIC)
+            }
+        }
+
+        val logSize: Long get() = file.length()
+
+        fun writeEntry(level: Char, tag: String?, message: String?, err: Throwable?, timestampMills: Long) {
+            val tagId = when (tag) {
+                null -> 0
+                else -> tagIds[tag] ?: (tagIds.size + 1).also { id ->
+                    tagIds[tag] = id
+                    block.writeByte(RECORD_TAG)
+                    block.writeVarint(id.toLong())
+                    block.writeString(tag)
+                }
+            }
+
+            block.writeByte(RECORD_ENTRY)
+            block.writeByte(level.code)
+            block.writeVarint(tagId.toLong())
+            block.writeVarint(zigzag(timestampMills - lastTimestamp))
+            block.writeString(message.orEmpty())
+            lastTimestamp = timestampMills
+
+            if (err != null) {
+                block.writeByte(1)
+                block.writeString(err.stackTraceToString())
+            } else {
+                block.writeByte(0)
+            }
+
+            if (block.size >= BLOCK_SIZE) {
+                sealBlock()
+            }
+        }
+
+        /**
+         * Encrypts and writes out the entries written so far, even if the block isn't full.
+         */
+        fun flush() {
+            sealBlock()
+            outputStream.flush()
+        }
+
+        override fun close() {
+            try {
+                flush()
+            } finally {
+                outputStream.close()
+            }
+        }
+
+        private fun sealBlock() {
+            if (block.size == 0) return
+
+            SECURE_RANDOM.nextBytes(nonce)
+
+            val length = synchronized(CIPHER_LOCK) {
+                cipher.init(Cipher.ENCRYPT_MODE, key, GCMParameterSpec(GCM_TAG_BITS, nonce))
+
+                val outputSize = cipher.getOutputSize(block.size)
+                if (ciphertext.size < outputSize) {
+                    ciphertext = ByteArray(outputSize)
+                }
+
+                cipher.doFinal(block.bytes, 0, block.size, ciphertext, 0)
+            }
+
+            header.clear()
+            header.put(nonce).putInt(length)
+            outputStream.write(header.array())
+            outputStream.write(ciphertext, 0, length)
+
+            block.reset()
+            tagIds.clear()
+            lastTimestamp = 0L
+        }
+    }
+
+    class Reader(secret: ByteArray, file: File) : Closeable {
+        private val key = SecretKeySpec(secret, "AES")
+        private val cipher = Cipher.getInstance("AES/GCM/NoPadding")
+        private val nonce = ByteArray(NONCE_SIZE)
+        private val dateFormat = SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz", Locale.ENGLISH)
+
+        // Limit the input stream to the file size to prevent endless reading of the file being written.
+        private val input = DataInputStream(BufferedInputStream(LimitedInputStream(FileInputStream(file), file.length())))
+
+        init {
+            val magic = ByteArray(MAGIC.size)
+            input.readFully(magic)
+            if (!magic.contentEquals(MAGIC)) {
+                input.close()
+                throw IOException("Not a block log file: $file")
+            }
+        }
+
+        /**
+         * Writes all the entries as text lines to [out].
+         *
+         * @return The number of entries written.
+         */
+        fun writeTextTo(out: OutputStream): Int {
+            val line = StringBuilder()
+            val date = Date()
+            var count = 0
+
+            while (true) {
+                val block = readBlock() ?: break
+                val tags = arrayListOf<String>()
+                var timestamp = 0L
+
+                while (block.hasRemaining()) {
+                    when (block.get().toInt()) {
+                        RECORD_TAG -> {
+                            block.readVarint()
+                            tags += block.readString()
+                        }
+
+                        RECORD_ENTRY -> {
+                            val level = block.get().toInt().toChar()
+                            val tagId = block.readVarint().toInt()
+                            timestamp += unzigzag(block.readVarint())
+                            val message = block.readString()
+                            val stackTrace = if (block.get().toInt() != 0) block.readString() else null
+
+                            date.time = timestamp
+                            line.setLength(0)
+                            line.append(dateFormat.format(date))
+                                .append(' ')
+                                .append(level)
+                                .append(' ')
+                                .append(tags.getOrNull(tagId - 1).orEmpty())
+                                .append(": ")
+                                .append(message)
+                                .append('\n')
+
+                            if (stackTrace != null) {
+                                line.append('\n').append(stackTrace)
+                                if (!stackTrace.endsWith('\n')) line.append('\n')
+                            }
+
+                            out.write(line.toString().toByteArray())
+                            count++
+                        }
+
+                        // A record we don't know about, the rest of the block can't be read
+                        else -> break
+                    }
+                }
+            }
+
+            return count
+        }
+
+        /**
+         * @return The next decrypted block, or null at the end of the file or at a block whose
+         * header is damaged, which would be one that was being written when the app died.
+         *
+         * Blocks that fail to decrypt are skipped, their header still tells where the next one
+         * starts.
+         */
+        private fun readBlock(): ByteBuffer? {
+            while (true) {
+                val ciphertext = readCiphertext() ?: return null
+                decrypt(ciphertext)?.let { return it }
+            }
+        }
+
+        /**
+         * @return The first block, or null if it can't be read or decrypted.
+         */
+        internal fun readFirstBlock(): ByteBuffer? {
+            return readCiphertext()?.let(::decrypt)
+        }
+
+        private fun readCiphertext(): ByteArray? {
+            val length: Int
+            try {
+                input.readFully(nonce)
+                length = input.readInt()
+            } catch (e: EOFException) {
+                return null
+            }
+
+            if (length <= 0 || length > MAX_BLOCK_SIZE) {
+                return null
+            }
+
+            val ciphertext = ByteArray(length)
+            try {
+                input.readFully(ciphertext)
+            } catch (e: EOFException) {
+                return null
+            }
+
+            return ciphertext
+        }
+
+        private fun decrypt(ciphertext: ByteArray): ByteBuffer? {
+            return try {
+                synchronized(CIPHER_LOCK) {
+                    cipher.init(Cipher.DECRYPT_MODE, key, GCMParameterSpec(GCM_TAG_BITS, nonce))
+                    ByteBuffer.wrap(cipher.doFinal(ciphertext))
+                }
+            } catch (e: GeneralSecurityException) {
+                null
+            }
+        }
+
+        override fun close() {
+            input.close()
+        }
+
+        private fun ByteBuffer.readVarint(): Long {
+            var result = 0L
+            var shift = 0
+            while (true) {
+                val b = get().toInt()
+                result = result or ((b and 0x7F).toLong() shl shift)
+                if (b and 0x80 == 0) return result
+                shift += 7
+            }
+        }
+
+        private fun ByteBuffer.readString(): String {
+            val length = readVarint().toInt()
+            val string = String(array(), arrayOffset() + position(), length, Charsets.UTF_8)
+            position(position() + length)
+            return string
+        }
+    }
+
+    /**
+     * A growable byte buffer that records are encoded into without intermediate allocations.
+     */
+    private class RecordBuffer(initialCapacity: Int) {
+        var bytes = ByteArray(initialCapacity)
+            private set
+
+        var size = 0
+            private set
+
+        fun reset() {
+            size = 0
+        }
+
+        private fun ensureCapacity(extra: Int) {
+            if (size + extra > bytes.size) {
+                bytes = bytes.copyOf(maxOf(bytes.size * 2, size + extra))
+            }
+        }
+
+        fun writeByte(value: Int) {
+            ensureCapacity(1)
+            bytes[size++] = value.toByte()
+        }
+
+        fun writeVarint(value: Long) {
+            ensureCapacity(10)
+            var remaining = value
+            while (remaining and 0x7FL.inv() != 0L) {
+                bytes[size++] = ((remaining and 0x7F) or 0x80).toInt().toByte()
+                remaining = remaining ushr 7
+            }
+            bytes[size++] = remaining.toInt().toByte()
+        }
+
+        fun writeString(value: String) {
+            val length = utf8Length(value)
+            writeVarint(length.toLong())
+            ensureCapacity(length)
+
+            var i = 0
+            while (i < value.length) {
+                val c = value[i]
+                val code = c.code
+
+                when {
+                    code < 0x80 -> bytes[size++] = code.toByte()
+
+                    code < 0x800 -> {
+                        bytes[size++] = (0xC0 or (code shr 6)).toByte()
+                        bytes[size++] = (0x80 or (code and 0x3F)).toByte()
+                    }
+
+                    c.isHighSurrogate() && i + 1 < value.length && value[i + 1].isLowSurrogate() -> {
+                        val codePoint = Character.toCodePoint(c, value[++i])
+                        bytes[size++] = (0xF0 or (codePoint shr 18)).toByte()
+                        bytes[size++] = (0x80 or ((codePoint shr 12) and 0x3F)).toByte()
+                        bytes[size++] = (0x80 or ((codePoint shr 6) and 0x3F)).toByte()
+                        bytes[size++] = (0x80 or (codePoint and 0x3F)).toByte()
+                    }
+
+                    // Unpaired surrogates can't be encoded
+                    c.isSurrogate() -> bytes[size++] = '?'.code.toByte()
+
+                    else -> {
+                        bytes[size++] = (0xE0 or (code shr 12)).toByte()
+                        bytes[size++] = (0x80 or ((code shr 6) and 0x3F)).toByte()
+                        bytes[size++] = (0x80 or (code and 0x3F)).toByte()
+                    }
+                }
+
+                i++
+            }
+        }
+
+        private fun utf8Length(value: String): Int {
+            var length = 0
+            var i = 0
+            while (i < value.length) {
+                val c = value[i]
+                length += when {
+                    c.code < 0x80 -> 1
+                    c.code < 0x800 -> 2
+                    c.isHighSurrogate() && i + 1 < value.length && value[i + 1].isLowSurrogate() -> {
+                        i++
+                        4
+                    }
+                    c.isSurrogate() -> 1
+                    else -> 3
+                }
+                i++
+            }
+            return length
+        }
+    }
+
+    private fun zigzag(value: Long): Long = (value shl 1) xor (value shr 63)
+
+    private fun unzigzag(value: Long): Long = (value ushr 1) xor -(value and 1)
+}
@@ -0,0 +1,201 @@
+package org.thoughtcrime.securesms.logging
+
+import kotlinx.coroutines.channels.Channel
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicIntegerArray
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * A lock-free, fixed size queue of log entries, for many logging threads and a single writer.
+ *
+ * Warnings and errors go into a ring of their own, so a flood of verbose, debug or info
+ * entries can never take their place. When a ring is full, new entries are dropped and
+ * counted per level; the writer collects the counts with [takeDropCounts].
+ */
+internal class LogEntryQueue(
+    lowPriorityCapacity: Int,
+    highPriorityCapacity: Int,
+) {
+    fun interface Consumer {
+        fun accept(level: Char, tag: String?, message: String?, err: Throwable?, timestampMills: Long)
+    }
+
+    private val lowPriority = Ring(lowPriorityCapacity)
+    private val highPriority = Ring(highPriorityCapacity)
+
+    // Orders the entries across both rings
+    private val nextSequence = AtomicLong()
+
+    private val dropCounts = AtomicIntegerArray(LEVELS.length)
+
+    // Set while the writer is waiting for entries, so that only then loggers need to wake it up
+    private val writerWaiting = AtomicBoolean(false)
+    private val wakeUp = Channel<Unit>(Channel.CONFLATED)
+
+    /**
+     * @return False if the entry was dropped because the queue is full.
+     */
+    fun offer(level: Char, tag: String?, message: String?, err: Throwable?, timestampMills: Long): Boolean {
+        val ring = if (level in HIGH_PRIORITY_LEVELS) highPriority else lowPriority
+        if (!ring.offer(nextSequence.getAndIncrement(), level, tag, message, err, timestampMills)) {
+            dropCounts.incrementAndGet(LEVELS.indexOf(level).coerceAtLeast(0))
+            return false
+        }
+
+        if (writerWaiting.compareAndSet(true, false)) {
+            wakeUp.trySend(Unit)
+        }
+
+        return true
+    }
+
+    val isEmpty: Boolean
+        get() = lowPriority.peekSequence() < 0 && highPriority.peekSequence() < 0
+
+    /**
+     * Suspends until there are entries to [drain]. Must only be called by the writer.
+     */
+    suspend fun awaitEntries() {
+        while (isEmpty) {
+            writerWaiting.set(true)
+
+            // An entry may have come in before we said we were waiting
+            if (!isEmpty) {
+                writerWaiting.set(false)
+                return
+            }
+
+            wakeUp.receive()
+        }
+    }
+
+    /**
+     * Passes up to [max] entries, in the order they were logged, to [consumer].
+     * Must only be called by the writer.
+     *
+     * @return The number of entries passed on.
+     */
+    fun drain(max: Int, consumer: Consumer): Int {
+        var count = 0
+        while (count < max) {
+            val low = lowPriority.peekSequence()
+            val high = highPriority.peekSequence()
+
+            val ring = when {
+                low < 0 && high < 0 -> break
+                low < 0 -> highPriority
+                high < 0 -> lowPriority
+                high < low -> highPriority
+                else -> lowPriority
+            }
+
+            ring.take(consumer)
+            count++
+        }
+
+        return count
+    }
+
+    /**
+     * Copies the number of entries dropped per level, in the order of [LEVELS], into [out] and
+     * resets them.
+     *
+     * @return True if any entry was dropped.
+     */
+    fun takeDropCounts(out: IntArray): Boolean {
+        var dropped = false
+        for (i in LEVELS.indices) {
+            out[i] = dropCounts.getAndSet(i, 0)
+            dropped = dropped || out[i] > 0
+        }
+        return dropped
+    }
+
+    /**
+     * A bounded multi-producer, single consumer ring, where each slot has a state that tells
+     * whether it's free to claim for the current lap or holds an entry to consume.
+     */
+    private class Ring(private val capacity: Int) {
+        init {
+            require(capacity > 0 && capacity and (capacity - 1) == 0) {
+                "Capacity must be a power of two"
+            }
+        }
+
+        private val mask = capacity - 1L
+        private val slotStates = AtomicLongArray(capacity).apply {
+            for (i in 0 until capacity) set(i, i.toLong())
+        }
+
+        private val sequences = LongArray(capacity)
+        private val levels = CharArray(capacity)
+        private val tags = arrayOfNulls<String>(capacity)
+        private val messages = arrayOfNulls<String>(capacity)
+        private val errors = arrayOfNulls<Throwable>(capacity)
+        private val timestamps = LongArray(capacity)
+
+        private val tail = AtomicLong()
+
+        // Only touched by the consumer
+        private var head = 0L
+
+        fun offer(sequence: Long, level: Char, tag: String?, message: String?, err: Throwable?, timestampMills: Long): Boolean {
+            while (true) {
+                val position = tail.get()
+                val index = (position and mask).toInt()
+                val lap = slotStates.get(index) - position
+
+                if (lap < 0) {
+                    // The slot still holds the entry from the previous lap
+                    return false
+                }
+
+                if (lap == 0L && tail.compareAndSet(position, position + 1)) {
+                    sequences[index] = sequence
+                    levels[index] = level
+                    tags[index] = tag
+                    messages[index] = message
+                    errors[index] = err
+                    timestamps[index] = timestampMills
+                    slotStates.set(index, position + 1)
+                    return true
+                }
+
+                // Another logger claimed the slot first, try the next one
+            }
+        }
+
+        /**
+         * @return The sequence of the oldest entry, or -1 if there's none.
+         */
+        fun peekSequence(): Long {
+            val index = (head and mask).toInt()
+            return if (slotStates.get(index) == head + 1) sequences[index] else -1
+        }
+
+        fun take(consumer: Consumer) {
+            val index = (head and mask).toInt()
+            val level = levels[index]
+            val tag = tags[index]
+            val message = messages[index]
+            val err = errors[index]
+            val timestamp = timestamps[index]
+
+            tags[index] = null
+            messages[index] = null
+            errors[index] = null
+
+            // Free the slot before handing the entry on, so the loggers don't wait on the writer
+            slotStates.set(index, head + capacity)
+            head++
+
+            consumer.accept(level, tag, message, err, timestamp)
+        }
+    }
+
+    companion object {
+        const val LEVELS = "VDIWEA"
+        private const val HIGH_PRIORITY_LEVELS = "WEA"
+    }
+}
@@ -1,7 +1,6 @@
 package org.thoughtcrime.securesms.logging;
 
 import static org.session.libsignal.crypto.CipherUtil.CIPHER_LOCK;
-import static org.session.libsignal.utilities.Util.SECURE_RANDOM;
 
 import androidx.annotation.NonNull;
 
@@ -10,12 +9,10 @@ import org.session.libsession.utilities.Util;
 import org.thoughtcrime.securesms.util.LimitedInputStream;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -25,10 +22,12 @@ import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * The log file format written before {@link BlockLogFile}, only kept around to read older logs.
+ */
 class LogFile {
 
   public static class GrowingBuffer {
@@ -43,66 +42,6 @@ class LogFile {
     }
   }
 
-  public static class Writer {
-
-    private final byte[]        ivBuffer         = new byte[16];
-    private final GrowingBuffer ciphertextBuffer = new GrowingBuffer();
-
-    private final byte[]               secret;
-    final File                 file;
-    private final Cipher               cipher;
-    private final BufferedOutputStream outputStream;
-
-    Writer(@NonNull byte[] secret, @NonNull File file, boolean append) throws IOException {
-      this.secret       = secret;
-      this.file         = file;
-      this.outputStream = new BufferedOutputStream(new FileOutputStream(file, append));
-
-      try {
-        this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-        throw new AssertionError(e);
-      }
-    }
-
-    void writeEntry(@NonNull String entry, boolean flush) throws IOException {
-      SECURE_RANDOM.nextBytes(ivBuffer);
-
-      byte[] plaintext = entry.getBytes();
-      try {
-        synchronized (CIPHER_LOCK) {
-          cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(ivBuffer));
-
-          int cipherLength = cipher.getOutputSize(plaintext.length);
-          byte[] ciphertext = ciphertextBuffer.get(cipherLength);
-          cipherLength = cipher.doFinal(plaintext, 0, plaintext.length, ciphertext);
-
-          outputStream.write(ivBuffer);
-          outputStream.write(Conversions.intToByteArray(cipherLength));
-          outputStream.write(ciphertext, 0, cipherLength);
-        }
-
-        if (flush) {
-          outputStream.flush();
-        }
-      } catch (ShortBufferException | InvalidAlgorithmParameterException | InvalidKeyException | BadPaddingException | IllegalBlockSizeException e) {
-        throw new AssertionError(e);
-      }
-    }
-
-    void flush() throws IOException {
-      outputStream.flush();
-    }
-
-    long getLogSize() {
-      return file.length();
-    }
-
-    void close() {
-      Util.close(outputStream);
-    }
-  }
-
   static class Reader implements Closeable {
 
     private final byte[]        ivBuffer         = new byte[16];
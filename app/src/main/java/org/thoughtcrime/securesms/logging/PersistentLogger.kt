@@ -4,9 +4,7 @@ import android.content.Context
 import android.net.Uri
 import dagger.hilt.android.qualifiers.ApplicationContext
 import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.channels.Channel
-import kotlinx.coroutines.channels.ReceiveChannel
-import kotlinx.coroutines.channels.SendChannel
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.launch
@@ -17,9 +15,7 @@ import org.session.libsignal.utilities.Log.Logger
 import org.thoughtcrime.securesms.dependencies.ManagerScope
 import org.thoughtcrime.securesms.dependencies.OnAppStartupComponent
 import java.io.File
-
-import java.text.SimpleDateFormat
-import java.util.Locale
+import java.io.OutputStream
 import java.util.regex.Pattern
 import java.util.zip.ZipEntry
 import java.util.zip.ZipOutputStream
@@ -37,12 +33,12 @@ class PersistentLogger @Inject constructor(
     @ManagerScope scope: CoroutineScope,
     logSecretProvider: LogSecretProvider,
 ) : Logger(), OnAppStartupComponent {
-    private val freeLogEntryPool = LogEntryPool()
-    private val logEntryChannel: SendChannel<LogEntry>
+    private val logEntryQueue = LogEntryQueue(
+        lowPriorityCapacity = MAX_PENDING_LOG_ENTRIES,
+        highPriorityCapacity = MAX_PENDING_HIGH_PRIORITY_LOG_ENTRIES,
+    )
     private val logChannelIdleSignal = MutableSharedFlow<Unit>()
 
-    private val logDateFormat = SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz", Locale.ENGLISH)
-
     private val secret by lazy {
         logSecretProvider.getOrCreateAttachmentSecret()
     }
@@ -54,56 +50,59 @@ class PersistentLogger @Inject constructor(
     }
 
     init {
-        val channel = Channel<LogEntry>(capacity = MAX_PENDING_LOG_ENTRIES)
-        logEntryChannel = channel
-
         scope.launch {
-            val bulk = ArrayList<LogEntry>()
-            var logWriter: LogFile.Writer? = null
-            val entryBuilder = StringBuilder()
+            var logWriter: BlockLogFile.Writer? = null
+            var drainBatchSize = MIN_DRAIN_BATCH_SIZE
+            val dropCounts = IntArray(LogEntryQueue.LEVELS.length)
+            var retryDelay = MIN_RETRY_DELAY
 
             while (true) {
                 try {
-                    channel.receiveBulkLogs(bulk)
-
-                    if (bulk.isNotEmpty()) {
-                        if (logWriter == null) {
-                            val currentFile = File(logFolder, CURRENT_LOG_FILE_NAME)
-
-                            // If current file exist, we need to make sure we can decrypt it
-                            // as this file can come from a previous session.
-                            val append = if (currentFile.exists() && currentFile.length() > 0) {
-                                LogFile.Reader(secret, currentFile).use {
-                                    it.readEntryBytes() != null
-                                }
-                            } else {
-                                true
-                            }
-
-                            logWriter = LogFile.Writer(secret, currentFile, append)
-                        }
-
-                        bulkWrite(entryBuilder, logWriter, bulk)
-
-                        // Release entries back to the pool
-                        freeLogEntryPool.release(bulk)
-                        bulk.clear()
-
-                        // Rotate the log file if necessary
-                        if (logWriter.logSize > MAX_SINGLE_LOG_FILE_SIZE) {
-                            rotateAndTrimLogFiles(logWriter.file)
-                            logWriter.close()
-                            logWriter = null
-                        }
+                    logEntryQueue.awaitEntries()
+
+                    val writer = logWriter ?: openLogWriter().also { logWriter = it }
+                    val count = logEntryQueue.drain(drainBatchSize, writer::writeEntry)
+
+                    if (logEntryQueue.takeDropCounts(dropCounts)) {
+                        writer.writeEntry(LOG_W, TAG, describeDroppedEntries(dropCounts), null, System.currentTimeMillis())
+                    }
+
+                    // Take bigger bites while we're behind, and smaller ones once we've caught up
+                    // so that the idle signal and the rotation check come around sooner.
+                    drainBatchSize = if (count == drainBatchSize) {
+                        (drainBatchSize * 2).coerceAtMost(MAX_DRAIN_BATCH_SIZE)
+                    } else {
+                        (drainBatchSize / 2).coerceAtLeast(MIN_DRAIN_BATCH_SIZE)
+                    }
+
+                    // Only write out a partial block once we've caught up with the
+                    // logging, so that a busy logger fills up whole blocks.
+                    if (logEntryQueue.isEmpty) {
+                        writer.flush()
+                    }
+
+                    // Rotate the log file if necessary
+                    if (writer.logSize > MAX_SINGLE_LOG_FILE_SIZE) {
+                        writer.close()
+                        rotateAndTrimLogFiles(writer.file)
+                        logWriter = null
                     }
+
+                    retryDelay = MIN_RETRY_DELAY
                 } catch (e: Throwable) {
-                    logWriter?.close()
+                    runCatching { logWriter?.close() }
+                    logWriter = null
 
                     android.util.Log.e(
                         TAG,
                         "Error while processing log entries: ${e.message}",
                         e
                     )
+
+                    // The entries are still waiting, so without a pause a file that can't be
+                    // opened or written would have us failing in a tight loop.
+                    delay(retryDelay)
+                    retryDelay = (retryDelay * 2).coerceAtMost(MAX_RETRY_DELAY)
                 }
 
                 // Notify that the log channel is idle
@@ -112,6 +111,29 @@ class PersistentLogger @Inject constructor(
         }
     }
 
+    private fun openLogWriter(): BlockLogFile.Writer {
+        val currentFile = File(logFolder, CURRENT_LOG_FILE_NAME)
+
+        // The current file can come from a previous version that wrote the old format, or be
+        // written with a secret that has since been replaced. Keep it as a rotated file rather
+        // than appending blocks that can't be read together with the existing ones.
+        if (currentFile.length() > 0 &&
+            (!BlockLogFile.isBlockLogFile(currentFile) || !BlockLogFile.isWrittenWith(secret, currentFile))) {
+            rotateAndTrimLogFiles(currentFile)
+        }
+
+        return BlockLogFile.Writer(secret, currentFile)
+    }
+
+    private fun describeDroppedEntries(dropCounts: IntArray): String {
+        return dropCounts.indices
+            .filter { dropCounts[it] > 0 }
+            .joinToString(
+                prefix = "Log buffer was full, dropped ",
+                postfix = " entries"
+            ) { "${dropCounts[it]} ${LogEntryQueue.LEVELS[it]}" }
+    }
+
     fun deleteAllLogs() {
         logFolder.deleteRecursively()
     }
@@ -138,46 +160,14 @@ class PersistentLogger @Inject constructor(
         }
     }
 
-    private fun bulkWrite(sb: StringBuilder, writer: LogFile.Writer, bulk: List<LogEntry>) {
-        for (entry in bulk) {
-            sb.clear()
-            sb.append(logDateFormat.format(entry.timestampMills))
-                .append(' ')
-                .append(entry.logLevel)
-                .append(' ')
-                .append(entry.tag.orEmpty())
-                .append(": ")
-                .append(entry.message.orEmpty())
-                .append('\n')
-            entry.err?.let {
-                sb.append('\n')
-                sb.append(it.stackTraceToString())
-            }
-            writer.writeEntry(sb.toString(), false)
-        }
-
-        writer.flush()
-    }
-
-    private suspend fun ReceiveChannel<LogEntry>.receiveBulkLogs(out: MutableList<LogEntry>) {
-        out += receive()
-
-        // We may have many items cached in the channel, try to receive up to 15 items
-        repeat(15) {
-            out += tryReceive().getOrNull() ?: return@repeat
-        }
-    }
-
     private fun sendLogEntry(
-        level: String,
+        level: Char,
         tag: String?,
         message: String?,
         t: Throwable? = null
     ) {
-        val entry = freeLogEntryPool.createLogEntry(level, tag, message, t)
-        if (logEntryChannel.trySend(entry).isFailure) {
-            android.util.Log.e(TAG, "Failed to send log entry, buffer is full")
-        }
+        // Dropped entries are counted and reported in the log by the writer
+        logEntryQueue.offer(level, tag, message, t, System.currentTimeMillis())
     }
 
     override fun v(tag: String?, message: String?, t: Throwable?) =
@@ -248,83 +238,49 @@ class PersistentLogger @Inject constructor(
                 zipOut.putNextEntry(ZipEntry("log.txt"))
 
                 for (log in logs) {
-                    LogFile.Reader(secret, log).use { reader ->
-                        var count = 0
-                        generateSequence { reader.readEntryBytes() }
-                            .forEach { entry ->
-                                zipOut.write(entry)
-
-                                if (entry.isEmpty() || entry.last().toInt() != '\n'.code) {
-                                    zipOut.write('\n'.code)
-                                }
-
-                                count++
-                            }
-
-                        android.util.Log.d(TAG, "Read $count entries from ${log.name}")
+                    val count = if (BlockLogFile.isBlockLogFile(log)) {
+                        BlockLogFile.Reader(secret, log).use { it.writeTextTo(zipOut) }
+                    } else {
+                        readLegacyLogFile(log, zipOut)
                     }
+
+                    android.util.Log.d(TAG, "Read $count entries from ${log.name}")
                 }
                 zipOut.closeEntry()
             }
         }
     }
 
-    private class LogEntry(
-        var logLevel: String,
-        var tag: String?,
-        var message: String?,
-        var err: Throwable?,
-        var timestampMills: Long,
-    )
-
     /**
-     * A pool for reusing [LogEntry] objects to reduce memory allocations.
+     * Reads a log file written in the format used before [BlockLogFile].
      */
-    private class LogEntryPool {
-        private val pool = ArrayList<LogEntry>(MAX_LOG_ENTRIES_POOL_SIZE)
-
-        fun createLogEntry(level: String, tag: String?, message: String?, t: Throwable?): LogEntry {
-            val fromPool = synchronized(pool) { pool.removeLastOrNull() }
-
-            val now = System.currentTimeMillis()
-
-            if (fromPool != null) {
-                fromPool.logLevel = level
-                fromPool.tag = tag
-                fromPool.message = message
-                fromPool.err = t
-                fromPool.timestampMills = now
-                return fromPool
-            }
-
-            return LogEntry(
-                logLevel = level,
-                tag = tag,
-                message = message,
-                err = t,
-                timestampMills = now
-            )
-        }
+    private fun readLegacyLogFile(log: File, out: OutputStream): Int {
+        LogFile.Reader(secret, log).use { reader ->
+            var count = 0
+            generateSequence { reader.readEntryBytes() }
+                .forEach { entry ->
+                    out.write(entry)
+
+                    if (entry.isEmpty() || entry.last().toInt() != '\n'.code) {
+                        out.write('\n'.code)
+                    }
 
-        fun release(entry: Iterable<LogEntry>) {
-            val iterator = entry.iterator()
-            synchronized(pool) {
-                while (pool.size < MAX_LOG_ENTRIES_POOL_SIZE && iterator.hasNext()) {
-                    pool.add(iterator.next())
+                    count++
                 }
-            }
+
+            return count
         }
     }
 
     companion object {
         private const val TAG = "PersistentLoggingV2"
 
-        private const val LOG_V: String = "V"
-        private const val LOG_D: String = "D"
-        private const val LOG_I: String = "I"
-        private const val LOG_W: String = "W"
-        private const val LOG_E: String = "E"
-        private const val LOG_WTF: String = "A"
+        private const val LOG_V: Char = 'V'
+        private const val LOG_D: Char = 'D'
+        private const val LOG_I: Char = 'I'
+        private const val LOG_W: Char = 'W'
+        private const val LOG_E: Char = 'E'
+        private const val LOG_WTF: Char = 'A'
 
         private const val PERM_LOG_FILE_SUFFIX = ".permlog"
         private const val CURRENT_LOG_FILE_NAME = "current.log"
@@ -336,7 +292,15 @@ class PersistentLogger @Inject constructor(
         // Maximum number of log files to keep
         private const val MAX_LOG_FILE_COUNT = 10
 
-        private const val MAX_LOG_ENTRIES_POOL_SIZE = 64
+        // As many entries as the channel this queue replaced held, so bursts like network storms
+        // don't drop more. Warnings and errors have their own, smaller, ring on top.
         private const val MAX_PENDING_LOG_ENTRIES = 65536
+        private const val MAX_PENDING_HIGH_PRIORITY_LOG_ENTRIES = 4096
+
+        private const val MIN_DRAIN_BATCH_SIZE = 64
+        private const val MAX_DRAIN_BATCH_SIZE = 4096
+
+        private val MIN_RETRY_DELAY = 100.milliseconds
+        private val MAX_RETRY_DELAY = 30_000.milliseconds
     }
 }
\ No newline at end of file
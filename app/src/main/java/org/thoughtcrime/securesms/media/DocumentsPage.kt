@@ -18,6 +18,7 @@ import androidx.compose.foundation.layout.systemBars
 import androidx.compose.foundation.layout.windowInsetsBottomHeight
 import androidx.compose.foundation.lazy.LazyColumn
 import androidx.compose.foundation.lazy.items
+import androidx.compose.foundation.lazy.rememberLazyListState
 import androidx.compose.material3.Text
 import androidx.compose.runtime.Composable
 import androidx.compose.ui.Alignment
@@ -42,7 +43,12 @@ fun DocumentsPage(
     nestedScrollConnection: NestedScrollConnection,
     content: TabContent?,
     onItemClicked: (MediaOverviewItem) -> Unit,
+    onScrolledNearEnd: () -> Unit,
 ) {
+    val listState = rememberLazyListState()
+
+    LoadMoreEffect(listState, content, onScrolledNearEnd)
+
     when {
         content == null -> {
             // Loading
@@ -60,6 +66,7 @@ fun DocumentsPage(
 
         else -> {
             LazyColumn(
+                state = listState,
                 modifier = Modifier
                     .nestedScroll(nestedScrollConnection)
                     .fillMaxSize()
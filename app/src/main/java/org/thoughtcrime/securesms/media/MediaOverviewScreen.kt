@@ -183,14 +183,16 @@ fun MediaOverviewScreen(
                             onItemLongClicked = if(canLongPress){{
                                     haptics.performHapticFeedback(HapticFeedbackType.LongPress)
                                     viewModel.onItemLongClicked(it)
-                            }} else null
+                            }} else null,
+                            onScrolledNearEnd = { viewModel.onScrolledNearEnd(MediaOverviewTab.Media) }
                         )
                     }
 
                     MediaOverviewTab.Documents -> DocumentsPage(
                         nestedScrollConnection = appBarScrollBehavior.nestedScrollConnection,
                         content = content.value?.documentContent,
-                        onItemClicked = viewModel::onItemClicked
+                        onItemClicked = viewModel::onItemClicked,
+                        onScrolledNearEnd = { viewModel.onScrolledNearEnd(MediaOverviewTab.Documents) }
                     )
                 }
             }
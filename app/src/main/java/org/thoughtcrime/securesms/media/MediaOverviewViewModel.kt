@@ -10,15 +10,19 @@ import dagger.assisted.Assisted
 import dagger.assisted.AssistedInject
 import dagger.hilt.android.lifecycle.HiltViewModel
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.collectLatest
 import kotlinx.coroutines.flow.distinctUntilChanged
 import kotlinx.coroutines.flow.filterNotNull
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
 import network.loki.messenger.R
 import org.session.libsession.messaging.messages.control.DataExtractionNotification
@@ -28,6 +32,7 @@ import org.session.libsession.utilities.Address
 import org.session.libsession.utilities.isGroupOrCommunity
 import org.session.libsession.utilities.recipients.displayName
 import org.thoughtcrime.securesms.MediaPreviewActivity
+import org.thoughtcrime.securesms.database.AttachmentDatabase
 import org.thoughtcrime.securesms.database.MediaDatabase
 import org.thoughtcrime.securesms.database.MediaDatabase.MediaRecord
 import org.thoughtcrime.securesms.database.RecipientRepository
@@ -53,6 +58,7 @@ class MediaOverviewViewModel @AssistedInject constructor(
     private val application: Application,
     private val threadDatabase: ThreadDatabase,
     private val mediaDatabase: MediaDatabase,
+    private val attachmentDatabase: AttachmentDatabase,
     private val dateUtils: DateUtils,
     recipientRepository: RecipientRepository,
     private val messageSender: MessageSender,
@@ -64,32 +70,51 @@ class MediaOverviewViewModel @AssistedInject constructor(
 
     private val recipient = recipientRepository.observeRecipient(address)
 
-    val mediaListState: StateFlow<MediaOverviewContent?> = recipient
-        .distinctUntilChanged()
-        .map {
-            withContext(Dispatchers.Default) {
-                val threadId = threadDatabase.getOrCreateThreadIdFor(address)
-                val mediaItems = mediaDatabase.getGalleryMediaForThread(threadId)
-                    .use { cursor ->
-                        cursor.asSequence()
-                            .map { MediaRecord.from(application, it) }
-                            .groupRecordsByTimeBuckets()
-                    }
+    private val mutableMediaListState = MutableStateFlow<MediaOverviewContent?>(null)
+    val mediaListState: StateFlow<MediaOverviewContent?> get() = mutableMediaListState
+
+    /**
+     * Where the next page of a tab starts. The tabs are loaded a page at a time as the user
+     * scrolls, so large threads don't have to be loaded up front. Loaded pages are kept for as
+     * long as the overview is open.
+     */
+    private class TabPaging {
+        var after: MediaDatabase.PageKey? = null
+        var endReached = false
+    }
 
-                val documentItems = mediaDatabase.getDocumentMediaForThread(threadId)
-                    .use { cursor ->
-                        cursor.asSequence()
-                            .map { MediaRecord.from(application, it) }
-                            .groupRecordsByRelativeTime()
-                    }
+    // The paging state below is guarded by the mutex
+    private val pageLoadMutex = Mutex()
+    private var threadId = -1L
+    private var mediaPaging = TabPaging()
+    private var documentPaging = TabPaging()
 
-                MediaOverviewContent(
-                    mediaContent = mediaItems,
-                    documentContent = documentItems,
-                )
-            }
+    // Only touched on the main thread
+    private val nextPageLoads = hashMapOf<MediaOverviewTab, Job>()
+
+    init {
+        viewModelScope.launch {
+            recipient
+                .distinctUntilChanged()
+                .collectLatest {
+                    pageLoadMutex.withLock {
+                        mutableMediaListState.value = withContext(Dispatchers.Default) {
+                            threadId = threadDatabase.getOrCreateThreadIdFor(address)
+                            mediaPaging = TabPaging()
+                            documentPaging = TabPaging()
+
+                            val mediaItems = loadPage(MediaOverviewTab.Media)
+                            prefetchThumbnails(mediaItems)
+
+                            MediaOverviewContent(
+                                mediaContent = mediaItems,
+                                documentContent = loadPage(MediaOverviewTab.Documents),
+                            )
+                        }
+                    }
+                }
         }
-        .stateIn(viewModelScope, SharingStarted.Eagerly, null)
+    }
 
     val conversationName: StateFlow<String> = recipient
         .filterNotNull()
@@ -132,6 +157,82 @@ class MediaOverviewViewModel @AssistedInject constructor(
                 .filter { it.id in selected }
         }
 
+    private fun pagingFor(tab: MediaOverviewTab): TabPaging = when (tab) {
+        MediaOverviewTab.Media -> mediaPaging
+        MediaOverviewTab.Documents -> documentPaging
+    }
+
+    /**
+     * Loads the next page of the given tab, grouped by time buckets. Must be called with the
+     * [pageLoadMutex] held.
+     */
+    private fun loadPage(tab: MediaOverviewTab): TabContent {
+        val paging = pagingFor(tab)
+        val cursor = when (tab) {
+            MediaOverviewTab.Media -> mediaDatabase.getGalleryMediaPageForThread(threadId, paging.after, PAGE_SIZE)
+            MediaOverviewTab.Documents -> mediaDatabase.getDocumentMediaPageForThread(threadId, paging.after, PAGE_SIZE)
+        }
+
+        val records = cursor.use {
+            val records = cursor.asSequence().map { MediaRecord.from(application, it) }.toList()
+            if (cursor.moveToLast()) {
+                paging.after = MediaDatabase.PageKey.from(cursor)
+            }
+            records
+        }
+
+        paging.endReached = records.size < PAGE_SIZE
+
+        return when (tab) {
+            MediaOverviewTab.Media -> records.asSequence().groupRecordsByTimeBuckets()
+            MediaOverviewTab.Documents -> records.asSequence().groupRecordsByRelativeTime()
+        }
+    }
+
+    /**
+     * Loads the next page of the given tab and appends it to the content.
+     *
+     * @return Whether a page was loaded, false if the end of the tab was already reached.
+     */
+    private suspend fun loadNextPage(tab: MediaOverviewTab): Boolean = pageLoadMutex.withLock {
+        val current = mutableMediaListState.value ?: return false
+        if (pagingFor(tab).endReached) return false
+
+        val page = withContext(Dispatchers.Default) { loadPage(tab) }
+
+        mutableMediaListState.value = when (tab) {
+            MediaOverviewTab.Media -> current.copy(mediaContent = current.mediaContent.appendPage(page))
+            MediaOverviewTab.Documents -> current.copy(documentContent = current.documentContent.appendPage(page))
+        }
+
+        true
+    }
+
+    fun onScrolledNearEnd(tab: MediaOverviewTab) {
+        // Whether there is a next page at all is only known with the mutex held, in loadNextPage
+        if (nextPageLoads[tab]?.isActive == true) {
+            return
+        }
+
+        nextPageLoads[tab] = viewModelScope.launch { loadNextPage(tab) }
+    }
+
+    /**
+     * Start generating the missing video thumbnails for the first screens of the gallery, so
+     * that the grid doesn't have to wait for them while the user scrolls.
+     */
+    private fun prefetchThumbnails(mediaItems: List<Pair<BucketTitle, List<MediaOverviewItem>>>) {
+        mediaItems.asSequence()
+            .flatMap { it.second.asSequence() }
+            .map { it.mediaRecord.attachment }
+            .filter { it.hasData() && !it.hasThumbnail() && MediaUtil.isVideoType(it.contentType) }
+            .take(THUMBNAIL_PREFETCH_COUNT)
+            .toList()
+            // The thumbnail executor runs the latest request first, so queue the top of the grid last
+            .asReversed()
+            .forEach { attachmentDatabase.generateThumbnail(it.attachmentId) }
+    }
+
     private fun Sequence<MediaRecord>.groupRecordsByTimeBuckets(): List<Pair<BucketTitle, List<MediaOverviewItem>>> {
         return this
             .groupBy { record ->
@@ -158,6 +259,21 @@ class MediaOverviewViewModel @AssistedInject constructor(
             }
     }
 
+    /**
+     * Appends a page to the content, merging the bucket the page starts with into the last
+     * bucket of the content if they're the same.
+     */
+    private fun TabContent.appendPage(page: TabContent): TabContent {
+        val (lastTitle, lastItems) = lastOrNull() ?: return page
+        val (firstTitle, firstItems) = page.firstOrNull() ?: return this
+
+        return if (lastTitle == firstTitle) {
+            dropLast(1) + (lastTitle to lastItems + firstItems) + page.drop(1)
+        } else {
+            this + page
+        }
+    }
+
     private fun Sequence<MediaRecord>.groupRecordsByRelativeTime(): List<Pair<BucketTitle, List<MediaOverviewItem>>> {
         return this
             .groupBy { record ->
@@ -331,17 +447,25 @@ class MediaOverviewViewModel @AssistedInject constructor(
             return
         }
 
-        val allItems = mediaListState.value?.let { content ->
-            when (selectedTab.value) {
-                MediaOverviewTab.Media -> content.mediaContent
-                MediaOverviewTab.Documents -> content.documentContent
+        viewModelScope.launch {
+            // Everything has to be loaded to be selected
+            val tab = selectedTab.value
+            while (loadNextPage(tab)) {
+                // Keep loading until the end of the tab
             }
-        } ?: return
 
-        mutableSelectedItemIDs.value = allItems
-            .asSequence()
-            .flatMap { it.second }
-            .mapTo(hashSetOf()) { it.id }
+            val allItems = mediaListState.value?.let { content ->
+                when (tab) {
+                    MediaOverviewTab.Media -> content.mediaContent
+                    MediaOverviewTab.Documents -> content.documentContent
+                }
+            } ?: return@launch
+
+            mutableSelectedItemIDs.value = allItems
+                .asSequence()
+                .flatMap { it.second }
+                .mapTo(hashSetOf()) { it.id }
+        }
     }
 
     fun onBackClicked() {
@@ -360,6 +484,10 @@ class MediaOverviewViewModel @AssistedInject constructor(
         fun create(address: Address.Conversable): MediaOverviewViewModel
     }
 
+    companion object {
+        private const val THUMBNAIL_PREFETCH_COUNT = 60
+        private const val PAGE_SIZE = 120
+    }
 }
 
 
@@ -18,9 +18,15 @@ import androidx.compose.foundation.layout.size
 import androidx.compose.foundation.layout.systemBars
 import androidx.compose.foundation.layout.windowInsetsBottomHeight
 import androidx.compose.foundation.lazy.LazyColumn
+import androidx.compose.foundation.lazy.LazyListState
+import androidx.compose.foundation.lazy.rememberLazyListState
 import androidx.compose.foundation.shape.CircleShape
 import androidx.compose.material3.Text
 import androidx.compose.runtime.Composable
+import androidx.compose.runtime.LaunchedEffect
+import androidx.compose.runtime.getValue
+import androidx.compose.runtime.rememberUpdatedState
+import androidx.compose.runtime.snapshotFlow
 import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.graphics.Color
@@ -41,6 +47,7 @@ import org.thoughtcrime.securesms.mms.DecryptableStreamUriLoader
 import org.thoughtcrime.securesms.ui.theme.LocalColors
 import org.thoughtcrime.securesms.ui.theme.LocalDimensions
 import org.thoughtcrime.securesms.ui.theme.LocalType
+import kotlinx.coroutines.flow.filter
 import kotlin.math.ceil
 
 private val MEDIA_SPACING = 2.dp
@@ -53,10 +60,19 @@ fun MediaPage(
     selectedItemIDs: Set<Long>,
     onItemClicked: (MediaOverviewItem) -> Unit,
     onItemLongClicked: ((Long) -> Unit)?,
+    onScrolledNearEnd: () -> Unit,
 ) {
     val columnCount = LocalContext.current.resources.getInteger(R.integer.media_overview_cols)
+    val listState = rememberLazyListState()
 
-    Crossfade(content, label = "Media content animation") { state ->
+    LoadMoreEffect(listState, content, onScrolledNearEnd)
+
+    // Only crossfade between loading, empty and loaded, not when more pages are loaded
+    Crossfade(
+        targetState = content,
+        contentKey = { it?.isEmpty() },
+        label = "Media content animation"
+    ) { state ->
         when {
             state == null -> {
                 // Loading state
@@ -74,6 +90,7 @@ fun MediaPage(
 
             else -> {
                 LazyColumn(
+                    state = listState,
                     modifier = Modifier
                         .nestedScroll(nestedScrollConnection)
                         .fillMaxSize()
@@ -111,6 +128,33 @@ fun MediaPage(
 
 }
 
+/**
+ * Calls [onScrolledNearEnd] whenever the list is scrolled close to its last item, so the next
+ * page can be loaded before the user gets there.
+ */
+@Composable
+internal fun LoadMoreEffect(
+    listState: LazyListState,
+    content: TabContent?,
+    onScrolledNearEnd: () -> Unit,
+) {
+    val currentOnScrolledNearEnd by rememberUpdatedState(onScrolledNearEnd)
+
+    // Restarted with the content, so that the check runs again once a page has been appended
+    LaunchedEffect(listState, content) {
+        snapshotFlow {
+            val layoutInfo = listState.layoutInfo
+            val lastVisible = layoutInfo.visibleItemsInfo.lastOrNull()?.index ?: return@snapshotFlow false
+            lastVisible >= layoutInfo.totalItemsCount - LOAD_MORE_THRESHOLD
+        }
+            .filter { it }
+            .collect { currentOnScrolledNearEnd() }
+    }
+}
+
+// How many list items from the end the next page starts loading
+private const val LOAD_MORE_THRESHOLD = 20
+
 @Composable
 @OptIn(ExperimentalGlideComposeApi::class, ExperimentalFoundationApi::class)
 private fun ThumbnailRow(
@@ -1,14 +1,15 @@
 package org.thoughtcrime.securesms.notifications
 
 import android.content.Context
+import androidx.collection.LongObjectMap
 import androidx.collection.MutableLongLongMap
+import androidx.collection.MutableLongObjectMap
 import androidx.collection.arrayMapOf
 import androidx.core.app.NotificationCompat
 import androidx.core.app.NotificationManagerCompat
 import androidx.core.app.Person
 import com.squareup.phrase.Phrase
 import dagger.hilt.android.qualifiers.ApplicationContext
-import kotlinx.coroutines.flow.FlowCollector
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.merge
 import network.loki.messenger.R
@@ -41,6 +42,7 @@ import org.thoughtcrime.securesms.preferences.PreferenceStorage
 import org.thoughtcrime.securesms.util.AppVisibilityManager
 import org.thoughtcrime.securesms.util.AvatarUtils
 import org.thoughtcrime.securesms.util.CurrentActivityObserver
+import org.thoughtcrime.securesms.util.timedBuffer
 import javax.inject.Inject
 import javax.inject.Singleton
 import kotlin.math.max
@@ -88,130 +90,164 @@ class FullAndNameOnlyNotificationHandler @Inject constructor(
     private class MessageUpdated(val change: MessageChanges) : Event
     private class ReactionUpdated(val msg: MessageId) : Event
 
+    /**
+     * All the events of one thread that arrived within the same buffer window.
+     */
+    private class ThreadEvents(val threadId: Long) {
+        // Only known when the thread itself is updated
+        var threadAddress: Address.Conversable? = null
+
+        // Whether any of the events can bring in new content to notify loudly about
+        var hasNewContent: Boolean = false
+    }
+
 
     suspend fun process() {
+        val lastPostedMessageTimestampByThreadId = MutableLongLongMap()
+
         merge(
             threadDb.changeNotification.map(::ThreadUpdated),
             mmsDatabase.changeNotification.map(::MessageUpdated),
             smsDatabase.changeNotification.map(::MessageUpdated),
             reactionDatabase.changeNotification.map(::ReactionUpdated),
-        ).collect(object : FlowCollector<Event> {
-            private val lastPostedMessageTimestampByThreadId = MutableLongLongMap()
-
-            override suspend fun emit(value: Event) {
-                // Whether this event can only update an existing notification (i.e. no action
-                // if there's no existing notification, and no loud notify on the updated contents)
-                var updateOnly: Boolean
-                val threadId: Long
-                val threadAddress: Address.Conversable
-                val threadLastSeen: Long
-
-                when (value) {
-                    is ThreadUpdated -> {
-                        updateOnly = true
-                        threadId = value.change.id
-                        threadAddress = value.change.address
-                        threadLastSeen =
-                            threadDb.getLastSeen(threadAddress)?.toEpochMilliseconds() ?: 0L
-                        Log.d(TAG, "ThreadUpdated: threadId=$threadId, updateOnly=true")
-                    }
+        )
+            // A poll can bring in many messages for the same thread at once, buffer the events
+            // so we only rebuild each thread's notification once per batch.
+            .timedBuffer(EVENT_BUFFER_TIMEOUT_MILLS, EVENT_BUFFER_MAX_ITEMS)
+            .collect { events ->
+                groupEventsByThread(events).forEachValue { threadEvents ->
+                    processThreadEvents(threadEvents, lastPostedMessageTimestampByThreadId)
+                }
+            }
+    }
+
+    private fun groupEventsByThread(events: List<Event>): LongObjectMap<ThreadEvents> {
+        val eventsByThreadId = MutableLongObjectMap<ThreadEvents>()
+        val reactedMessages = hashSetOf<MessageId>()
+
+        for (event in events) {
+            when (event) {
+                is ThreadUpdated -> {
+                    eventsByThreadId.getOrPut(event.change.id) { ThreadEvents(event.change.id) }
+                        .threadAddress = event.change.address
+                }
 
-                    is MessageUpdated -> {
-                        threadId = value.change.threadId
-                        threadDb.getAddressAndLastSeen(threadId)?.let {
-                            threadAddress = it.first
-                            threadLastSeen = it.second
-                        } ?: run {
-                            Log.d(TAG, "MessageUpdated: threadId=$threadId, no address/lastSeen found — skipping")
-                            return
-                        }
-
-                        updateOnly = value.change.changeType != MessageChanges.ChangeType.Added ||
-                                currentActivity is HomeActivity ||
-                                currentlyShowingConversation == threadAddress
-                        Log.d(TAG, "MessageUpdated: threadId=$threadId, changeType=${value.change.changeType}, updateOnly=$updateOnly, currentActivity=${currentActivity?.javaClass?.simpleName}, showingConversation=${currentlyShowingConversation?.debugString}")
+                is MessageUpdated -> {
+                    val threadEvents = eventsByThreadId.getOrPut(event.change.threadId) {
+                        ThreadEvents(event.change.threadId)
                     }
 
-                    is ReactionUpdated -> {
-                        threadId = mmsSmsDatabase.getThreadId(value.msg) ?: run {
-                            Log.d(TAG, "ReactionUpdated: no threadId found for msg=${value.msg} — skipping")
-                            return
-                        }
-                        threadDb.getAddressAndLastSeen(threadId)?.let {
-                            threadAddress = it.first
-                            threadLastSeen = it.second
-                        } ?: run {
-                            Log.d(TAG, "ReactionUpdated: threadId=$threadId, no address/lastSeen found — skipping")
-                            return
-                        }
-
-                        updateOnly = currentActivity is HomeActivity ||
-                                currentlyShowingConversation == threadAddress
-                        Log.d(TAG, "ReactionUpdated: threadId=$threadId, updateOnly=$updateOnly, currentActivity=${currentActivity?.javaClass?.simpleName}, showingConversation=${currentlyShowingConversation?.debugString}")
+                    if (event.change.changeType == MessageChanges.ChangeType.Added) {
+                        threadEvents.hasNewContent = true
                     }
                 }
 
-                // Early exit if we don't have active notifications for updateOnly mode
-                if (updateOnly && getActiveThreadNotification(threadId) == null) {
-                    Log.d(TAG, "threadId=$threadId: updateOnly=true but no active notification — skipping")
-                    return
-                }
+                is ReactionUpdated -> reactedMessages += event.msg
+            }
+        }
 
-                // Now we can look at what we have for this thread
-                val threadRecipient = recipientRepository.getRecipientSync(threadAddress)
-                val threadNotifyType = threadRecipient.effectiveNotifyType()
+        for (msg in reactedMessages) {
+            val threadId = mmsSmsDatabase.getThreadId(msg) ?: run {
+                Log.d(TAG) { "ReactionUpdated: no threadId found for msg=$msg — skipping" }
+                continue
+            }
 
-                when {
-                    // If this thread is blocked...
-                    threadRecipient.blocked -> {
-                        Log.d(TAG, "threadId=$threadId: recipient is blocked — skipping")
-                        // Do nothing, also don't need to cancel the existing notification
-                        return
-                    }
+            eventsByThreadId.getOrPut(threadId) { ThreadEvents(threadId) }.hasNewContent = true
+        }
 
-                    // If we aren't allowed notification...
-                    threadNotifyType == NotifyType.NONE -> {
-                        Log.d(TAG, "threadId=$threadId: notifyType=NONE — skipping")
-                        // Do nothing, also don't need to cancel the existing notification
-                        return
-                    }
+        Log.d(TAG) { "Coalesced ${events.size} event(s) into ${eventsByThreadId.size} thread(s)" }
+        return eventsByThreadId
+    }
 
-                    // If this thread is a message request thread...
-                    !threadRecipient.approved -> {
-                        handleMessageRequests(
-                            threadId = threadId,
-                            threadLastSeen = threadLastSeen,
-                            threadAddress = threadAddress,
-                            threadRecipient = threadRecipient,
-                            updateOnly = updateOnly,
-                            lastPostedMessageTimestampByThreadId = lastPostedMessageTimestampByThreadId
-                        )
-                    }
+    private suspend fun processThreadEvents(
+        events: ThreadEvents,
+        lastPostedMessageTimestampByThreadId: MutableLongLongMap,
+    ) {
+        val threadId = events.threadId
+        val threadAddress: Address.Conversable
+        val threadLastSeen: Long
+
+        val updatedThreadAddress = events.threadAddress
+        if (updatedThreadAddress != null) {
+            threadAddress = updatedThreadAddress
+            threadLastSeen =
+                threadDb.getLastSeen(threadAddress)?.toEpochMilliseconds() ?: 0L
+        } else {
+            threadDb.getAddressAndLastSeen(threadId)?.let {
+                threadAddress = it.first
+                threadLastSeen = it.second
+            } ?: run {
+                Log.d(TAG) { "threadId=$threadId, no address/lastSeen found — skipping" }
+                return
+            }
+        }
 
-                    // If thread notify mode is MENTION...
-                    threadNotifyType == NotifyType.MENTIONS -> {
-                        handleMentionsOnly(
-                            threadId = threadId,
-                            threadLastSeen = threadLastSeen,
-                            threadRecipient = threadRecipient,
-                            threadAddress = threadAddress,
-                            updateOnly = updateOnly,
-                            lastPostedMessageTimestampByThreadId = lastPostedMessageTimestampByThreadId
-                        )
-                    }
+        // Whether these events can only update an existing notification (i.e. no action
+        // if there's no existing notification, and no loud notify on the updated contents)
+        val updateOnly = !events.hasNewContent ||
+                currentActivity is HomeActivity ||
+                currentlyShowingConversation == threadAddress
+        Log.d(TAG) { "threadId=$threadId, hasNewContent=${events.hasNewContent}, updateOnly=$updateOnly, currentActivity=${currentActivity?.javaClass?.simpleName}, showingConversation=${currentlyShowingConversation?.debugString}" }
 
-                    // Otherwise...
-                    else -> handleFullNotification(
-                        threadId = threadId,
-                        threadLastSeen = threadLastSeen,
-                        threadAddress = threadAddress,
-                        threadRecipient = threadRecipient,
-                        updateOnly = updateOnly,
-                        lastPostedLatestMessageTimestampByThreadId = lastPostedMessageTimestampByThreadId
-                    )
-                }
+        // Early exit if we don't have active notifications for updateOnly mode
+        if (updateOnly && getActiveThreadNotification(threadId) == null) {
+            Log.d(TAG) { "threadId=$threadId: updateOnly=true but no active notification — skipping" }
+            return
+        }
+
+        // Now we can look at what we have for this thread
+        val threadRecipient = recipientRepository.getRecipientSync(threadAddress)
+        val threadNotifyType = threadRecipient.effectiveNotifyType()
+
+        when {
+            // If this thread is blocked...
+            threadRecipient.blocked -> {
+                Log.d(TAG) { "threadId=$threadId: recipient is blocked — skipping" }
+                // Do nothing, also don't need to cancel the existing notification
+                return
+            }
+
+            // If we aren't allowed notification...
+            threadNotifyType == NotifyType.NONE -> {
+                Log.d(TAG) { "threadId=$threadId: notifyType=NONE — skipping" }
+                // Do nothing, also don't need to cancel the existing notification
+                return
             }
-        })
+
+            // If this thread is a message request thread...
+            !threadRecipient.approved -> {
+                handleMessageRequests(
+                    threadId = threadId,
+                    threadLastSeen = threadLastSeen,
+                    threadAddress = threadAddress,
+                    threadRecipient = threadRecipient,
+                    updateOnly = updateOnly,
+                    lastPostedMessageTimestampByThreadId = lastPostedMessageTimestampByThreadId
+                )
+            }
+
+            // If thread notify mode is MENTION...
+            threadNotifyType == NotifyType.MENTIONS -> {
+                handleMentionsOnly(
+                    threadId = threadId,
+                    threadLastSeen = threadLastSeen,
+                    threadRecipient = threadRecipient,
+                    threadAddress = threadAddress,
+                    updateOnly = updateOnly,
+                    lastPostedMessageTimestampByThreadId = lastPostedMessageTimestampByThreadId
+                )
+            }
+
+            // Otherwise...
+            else -> handleFullNotification(
+                threadId = threadId,
+                threadLastSeen = threadLastSeen,
+                threadAddress = threadAddress,
+                threadRecipient = threadRecipient,
+                updateOnly = updateOnly,
+                lastPostedLatestMessageTimestampByThreadId = lastPostedMessageTimestampByThreadId
+            )
+        }
     }
 
     private suspend fun handleFullNotification(
@@ -222,7 +258,7 @@ class FullAndNameOnlyNotificationHandler @Inject constructor(
         updateOnly: Boolean,
         lastPostedLatestMessageTimestampByThreadId: MutableLongLongMap
     ) {
-        Log.d(TAG, "threadId=$threadId: notifyType=ALL — building full notification with messages and reactions")
+        Log.d(TAG) { "threadId=$threadId: notifyType=ALL — building full notification with messages and reactions" }
         // Build out all new messages and reactions
         val newMessages =
             mmsSmsDatabase.getIncomingMessagesSorted(threadId, threadLastSeen)
@@ -237,10 +273,10 @@ class FullAndNameOnlyNotificationHandler @Inject constructor(
             )
         }
 
-        Log.d(TAG, "threadId=$threadId: found ${newMessages.size} message(s), ${newReactions.size} reaction(s) since lastSeen=$threadLastSeen")
+        Log.d(TAG) { "threadId=$threadId: found ${newMessages.size} message(s), ${newReactions.size} reaction(s) since lastSeen=$threadLastSeen" }
 
         if (newMessages.isEmpty() && newReactions.isEmpty()) {
-            Log.d(TAG, "threadId=$threadId: no new content — cancelling notification")
+            Log.d(TAG) { "threadId=$threadId: no new content — cancelling notification" }
             cancelThreadNotification(threadId)
             return
         }
@@ -315,7 +351,7 @@ class FullAndNameOnlyNotificationHandler @Inject constructor(
                 0L
             )
         ) {
-            Log.d(TAG, "threadId=$threadId: latest content already notified (ts=$latestMessageTimestampMs) — skipping")
+            Log.d(TAG) { "threadId=$threadId: latest content already notified (ts=$latestMessageTimestampMs) — skipping" }
             // We've notified same content with this thread before, do nothing
             return
         }
@@ -339,13 +375,13 @@ class FullAndNameOnlyNotificationHandler @Inject constructor(
         updateOnly: Boolean,
         lastPostedMessageTimestampByThreadId: MutableLongLongMap
     ) {
-        Log.d(TAG, "threadId=$threadId: notifyType=MENTIONS ")
+        Log.d(TAG) { "threadId=$threadId: notifyType=MENTIONS " }
 
         val allNewMessages = mmsSmsDatabase.getIncomingMessagesSorted(threadId, threadLastSeen)
             .filter { MentionUtilities.mentionsMe(it.body, recipientRepository) }
 
         if (allNewMessages.isEmpty()) {
-            Log.d(TAG, "threadId=$threadId: no new messages — cancelling notification")
+            Log.d(TAG) { "threadId=$threadId: no new messages — cancelling notification" }
             cancelThreadNotification(threadId)
             return
         }
@@ -369,7 +405,7 @@ class FullAndNameOnlyNotificationHandler @Inject constructor(
         updateOnly: Boolean,
         lastPostedMessageTimestampByThreadId: MutableLongLongMap,
     ) {
-        Log.d(TAG, "threadId=$threadId: message request thread — showing generic 'new message request' notification")
+        Log.d(TAG) { "threadId=$threadId: message request thread — showing generic 'new message request' notification" }
         // The only thing we notify user for this convo
         // is "You have a new message request",
         // so only we need to find out new messages since lastSeen or lastPosted
@@ -385,7 +421,7 @@ class FullAndNameOnlyNotificationHandler @Inject constructor(
         ).lastOrNull()
 
         if (newMessage == null) {
-            Log.d(TAG, "threadId=$threadId: no new message request messages — cancelling notification")
+            Log.d(TAG) { "threadId=$threadId: no new message request messages — cancelling notification" }
             cancelThreadNotification(threadId)
             return
         }
@@ -410,5 +446,8 @@ class FullAndNameOnlyNotificationHandler @Inject constructor(
 
     companion object {
         private const val TAG = "FullNotificationHandler"
+
+        private const val EVENT_BUFFER_TIMEOUT_MILLS = 250L
+        private const val EVENT_BUFFER_MAX_ITEMS = 500
     }
 }
@@ -49,6 +49,7 @@ import org.thoughtcrime.securesms.database.model.MessageRecord
 import org.thoughtcrime.securesms.dependencies.ManagerScope
 import org.thoughtcrime.securesms.preferences.CommunicationPreferences
 import org.thoughtcrime.securesms.preferences.PreferenceStorage
+import org.thoughtcrime.securesms.util.timedBuffer
 import javax.inject.Inject
 import javax.inject.Singleton
 import kotlin.coroutines.cancellation.CancellationException
@@ -247,17 +248,27 @@ class MarkReadProcessor @Inject constructor(
                         }
                     }.mapNotNull { it.updates }
             }
+            // Coalesce the updates so each sender gets one receipt per batch, rather than one
+            // per message event.
+            .timedBuffer(BATCH_BUFFER_TIMEOUT_MILLS, BATCH_BUFFER_MAX_ITEMS)
             // Must NOT use collectLatest as "updates" data is an "event" rather than a state: it
             // does not persist between emissions. Using collectLatest will potentially cause
             // data loss.
-            .collect { updates ->
-                Log.d(TAG, "Sending read receipts to ${updates.messageTimestamps.size} messages")
+            .collect { batch ->
+                val timestampsByAddress = batch.groupBy(
+                    keySelector = { it.threadAddress },
+                    valueTransform = { it.messageTimestamps }
+                )
 
-                val message = ReadReceipt(updates.messageTimestamps).apply {
-                    sentTimestamp = snodeClock.currentTimeMillis()
-                }
+                Log.d(TAG, "Sending read receipts for ${batch.sumOf { it.messageTimestamps.size }} message(s) from ${batch.size} update(s) to ${timestampsByAddress.size} sender(s)")
+
+                for ((threadAddress, timestamps) in timestampsByAddress) {
+                    val message = ReadReceipt(timestamps.flatten().distinct()).apply {
+                        sentTimestamp = snodeClock.currentTimeMillis()
+                    }
 
-                messageSender.send(message, updates.threadAddress)
+                    messageSender.send(message, threadAddress)
+                }
             }
     }
 
@@ -326,18 +337,25 @@ class MarkReadProcessor @Inject constructor(
                     else -> error("Unknown event type $event")
                 }
             }.mapNotNull { it.updates }
-            .collect { updates ->
-                Log.d(TAG, "Marking expiry started for ${updates.messageIds.size} message(s) at ${updates.expireStarted}")
-                for (messageId in updates.messageIds) {
-                    if (messageId.mms) {
-                        mmsDatabase.markExpireStarted(messageId.id, updates.expireStarted)
-                    } else {
-                        smsDatabase.markExpireStarted(messageId.id, updates.expireStarted)
+            .timedBuffer(BATCH_BUFFER_TIMEOUT_MILLS, BATCH_BUFFER_MAX_ITEMS)
+            .collect { batch ->
+                Log.d(TAG, "Marking expiry started for ${batch.sumOf { it.messageIds.size }} message(s) from ${batch.size} update(s)")
+                val mmsStartTimes = MutableLongLongMap()
+                val smsStartTimes = MutableLongLongMap()
+                for (updates in batch) {
+                    for (messageId in updates.messageIds) {
+                        (if (messageId.mms) mmsStartTimes else smsStartTimes)[messageId.id] = updates.expireStarted
                     }
                 }
 
+                val (mmsChanges, smsChanges) = storage.runInTransaction {
+                    mmsDatabase.markExpireStarted(mmsStartTimes) to smsDatabase.markExpireStarted(smsStartTimes)
+                }
+                mmsDatabase.notifyChanges(mmsChanges)
+                smsDatabase.notifyChanges(smsChanges)
+
                 scope.launch {
-                    shortenExpiry(updates)
+                    shortenExpiry(batch)
                 }
             }
     }
@@ -345,12 +363,26 @@ class MarkReadProcessor @Inject constructor(
     /**
      * Shortens the swarm-side TTL of AFTER_READ messages to match their local expiry time,
      * so they disappear from the network at the same time as locally.
+     *
+     * All these messages live in our own swarm, so the hashes of the whole batch are grouped by
+     * their new expiry and shortened with one request per distinct expiry.
      */
-    private suspend fun shortenExpiry(updates: ExpiryUpdates) {
-        if (updates.hashesByExpiry.isEmpty()) return
+    private suspend fun shortenExpiry(batch: List<ExpiryUpdates>) {
+        val hashesByNewExpiry = MutableLongObjectMap<MutableList<String>>()
+        var hashCount = 0
+        for (updates in batch) {
+            updates.hashesByExpiry.forEach { expiresIn, hashes ->
+                hashesByNewExpiry.getOrPut(updates.expireStarted + expiresIn) { ArrayList() }.addAll(hashes)
+                hashCount += hashes.size
+            }
+        }
+
+        if (hashesByNewExpiry.isEmpty()) return
         val userAuth = storage.userAuth ?: return
 
-        updates.hashesByExpiry.forEach { expiresIn, hashes ->
+        Log.d(TAG, "Shortening TTL for $hashCount message(s) with ${hashesByNewExpiry.size} request(s)")
+
+        hashesByNewExpiry.forEach { newExpiry, hashes ->
             try {
                 swarmApiExecutor.execute(
                     SwarmApiRequest(
@@ -359,11 +391,11 @@ class MarkReadProcessor @Inject constructor(
                             messageHashes = hashes,
                             auth = userAuth,
                             alterType = AlterTtlApi.AlterType.Shorten,
-                            newExpiry = updates.expireStarted + expiresIn,
+                            newExpiry = newExpiry,
                         )
                     )
                 )
-                Log.d(TAG, "Shortened TTL for ${hashes.size} message(s), new expiry at ${updates.expireStarted + expiresIn}")
+                Log.d(TAG, "Shortened TTL for ${hashes.size} message(s), new expiry at $newExpiry")
             } catch (e: Throwable) {
                 if (e is CancellationException) throw e
                 Log.e(TAG, "Failed to shorten TTL for ${hashes.size} message(s)", e)
@@ -374,11 +406,14 @@ class MarkReadProcessor @Inject constructor(
     // messageIds: for markExpireStarted; hashesByExpiry: expiresIn -> hashes for TTL shortening
     private class ExpiryUpdates(
         val messageIds: List<MessageId>,
-        val hashesByExpiry: LongObjectMap<List<String>>,
+        val hashesByExpiry: LongObjectMap<out List<String>>,
         val expireStarted: Long,
     )
 
     companion object {
+        private const val BATCH_BUFFER_TIMEOUT_MILLS = 500L
+        private const val BATCH_BUFFER_MAX_ITEMS = 100
+
         private fun List<MessageRecord>.toExpiryUpdates(expireStarted: Long): ExpiryUpdates? {
             if (isEmpty()) return null
             val hashesByExpiry = MutableLongObjectMap<MutableList<String>>()
@@ -388,10 +423,9 @@ class MarkReadProcessor @Inject constructor(
                     hashesByExpiry.getOrPut(msg.expiresIn) { ArrayList() }.add(hash)
                 }
             }
-            @Suppress("UNCHECKED_CAST")
             return ExpiryUpdates(
                 messageIds = map { it.messageId },
-                hashesByExpiry = hashesByExpiry as LongObjectMap<List<String>>,
+                hashesByExpiry = hashesByExpiry,
                 expireStarted = expireStarted
             )
         }
@@ -2,12 +2,9 @@ package org.thoughtcrime.securesms.service
 
 import dagger.Lazy
 import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.flow.SharedFlow
-import kotlinx.coroutines.flow.catch
 import kotlinx.coroutines.flow.first
-import kotlinx.coroutines.flow.timeout
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.supervisorScope
+import kotlinx.coroutines.withTimeoutOrNull
 import network.loki.messenger.libsession_util.util.ExpiryMode
 import org.session.libsession.database.userAuth
 import org.session.libsession.messaging.messages.Message
@@ -26,7 +23,7 @@ import org.thoughtcrime.securesms.api.swarm.execute
 import org.thoughtcrime.securesms.auth.AuthAwareComponent
 import org.thoughtcrime.securesms.auth.LoggedInState
 import org.thoughtcrime.securesms.auth.LoginStateRepository
-import org.thoughtcrime.securesms.database.MessagingDatabase
+import org.thoughtcrime.securesms.database.MessageExpirySchedule
 import org.thoughtcrime.securesms.database.MmsDatabase
 import org.thoughtcrime.securesms.database.RecipientRepository
 import org.thoughtcrime.securesms.database.SmsDatabase
@@ -44,9 +41,9 @@ import kotlin.time.Duration.Companion.milliseconds
 private val TAG = ExpiringMessageManager::class.java.simpleName
 
 /**
- * A manager that reactively looking into the [MmsDatabase] and [SmsDatabase] for expired messages,
- * and deleting them. This is done by observing the expiration timestamps of messages and scheduling
- * the deletion of them when they are expired.
+ * A manager that deletes expired messages from the [MmsDatabase] and [SmsDatabase]. The databases
+ * feed the expiration timestamps of messages into the [MessageExpirySchedule], and this manager
+ * wakes up to delete them in batches when they are due.
  *
  * There is no need (and no way) to ask this manager to schedule a deletion of a message, instead, all you
  * need to do is set the expiryMills and expiryStarted fields of the message and save to db,
@@ -62,15 +59,13 @@ class ExpiringMessageManager @Inject constructor(
     private val recipientRepository: RecipientRepository,
     private val alterTtlApiFactory: AlterTtlApi.Factory,
     private val swarmApiExecutor: SwarmApiExecutor,
+    private val expirySchedule: MessageExpirySchedule,
     @param:ManagerScope private val scope: CoroutineScope,
 ) : MessageExpirationManagerProtocol, AuthAwareComponent {
 
 
     override suspend fun doWhileLoggedIn(loggedInState: LoggedInState) {
-        supervisorScope {
-            launch { processDatabase(smsDatabase, smsDatabase.changeNotification) }
-            launch { processDatabase(mmsDatabase, mmsDatabase.changeNotification) }
-        }
+        processExpirySchedule()
     }
 
     private fun getDatabase(mms: Boolean) = if (mms) mmsDatabase else smsDatabase
@@ -245,48 +240,43 @@ class ExpiringMessageManager @Inject constructor(
         }
     }
 
-    private suspend fun processDatabase(db: MessagingDatabase, dbChanges: SharedFlow<*>) {
+    private suspend fun processExpirySchedule() {
+        // Clear the schedule before loading from the database, so anything written in between
+        // will be scheduled again rather than lost.
+        expirySchedule.clear()
+        expirySchedule.scheduleAll(smsDatabase.getExpiringMessages(), mms = false)
+        expirySchedule.scheduleAll(mmsDatabase.getExpiringMessages(), mms = true)
+
         while (true) {
-            val expiredMessages = db.getExpiredMessageIDs(clock.currentTimeMillis())
+            val now = clock.currentTimeMillis()
+            val dueMessages = expirySchedule.pollDue(now)
 
-            if (expiredMessages.isNotEmpty()) {
-                Log.d(
-                    TAG,
-                    "Deleting ${expiredMessages.size} expired messages from ${db.javaClass.simpleName}"
-                )
-                for (messageId in expiredMessages) {
+            if (dueMessages.isNotEmpty()) {
+                Log.d(TAG, "Deleting up to ${dueMessages.size} expired messages")
+                for ((mms, messageIds) in dueMessages.groupBy({ it.mms }, { it.id })) {
                     try {
-                        db.deleteMessage(messageId)
+                        getDatabase(mms).deleteExpiredMessages(messageIds, now)
                     } catch (e: Exception) {
-                        Log.e(TAG, "Failed to delete expired message with ID $messageId", e)
+                        if (e is CancellationException) throw e
+                        Log.e(TAG, "Failed to delete expired messages", e)
                     }
                 }
             }
 
-            val nextExpiration = db.nextExpiringTimestamp
-            val now = clock.currentTimeMillis()
+            val nextDeadline = expirySchedule.nextDeadlineMills()
 
-            if (nextExpiration > 0 && nextExpiration <= now) {
-                continue // Proceed to the next iteration if the next expiration is already or about go to in the past
-            }
+            if (nextDeadline != null) {
+                val delayMills = nextDeadline - clock.currentTimeMillis()
+                if (delayMills <= 0) {
+                    continue // Proceed to the next iteration if the next deadline is already in the past
+                }
 
-            if (nextExpiration > 0) {
-                val delayMills = nextExpiration - now
-                Log.d(
-                    TAG,
-                    "Wait for up to $delayMills ms for next expiration in ${db.javaClass.simpleName}"
-                )
-                @Suppress("OPT_IN_USAGE")
-                dbChanges.timeout(delayMills.milliseconds)
-                    .catch { emit(Unit) }
-                    .first()
+                // Wait until the next deadline, or until something earlier gets scheduled
+                withTimeoutOrNull(delayMills.milliseconds) {
+                    expirySchedule.earlierDeadlineScheduled.first()
+                }
             } else {
-                Log.d(
-                    TAG,
-                    "No next expiration found, waiting for any change in ${db.javaClass.simpleName}"
-                )
-                // If there are no next expiration, just wait for any change in the database
-                dbChanges.first()
+                expirySchedule.earlierDeadlineScheduled.first()
             }
         }
     }
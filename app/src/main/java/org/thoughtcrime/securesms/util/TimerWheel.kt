@@ -0,0 +1,176 @@
+package org.thoughtcrime.securesms.util
+
+/**
+ * A hierarchical timer wheel, in the spirit of the classic kernel timer wheel.
+ *
+ * Deadlines are rounded up to a [tickMillis] granularity, so an item is never reported as due
+ * before its deadline, but it can be reported up to one tick late. Items far in the future are
+ * parked in coarse-grained upper levels and only cascaded down when they get close, which makes
+ * both [schedule] and [advanceTo] O(1) amortised no matter how many items are pending.
+ *
+ * This class is not thread safe.
+ */
+class TimerWheel<T>(
+    private val tickMillis: Long,
+    startMillis: Long,
+) {
+    private class Entry<T>(val item: T, val deadlineTick: Long)
+
+    private val levels = Array(LEVELS) { arrayOfNulls<ArrayList<Entry<T>>>(SLOTS) }
+
+    // Items that are too far in the future to fit in the wheel at all
+    private val overflow = ArrayList<Entry<T>>()
+
+    // The next tick to be processed
+    private var currentTick: Long = startMillis / tickMillis
+
+    var size: Int = 0
+        private set
+
+    init {
+        require(tickMillis > 0) { "tickMillis must be positive" }
+    }
+
+    /**
+     * Schedule [item] to be returned by [advanceTo] once the time reaches [deadlineMillis].
+     * Deadlines in the past will be returned on the next call to [advanceTo].
+     */
+    fun schedule(item: T, deadlineMillis: Long) {
+        val deadlineTick = Math.floorDiv(deadlineMillis + tickMillis - 1, tickMillis)
+        add(Entry(item, deadlineTick))
+        size++
+    }
+
+    /**
+     * Advance the wheel up to [nowMillis], returning all the items whose deadline have passed.
+     */
+    fun advanceTo(nowMillis: Long): List<T> {
+        val targetTick = Math.floorDiv(nowMillis, tickMillis)
+        if (targetTick < currentTick) return emptyList()
+
+        if (size == 0) {
+            currentTick = targetTick + 1
+            return emptyList()
+        }
+
+        val due = ArrayList<T>()
+        while (currentTick <= targetTick && size > 0) {
+            // Skip straight over the ticks where there's nothing to fire or cascade
+            val nextTick = nextDeadlineTick()!!
+            if (nextTick > currentTick) {
+                currentTick = minOf(nextTick, targetTick + 1)
+            } else {
+                processTick(due)
+            }
+        }
+
+        if (size == 0 && currentTick <= targetTick) {
+            currentTick = targetTick + 1
+        }
+
+        return due
+    }
+
+    /**
+     * @return A time, in milliseconds, that is guaranteed to be no later than the earliest
+     * deadline in this wheel, or null if the wheel is empty. It's exact for items that are due
+     * within the next [SLOTS] ticks; for anything further away it's the time the item would be
+     * cascaded into a finer level, at which point this should be asked again.
+     */
+    fun nextDeadlineMillis(): Long? = nextDeadlineTick()?.times(tickMillis)
+
+    private fun nextDeadlineTick(): Long? {
+        if (size == 0) return null
+
+        for (offset in 0 until SLOTS) {
+            val tick = currentTick + offset
+            if (!levels[0][slotOf(tick, 0)].isNullOrEmpty()) {
+                return tick
+            }
+        }
+
+        var earliest = Long.MAX_VALUE
+        for (level in 1 until LEVELS) {
+            val shift = BITS * level
+            val firstBlock = Math.floorDiv(currentTick + (1L shl shift) - 1, 1L shl shift)
+            for (offset in 0 until SLOTS) {
+                val block = firstBlock + offset
+                if (!levels[level][(block and MASK).toInt()].isNullOrEmpty()) {
+                    earliest = minOf(earliest, block shl shift)
+                    break
+                }
+            }
+        }
+
+        if (overflow.isNotEmpty()) {
+            val shift = BITS * (LEVELS - 1)
+            earliest = minOf(earliest, Math.floorDiv(currentTick + (1L shl shift) - 1, 1L shl shift) shl shift)
+        }
+
+        return earliest.takeIf { it != Long.MAX_VALUE }
+    }
+
+    fun clear() {
+        levels.forEach { it.fill(null) }
+        overflow.clear()
+        size = 0
+    }
+
+    private fun processTick(due: MutableList<T>) {
+        // When a lower level wraps around, the matching slot from the level above is
+        // redistributed into the lower levels.
+        var level = 1
+        while (level < LEVELS && slotOf(currentTick, level - 1) == 0) {
+            cascade(level)
+            level++
+        }
+
+        if (level == LEVELS && overflow.isNotEmpty()) {
+            val parked = ArrayList(overflow)
+            overflow.clear()
+            parked.forEach(::add)
+        }
+
+        val slot = slotOf(currentTick, 0)
+        levels[0][slot]?.let { entries ->
+            levels[0][slot] = null
+            entries.forEach { due += it.item }
+            size -= entries.size
+        }
+
+        currentTick++
+    }
+
+    private fun cascade(level: Int) {
+        val slot = slotOf(currentTick, level)
+        val entries = levels[level][slot] ?: return
+        levels[level][slot] = null
+        entries.forEach(::add)
+    }
+
+    private fun add(entry: Entry<T>) {
+        // Anything already due goes into the slot that will be processed next
+        val deadlineTick = maxOf(entry.deadlineTick, currentTick)
+        val delta = deadlineTick - currentTick
+
+        for (level in 0 until LEVELS) {
+            if (delta < (1L shl (BITS * (level + 1)))) {
+                val slot = slotOf(deadlineTick, level)
+                val list = levels[level][slot] ?: ArrayList<Entry<T>>().also { levels[level][slot] = it }
+                list += if (deadlineTick == entry.deadlineTick) entry else Entry(entry.item, deadlineTick)
+                return
+            }
+        }
+
+        overflow += entry
+    }
+
+    private fun slotOf(tick: Long, level: Int): Int = ((tick shr (BITS * level)) and MASK).toInt()
+
+    companion object {
+        private const val BITS = 6
+        private const val SLOTS = 1 shl BITS
+        private const val MASK = (SLOTS - 1).toLong()
+        private const val LEVELS = 4
+    }
+}
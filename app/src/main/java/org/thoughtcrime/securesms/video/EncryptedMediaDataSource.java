@@ -6,7 +6,6 @@ import android.media.MediaDataSource;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import org.session.libsession.utilities.Util;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.ClassicDecryptingPartInputStream;
 import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
@@ -22,6 +21,8 @@ public class EncryptedMediaDataSource extends MediaDataSource {
   private final byte[]           random;
   private final long             length;
 
+  private ClassicDecryptingPartInputStream.RandomAccessReader classicReader;
+
   public EncryptedMediaDataSource(@NonNull AttachmentSecret attachmentSecret, @NonNull File mediaFile, @Nullable byte[] random, long length) {
     this.attachmentSecret = attachmentSecret;
     this.mediaFile        = mediaFile;
@@ -36,21 +37,20 @@ public class EncryptedMediaDataSource extends MediaDataSource {
   }
 
   private int readAtClassic(long position, byte[] bytes, int offset, int length) throws IOException {
-    InputStream inputStream     = ClassicDecryptingPartInputStream.createFor(attachmentSecret, mediaFile);
-    byte[]      buffer          = new byte[4096];
-    long        headerRemaining = position;
+    InputStream inputStream = getClassicReader().open(position);
+    int         returnValue = inputStream.read(bytes, offset, length);
 
-    while (headerRemaining > 0) {
-      int read = inputStream.read(buffer, 0, Util.toIntExact(Math.min((long)buffer.length, headerRemaining)));
+    inputStream.close();
 
-      if (read == -1) return -1;
+    return returnValue;
+  }
 
-      headerRemaining -= read;
+  private synchronized ClassicDecryptingPartInputStream.RandomAccessReader getClassicReader() throws IOException {
+    if (classicReader == null) {
+      classicReader = ClassicDecryptingPartInputStream.createRandomAccessFor(attachmentSecret, mediaFile);
     }
 
-    int returnValue = inputStream.read(bytes, offset, length);
-    inputStream.close();
-    return returnValue;
+    return classicReader;
   }
 
   private int readAtModern(long position, byte[] bytes, int offset, int length) throws IOException {
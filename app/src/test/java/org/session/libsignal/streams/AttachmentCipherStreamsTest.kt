@@ -0,0 +1,140 @@
+package org.session.libsignal.streams
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.session.libsignal.utilities.ByteArraySlice.Companion.view
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.InputStream
+import java.io.OutputStream
+import java.security.MessageDigest
+import kotlin.random.Random
+
+class AttachmentCipherStreamsTest {
+
+    private val key = Random(1).nextBytes(64)
+
+    private fun encrypt(plaintext: ByteArray, writeSize: Int): Pair<ByteArray, ByteArray> {
+        val out = ByteArrayOutputStream()
+        val digest = AttachmentCipherOutputStream(key, out).use { os ->
+            var offset = 0
+            while (offset < plaintext.size) {
+                val count = minOf(writeSize, plaintext.size - offset)
+                os.write(plaintext, offset, count)
+                offset += count
+            }
+            os.flush()
+            os.transmittedDigest
+        }
+        return out.toByteArray() to digest
+    }
+
+    private fun InputStream.readAllIn(readSize: Int): ByteArray {
+        val out = ByteArrayOutputStream()
+        val buffer = ByteArray(readSize)
+        while (true) {
+            val read = read(buffer)
+            if (read == -1) break
+            out.write(buffer, 0, read)
+        }
+        return out.toByteArray()
+    }
+
+    @Test
+    fun `round trips with any read and write sizes`() {
+        val plaintext = Random(2).nextBytes(200_003)
+
+        for (writeSize in listOf(1, 15, 16, 4096, StreamBufferPool.BUFFER_SIZE + 1)) {
+            val (ciphertext, digest) = encrypt(plaintext, writeSize)
+            assertEquals(AttachmentCipherOutputStream.getCiphertextLength(plaintext.size.toLong()), ciphertext.size.toLong())
+
+            for (readSize in listOf(1, 17, 8192, 1_000_000)) {
+                val decrypted = AttachmentCipherInputStream.createForAttachment(ciphertext.view(), key, digest)
+                    .use { it.readAllIn(readSize) }
+
+                assertArrayEquals("write $writeSize, read $readSize", plaintext, decrypted)
+            }
+        }
+    }
+
+    @Test
+    fun `single byte reads and skips see the same plaintext`() {
+        val plaintext = Random(3).nextBytes(100_000)
+        val (ciphertext, digest) = encrypt(plaintext, 8192)
+
+        AttachmentCipherInputStream.createForAttachment(ciphertext.view(), key, digest).use { input ->
+            assertEquals(plaintext[0].toInt() and 0xFF, input.read())
+            assertEquals(70_000L, input.skip(70_000))
+            assertEquals(plaintext[70_001].toInt() and 0xFF, input.read())
+            assertArrayEquals(plaintext.copyOfRange(70_002, plaintext.size), input.readAllIn(1000))
+        }
+    }
+
+    @Test
+    fun `padding is zeroed in reused buffers`() {
+        val buffer = ByteArray(1000) { 0x55 }
+        val padded = PaddingInputStream(ByteArray(10) { 1 }.inputStream(), 10)
+
+        val out = ByteArrayOutputStream()
+        while (true) {
+            val read = padded.read(buffer)
+            if (read == -1) break
+            out.write(buffer, 0, read)
+        }
+
+        val bytes = out.toByteArray()
+        assertEquals(PaddingInputStream.getPaddedSize(10), bytes.size.toLong())
+        assertEquals(List(bytes.size - 10) { 0.toByte() }, bytes.drop(10))
+    }
+
+    @Test
+    fun `round trips through a file`() {
+        val chunk = Random(4).nextBytes(StreamBufferPool.BUFFER_SIZE)
+        val size = 4L * chunk.size + 7
+        val expectedDigest = MessageDigest.getInstance("SHA256")
+        val ciphertextFile = File.createTempFile("attachment", null)
+
+        try {
+            val digest = ciphertextFile.outputStream().buffered(StreamBufferPool.BUFFER_SIZE).use { fileOut ->
+                AttachmentCipherOutputStream(key, fileOut).use { os ->
+                    var remaining = size
+                    while (remaining > 0) {
+                        val count = minOf(remaining, chunk.size.toLong()).toInt()
+                        os.write(chunk, 0, count)
+                        expectedDigest.update(chunk, 0, count)
+                        remaining -= count
+                    }
+                    os.flush()
+                    os.transmittedDigest
+                }
+            }
+
+            val plaintextDigest = MessageDigest.getInstance("SHA256")
+            val read = AttachmentCipherInputStream.createForAttachment(ciphertextFile, size, key, digest).use { input ->
+                input.copyTo(DigestOutputStream(plaintextDigest), StreamBufferPool.BUFFER_SIZE)
+            }
+
+            assertEquals(size, read)
+            assertArrayEquals(expectedDigest.digest(), plaintextDigest.digest())
+        } finally {
+            ciphertextFile.delete()
+        }
+    }
+
+    @Test
+    fun `released buffers are zeroed`() {
+        val buffer = StreamBufferPool.acquire()
+        buffer.fill(0x55)
+
+        StreamBufferPool.release(buffer)
+
+        assertTrue(buffer.all { it == 0.toByte() })
+    }
+
+    private class DigestOutputStream(private val digest: MessageDigest) : OutputStream() {
+        override fun write(b: Int) = digest.update(b.toByte())
+        override fun write(b: ByteArray, off: Int, len: Int) = digest.update(b, off, len)
+    }
+}
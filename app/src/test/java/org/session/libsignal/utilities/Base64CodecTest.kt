@@ -0,0 +1,71 @@
+package org.session.libsignal.utilities
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertThrows
+import org.junit.Test
+import org.session.libsignal.utilities.ByteArraySlice.Companion.view
+import kotlin.random.Random
+
+class Base64CodecTest {
+
+    @Test
+    fun `encoding matches the JDK with and without padding`() {
+        val random = Random(1)
+        for (size in 0..100) {
+            val bytes = random.nextBytes(size)
+
+            assertEquals(java.util.Base64.getEncoder().encodeToString(bytes), Base64Codec.encodeToString(bytes))
+            assertEquals(
+                java.util.Base64.getEncoder().withoutPadding().encodeToString(bytes),
+                Base64Codec.encodeToString(bytes, padding = false)
+            )
+        }
+    }
+
+    @Test
+    fun `decoding round trips from strings and slices`() {
+        val random = Random(2)
+        for (size in 0..100) {
+            val bytes = random.nextBytes(size)
+            val encoded = java.util.Base64.getEncoder().encodeToString(bytes)
+            val unpadded = encoded.trimEnd('=')
+            val urlSafe = java.util.Base64.getUrlEncoder().encodeToString(bytes)
+
+            assertArrayEquals(bytes, Base64Codec.decode(encoded))
+            assertArrayEquals(bytes, Base64Codec.decode(unpadded))
+            assertArrayEquals(bytes, Base64Codec.decode(urlSafe))
+            assertArrayEquals(bytes, Base64Codec.decode(" $encoded\n".toByteArray().view(1..encoded.length + 1)))
+        }
+    }
+
+    @Test
+    fun `decoding into a caller buffer skips whitespace`() {
+        val encoded = "aGVs\nbG8g\r\nd29y bGQ="
+        val out = ByteArray(Base64Codec.decodedLength(encoded) + 2)
+
+        val written = Base64Codec.decode(encoded, out = out, outOffset = 2)
+
+        assertEquals("hello world", out.decodeToString(2, 2 + written))
+    }
+
+    @Test
+    fun `invalid input is rejected`() {
+        assertThrows(IllegalArgumentException::class.java) { Base64Codec.decode("aGVs*G8=") }
+        assertThrows(IllegalArgumentException::class.java) { Base64Codec.decode("aGVsb") }
+        assertThrows(IllegalArgumentException::class.java) { Base64Codec.decode("aG==bG8=") }
+    }
+
+    @Test
+    fun `legacy encoding goes through the new codec unchanged`() {
+        val bytes = Random(3).nextBytes(1000)
+        val encoded = java.util.Base64.getEncoder().encodeToString(bytes)
+
+        assertEquals(encoded, Base64.encodeBytes(bytes))
+        assertArrayEquals(bytes, Base64.decode(encoded))
+        assertEquals(
+            java.util.Base64.getEncoder().withoutPadding().encodeToString(bytes.copyOfRange(1, 999)),
+            Base64.encodeBytesWithoutPadding(bytes, 1, 998)
+        )
+    }
+}
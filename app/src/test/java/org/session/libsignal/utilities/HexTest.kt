@@ -0,0 +1,31 @@
+package org.session.libsignal.utilities
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.session.libsignal.utilities.ByteArraySlice.Companion.view
+import kotlin.random.Random
+
+class HexTest {
+
+    @Test
+    fun `condensed hex round trips`() {
+        val bytes = Random(1).nextBytes(256)
+        val hex = bytes.joinToString("") { "%02x".format(it) }
+
+        assertEquals(hex, bytes.toHexString())
+        assertEquals(hex.substring(20, 40), bytes.view(10 until 20).toHexString())
+        assertArrayEquals(bytes, Hex.fromStringCondensed(hex))
+        assertArrayEquals(bytes, Hex.fromStringCondensed(hex.uppercase()))
+    }
+
+    @Test
+    fun `decoding into a caller buffer`() {
+        val out = ByteArray(4)
+
+        val written = Hex.decode("xx0aff", 2, 6, out, 1)
+
+        assertEquals(2, written)
+        assertArrayEquals(byteArrayOf(0, 0x0a, 0xff.toByte(), 0), out)
+    }
+}
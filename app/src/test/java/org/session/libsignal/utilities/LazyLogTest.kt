@@ -0,0 +1,101 @@
+package org.session.libsignal.utilities
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.lang.management.ManagementFactory
+
+class LazyLogTest {
+
+    private val logged = mutableListOf<String?>()
+
+    private val logger = object : Log.Logger() {
+        override fun v(tag: String?, message: String?, t: Throwable?) { logged += message }
+        override fun d(tag: String?, message: String?, t: Throwable?) { logged += message }
+        override fun i(tag: String?, message: String?, t: Throwable?) { logged += message }
+        override fun w(tag: String?, message: String?, t: Throwable?) { logged += message }
+        override fun e(tag: String?, message: String?, t: Throwable?) { logged += message }
+        override fun wtf(tag: String?, message: String?, t: Throwable?) { logged += message }
+        override fun blockUntilAllWritesFinished() {}
+    }
+
+    private var previousLoggers: Array<out Log.Logger>? = null
+    private var previousMinLevel = Log.Level.VERBOSE
+
+    @Before
+    fun setUp() {
+        previousLoggers = Log.loggers
+        previousMinLevel = Log.minLevel
+        Log.initialize(logger)
+    }
+
+    @After
+    fun tearDown() {
+        Log.loggers = previousLoggers
+        Log.minLevel = previousMinLevel
+        Log.setSampleRate(TAG, 1)
+    }
+
+    @Test
+    fun `messages below the minimum level are never built`() {
+        Log.minLevel = Log.Level.INFO
+        var built = 0
+
+        Log.d(TAG) { built++; "debug" }
+        Log.i(TAG) { built++; "info" }
+        Log.d(TAG, "eager debug")
+
+        assertEquals(1, built)
+        assertEquals(listOf("info"), logged)
+    }
+
+    @Test
+    fun `sampled tags only log one in every n entries below warnings`() {
+        Log.setSampleRate(TAG, 10)
+
+        repeat(100) { i ->
+            Log.d(TAG) { "debug $i" }
+            Log.i(TAG, "eager $i")
+            Log.d("Other") { "other $i" }
+        }
+        Log.w(TAG) { "warning" }
+
+        // Lazy and eager entries of the tag count towards the same sampling
+        assertEquals(20, logged.count { it!!.startsWith("debug") || it.startsWith("eager") })
+        assertEquals(100, logged.count { it!!.startsWith("other") })
+        assertTrue("warning" in logged)
+    }
+
+    @Test
+    fun `gated calls do not allocate unlike eager ones`() {
+        val threadBean = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+            ?: return
+        val request = List(20) { "snode-$it.example:22021" }
+        val iterations = 100_000
+
+        fun allocatedBytes(block: () -> Unit): Long {
+            val threadId = Thread.currentThread().id
+            block() // Warm up
+            val start = threadBean.getThreadAllocatedBytes(threadId)
+            block()
+            return threadBean.getThreadAllocatedBytes(threadId) - start
+        }
+
+        Log.minLevel = Log.Level.INFO
+
+        val eager = allocatedBytes {
+            for (i in 0 until iterations) Log.d(TAG, "Sending request $i to $request")
+        }
+        val lazy = allocatedBytes {
+            for (i in 0 until iterations) Log.d(TAG) { "Sending request $i to $request" }
+        }
+
+        assertTrue(lazy < eager / 100)
+    }
+
+    companion object {
+        private const val TAG = "LazyLogTest"
+    }
+}
@@ -0,0 +1,85 @@
+package org.thoughtcrime.securesms.attachments
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.thoughtcrime.securesms.attachments.AvatarDownloadScheduler.Priority
+
+class AvatarDownloadSchedulerTest {
+
+    @Test
+    fun `visible downloads go before queued background downloads`() = runTest {
+        val scheduler = AvatarDownloadScheduler(maxConcurrent = 1, maxBackground = 1)
+        val blocker = CompletableDeferred<Unit>()
+        val started = mutableListOf<String>()
+
+        launch { scheduler.withPermit(scheduler.newTicket(Priority.BACKGROUND)) { started += "first"; blocker.await() } }
+        runCurrent()
+
+        launch { scheduler.withPermit(scheduler.newTicket(Priority.BACKGROUND)) { started += "background" } }
+        launch { scheduler.withPermit(scheduler.newTicket(Priority.VISIBLE)) { started += "visible" } }
+        runCurrent()
+
+        blocker.complete(Unit)
+        runCurrent()
+
+        assertEquals(listOf("first", "visible", "background"), started)
+    }
+
+    @Test
+    fun `background downloads wait while paused`() = runTest {
+        val scheduler = AvatarDownloadScheduler(maxConcurrent = 2, maxBackground = 2)
+        val started = mutableListOf<String>()
+
+        scheduler.setBackgroundAllowed(false)
+        launch { scheduler.withPermit(scheduler.newTicket(Priority.BACKGROUND)) { started += "background" } }
+        launch { scheduler.withPermit(scheduler.newTicket(Priority.VISIBLE)) { started += "visible" } }
+        runCurrent()
+
+        assertEquals(listOf("visible"), started)
+
+        scheduler.setBackgroundAllowed(true)
+        runCurrent()
+
+        assertEquals(listOf("visible", "background"), started)
+    }
+
+    @Test
+    fun `bumped downloads move ahead of background downloads`() = runTest {
+        val scheduler = AvatarDownloadScheduler(maxConcurrent = 1, maxBackground = 1)
+        val blocker = CompletableDeferred<Unit>()
+        val started = mutableListOf<String>()
+
+        launch { scheduler.withPermit(scheduler.newTicket(Priority.VISIBLE)) { started += "first"; blocker.await() } }
+        runCurrent()
+
+        val bumped = scheduler.newTicket(Priority.BACKGROUND)
+        launch { scheduler.withPermit(scheduler.newTicket(Priority.BACKGROUND)) { started += "background" } }
+        launch { scheduler.withPermit(bumped) { started += "bumped" } }
+        runCurrent()
+
+        scheduler.bump(bumped, Priority.VISIBLE)
+        blocker.complete(Unit)
+        runCurrent()
+
+        assertEquals(listOf("first", "bumped", "background"), started)
+    }
+
+    @Test
+    fun `cancelled downloads give their slot back`() = runTest {
+        val scheduler = AvatarDownloadScheduler(maxConcurrent = 1, maxBackground = 1)
+        val started = mutableListOf<String>()
+
+        val cancelled = launch { scheduler.withPermit(scheduler.newTicket(Priority.VISIBLE)) { CompletableDeferred<Unit>().await() } }
+        launch { scheduler.withPermit(scheduler.newTicket(Priority.VISIBLE)) { started += "next" } }
+        runCurrent()
+
+        cancelled.cancel()
+        runCurrent()
+
+        assertEquals(listOf("next"), started)
+    }
+}
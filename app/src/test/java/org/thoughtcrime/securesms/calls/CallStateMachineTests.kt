@@ -21,11 +21,11 @@ class CallStateMachineTests {
     fun setup() {
         stateProcessor = TestStateProcessor(State.Idle)
         mock = mockStatic(Log::class.java).apply {
-            `when`<Unit> { Log.e(any(), any(), any()) }.then { invocation ->
+            `when`<Unit> { Log.e(any<String>(), any<String>(), any<Throwable>()) }.then { invocation ->
                 val msg = invocation.getArgument<Any>(1)
                 println(msg)
             }
-            `when`<Unit> { Log.i(any(), any(), any()) }.then { invocation ->
+            `when`<Unit> { Log.i(any<String>(), any<String>(), any<Throwable>()) }.then { invocation ->
                 val msg = invocation.getArgument<Any>(1)
                 println(msg)
             }
@@ -0,0 +1,59 @@
+package org.thoughtcrime.securesms.crypto
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import javax.crypto.Cipher
+import javax.crypto.Mac
+import javax.crypto.spec.IvParameterSpec
+import javax.crypto.spec.SecretKeySpec
+import kotlin.random.Random
+
+class ClassicDecryptingPartInputStreamTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val secret = AttachmentSecret(
+        classicMacKey = Random(1).nextBytes(20),
+        classicCipherKey = Random(2).nextBytes(16),
+        modernKey = Random(3).nextBytes(32),
+    )
+
+    private fun writeClassicPart(plaintext: ByteArray): File {
+        val iv = Random(4).nextBytes(16)
+        val cipher = Cipher.getInstance("AES/CBC/PKCS5Padding").apply {
+            init(Cipher.ENCRYPT_MODE, SecretKeySpec(secret.classicCipherKey, "AES"), IvParameterSpec(iv))
+        }
+
+        val body = iv + cipher.doFinal(plaintext)
+        val mac = Mac.getInstance("HmacSHA1").apply {
+            init(SecretKeySpec(secret.classicMacKey, "HmacSHA1"))
+        }.doFinal(body)
+
+        return folder.newFile().apply { writeBytes(body + mac) }
+    }
+
+    @Test
+    fun `reads from any offset match the plaintext`() {
+        val plaintext = Random(5).nextBytes(1000)
+        val reader = ClassicDecryptingPartInputStream.createRandomAccessFor(secret, writeClassicPart(plaintext))
+
+        for (offset in listOf(0, 1, 15, 16, 17, 31, 32, 500, 991, 992, 999)) {
+            val actual = reader.open(offset.toLong()).use { it.readBytes() }
+            assertArrayEquals("offset $offset", plaintext.copyOfRange(offset, plaintext.size), actual)
+        }
+    }
+
+    @Test
+    fun `reads past the end are empty`() {
+        val plaintext = Random(6).nextBytes(32)
+        val reader = ClassicDecryptingPartInputStream.createRandomAccessFor(secret, writeClassicPart(plaintext))
+
+        assertEquals(0, reader.open(32).use { it.readBytes() }.size)
+        assertEquals(0, reader.open(100).use { it.readBytes() }.size)
+    }
+}
@@ -0,0 +1,69 @@
+package org.thoughtcrime.securesms.database
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.thoughtcrime.securesms.database.model.MessageId
+import org.thoughtcrime.securesms.database.model.ReactionRecord
+
+class ReactionDiffTest {
+
+    private val messageId = MessageId(1, true)
+
+    private fun reaction(emoji: String, author: String, count: Long = 1, id: Long = 0) = ReactionRecord(
+        id = id,
+        messageId = messageId,
+        author = author,
+        emoji = emoji,
+        serverId = "10",
+        count = count,
+    )
+
+    // The stored reactions have row ids, the ones coming from the server don't
+    private fun stored(reactions: List<ReactionRecord>) = reactions.mapIndexed { i, r -> r.copy(id = i + 1L) }
+
+    @Test
+    fun `unchanged reactions result in no writes`() {
+        val reactions = listOf(reaction("👍", "a"), reaction("👍", "b"), reaction("❤️", "a"))
+
+        assertTrue(ReactionDiff.of(stored(reactions), reactions).isEmpty)
+    }
+
+    @Test
+    fun `added, removed and changed reactions are told apart`() {
+        val existing = stored(listOf(reaction("👍", "a"), reaction("👍", "b"), reaction("❤️", "a")))
+        val updated = listOf(reaction("👍", "a", count = 2), reaction("❤️", "a"), reaction("😂", "c"))
+
+        val diff = ReactionDiff.of(existing, updated)
+
+        assertEquals(listOf(reaction("😂", "c")), diff.inserts)
+        assertEquals(listOf(reaction("👍", "a", count = 2, id = 1)), diff.updates)
+        assertEquals(listOf(existing[1]), diff.deletes)
+    }
+
+    @Test
+    fun `large reactor sets only produce the changed rows`() {
+        val emojis = listOf("👍", "❤️", "😂", "😮", "😢")
+        val reactions = emojis.flatMap { emoji -> (0 until 1000).map { reaction(emoji, "author$it", count = 1000) } }
+        val existing = stored(reactions)
+
+        // One reactor leaves and one joins, which changes the count of their emojis on every row
+        val updated = reactions
+            .filterNot { it.emoji == "👍" && it.author == "author0" }
+            .map {
+                when (it.emoji) {
+                    "👍" -> it.copy(count = 999)
+                    "😂" -> it.copy(count = 1001)
+                    else -> it
+                }
+            } + reaction("😂", "newcomer", count = 1001)
+
+        val diff = ReactionDiff.of(existing, updated)
+
+        assertEquals(listOf(reaction("😂", "newcomer", count = 1001)), diff.inserts)
+        assertEquals(listOf(existing.first()), diff.deletes)
+        assertEquals(999 + 1000, diff.updates.size)
+        assertEquals(setOf("👍", "😂"), diff.updates.mapTo(hashSetOf()) { it.emoji })
+        assertTrue(diff.updates.all { it.id != 0L })
+    }
+}
@@ -0,0 +1,139 @@
+package org.thoughtcrime.securesms.logging
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.RandomAccessFile
+
+class BlockLogFileTest {
+
+    private val secret = ByteArray(32) { it.toByte() }
+    private val file = File.createTempFile("block-log", null)
+
+    @After
+    fun tearDown() {
+        file.delete()
+    }
+
+    private fun readText(): List<String> = ByteArrayOutputStream().use { out ->
+        BlockLogFile.Reader(secret, file).use { it.writeTextTo(out) }
+        out.toString(Charsets.UTF_8.name()).lines().filter { it.isNotEmpty() }
+    }
+
+    @Test
+    fun `entries are read back in order across blocks`() {
+        val count = 5000
+
+        BlockLogFile.Writer(secret, file).use { writer ->
+            repeat(count) { i ->
+                writer.writeEntry('D', "Tag${i % 7}", "Message $i with ünïcödé 🙂", null, 1_700_000_000_000L + i)
+            }
+        }
+
+        val lines = readText()
+
+        assertEquals(count, lines.size)
+        assertTrue(lines.first(), lines.first().endsWith(" D Tag0: Message 0 with ünïcödé 🙂"))
+        assertTrue(lines.last(), lines.last().endsWith(" D Tag${(count - 1) % 7}: Message ${count - 1} with ünïcödé 🙂"))
+    }
+
+    @Test
+    fun `stack traces are kept`() {
+        BlockLogFile.Writer(secret, file).use { writer ->
+            writer.writeEntry('E', null, "Failed", RuntimeException("Boom"), 0)
+        }
+
+        val lines = readText()
+
+        assertTrue(lines[0], lines[0].endsWith(" E : Failed"))
+        assertEquals("java.lang.RuntimeException: Boom", lines[1])
+    }
+
+    @Test
+    fun `appending after a partially written block keeps the complete blocks`() {
+        BlockLogFile.Writer(secret, file).use { writer ->
+            writer.writeEntry('I', "Tag", "First", null, 0)
+            writer.flush()
+            writer.writeEntry('I', "Tag", "Lost", null, 0)
+        }
+
+        // Cut the last block short, like the app dying halfway through writing it
+        RandomAccessFile(file, "rw").use { it.setLength(it.length() - 5) }
+
+        BlockLogFile.Writer(secret, file).use { writer ->
+            writer.writeEntry('I', "Tag", "Second", null, 0)
+        }
+
+        val lines = readText()
+
+        assertEquals(2, lines.size)
+        assertTrue(lines[0].endsWith("First"))
+        assertTrue(lines[1].endsWith("Second"))
+    }
+
+    @Test
+    fun `a block that fails to decrypt is skipped`() {
+        BlockLogFile.Writer(secret, file).use { writer ->
+            for (message in listOf("First", "Second", "Third")) {
+                writer.writeEntry('I', "Tag", message, null, 0)
+                writer.flush()
+            }
+        }
+
+        // Flip a byte in the ciphertext of the second block, past the magic and the first block
+        RandomAccessFile(file, "rw").use { raf ->
+            raf.seek(4 + 12)
+            val secondBlock = 4 + 16 + raf.readInt().toLong()
+            raf.seek(secondBlock + 16)
+            val b = raf.read()
+            raf.seek(secondBlock + 16)
+            raf.write(b xor 1)
+        }
+
+        val lines = readText()
+
+        assertEquals(2, lines.size)
+        assertTrue(lines[0].endsWith("First"))
+        assertTrue(lines[1].endsWith("Third"))
+    }
+
+    @Test
+    fun `a file written with another secret is told apart`() {
+        assertTrue(BlockLogFile.isWrittenWith(secret, file))
+
+        BlockLogFile.Writer(secret, file).use { writer ->
+            writer.writeEntry('I', "Tag", "First", null, 0)
+        }
+
+        assertTrue(BlockLogFile.isWrittenWith(secret, file))
+        assertFalse(BlockLogFile.isWrittenWith(ByteArray(32), file))
+    }
+
+    @Test
+    fun `entries take fewer bytes than the per entry format`() {
+        val count = 10_000
+        val entries = List(count) { i -> "Request $i to snode 1.2.3.4:22021 completed in ${i % 500}ms" }
+
+        BlockLogFile.Writer(secret, file).use { writer ->
+            entries.forEachIndexed { i, message ->
+                writer.writeEntry('D', "OnionRequestExecutor", message, null, 1_700_000_000_000L + i * 3)
+            }
+        }
+
+        // Each entry of the old format was its own AES-CBC ciphertext, with a 16 byte IV and
+        // a 4 byte length, of the formatted line
+        val legacyBytes = readText().sumOf { line ->
+            val plaintextSize = line.toByteArray().size + 1
+            16 + 4 + (plaintextSize / 16 + 1) * 16
+        }
+
+        val bytesPerEntry = file.length().toDouble() / count
+        val legacyBytesPerEntry = legacyBytes.toDouble() / count
+
+        assertTrue(bytesPerEntry < legacyBytesPerEntry / 2)
+    }
+}
@@ -0,0 +1,91 @@
+package org.thoughtcrime.securesms.logging
+
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.concurrent.thread
+
+class LogEntryQueueTest {
+
+    private fun LogEntryQueue.drainMessages(max: Int = Int.MAX_VALUE): List<String?> {
+        val messages = arrayListOf<String?>()
+        drain(max) { _, _, message, _, _ -> messages += message }
+        return messages
+    }
+
+    @Test
+    fun `entries come out in the order they were logged across priorities`() {
+        val queue = LogEntryQueue(lowPriorityCapacity = 8, highPriorityCapacity = 8)
+
+        queue.offer('D', "Tag", "1", null, 0)
+        queue.offer('E', "Tag", "2", null, 0)
+        queue.offer('I', "Tag", "3", null, 0)
+        queue.offer('W', "Tag", "4", null, 0)
+
+        assertEquals(listOf("1", "2"), queue.drainMessages(max = 2))
+        assertEquals(listOf("3", "4"), queue.drainMessages())
+        assertTrue(queue.isEmpty)
+    }
+
+    @Test
+    fun `debug floods don't push out warnings and drops are counted per level`() {
+        val queue = LogEntryQueue(lowPriorityCapacity = 16, highPriorityCapacity = 4)
+
+        repeat(100) { queue.offer('D', "Tag", "debug", null, 0) }
+        repeat(10) { queue.offer('V', "Tag", "verbose", null, 0) }
+        repeat(3) { queue.offer('E', "Tag", "error", null, 0) }
+
+        val messages = queue.drainMessages()
+        assertEquals(3, messages.count { it == "error" })
+        assertEquals(16, messages.count { it == "debug" })
+
+        val dropCounts = IntArray(LogEntryQueue.LEVELS.length)
+        assertTrue(queue.takeDropCounts(dropCounts))
+        assertEquals(84, dropCounts[LogEntryQueue.LEVELS.indexOf('D')])
+        assertEquals(10, dropCounts[LogEntryQueue.LEVELS.indexOf('V')])
+        assertEquals(0, dropCounts[LogEntryQueue.LEVELS.indexOf('E')])
+
+        // The counts are reset once taken
+        assertFalse(queue.takeDropCounts(dropCounts))
+    }
+
+    @Test
+    fun `concurrent loggers lose nothing while the writer keeps up`() = runBlocking {
+        val queue = LogEntryQueue(lowPriorityCapacity = 1024, highPriorityCapacity = 256)
+        val loggers = 8
+        val perLogger = 50_000
+
+        val threads = List(loggers) { logger ->
+            thread {
+                for (i in 0 until perLogger) {
+                    val level = if (i % 10 == 0) 'W' else 'D'
+                    while (!queue.offer(level, "$logger", null, null, i.toLong())) {
+                        Thread.yield()
+                    }
+                }
+            }
+        }
+
+        // Each logger's entries must come out in the order it logged them
+        val lastSeen = LongArray(loggers) { -1 }
+        var received = 0
+
+        withTimeout(30_000) {
+            while (received < loggers * perLogger) {
+                queue.awaitEntries()
+                received += queue.drain(256) { _, tag, _, _, timestamp ->
+                    val logger = tag!!.toInt()
+                    assertTrue(timestamp > lastSeen[logger])
+                    lastSeen[logger] = timestamp
+                }
+            }
+        }
+
+        threads.forEach { it.join() }
+        assertEquals(loggers * perLogger, received)
+        assertTrue(queue.isEmpty)
+    }
+}
@@ -0,0 +1,63 @@
+package org.thoughtcrime.securesms.util
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class TimerWheelTest {
+
+    @Test
+    fun `items are returned once their deadline passes`() {
+        val wheel = TimerWheel<String>(tickMillis = 1000, startMillis = 0)
+        wheel.schedule("a", 5_000)
+        wheel.schedule("b", 10_500)
+
+        assertEquals(emptyList<String>(), wheel.advanceTo(4_999))
+        assertEquals(listOf("a"), wheel.advanceTo(5_000))
+        assertEquals(emptyList<String>(), wheel.advanceTo(10_999))
+        assertEquals(listOf("b"), wheel.advanceTo(11_000))
+        assertEquals(0, wheel.size)
+    }
+
+    @Test
+    fun `far away items cascade down and are never returned early`() {
+        val wheel = TimerWheel<Long>(tickMillis = 1000, startMillis = 0)
+        val deadlines = listOf(70_000L, 5_000_000L, 300_000_000L, 20_000_000_000L)
+        deadlines.forEach { wheel.schedule(it, it) }
+
+        val returned = mutableListOf<Long>()
+        var now = 0L
+        while (wheel.size > 0) {
+            now = wheel.nextDeadlineMillis()!!.coerceAtLeast(now + 1)
+            wheel.advanceTo(now).forEach { deadline ->
+                assertTrue("$deadline returned at $now", deadline <= now)
+                assertTrue("$deadline returned too late at $now", now - deadline < 1000)
+                returned += deadline
+            }
+        }
+
+        assertEquals(deadlines, returned)
+    }
+
+    @Test
+    fun `past deadlines are returned on next advance`() {
+        val wheel = TimerWheel<String>(tickMillis = 1000, startMillis = 60_000)
+        wheel.schedule("late", 1_000)
+
+        assertEquals(60_000L, wheel.nextDeadlineMillis())
+        assertEquals(listOf("late"), wheel.advanceTo(60_000))
+        assertNull(wheel.nextDeadlineMillis())
+    }
+
+    @Test
+    fun `next deadline is a lower bound of the earliest item`() {
+        val wheel = TimerWheel<String>(tickMillis = 100, startMillis = 0)
+        wheel.schedule("a", 1_000_000)
+        wheel.schedule("b", 2_500)
+
+        assertEquals(2_500L, wheel.nextDeadlineMillis())
+        assertEquals(listOf("b"), wheel.advanceTo(2_500))
+        assertTrue(wheel.nextDeadlineMillis()!! <= 1_000_000)
+    }
+}